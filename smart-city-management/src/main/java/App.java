@@ -35,7 +35,7 @@ public class App {
 		System.out.println("=== INITIALIZING SERVICES ===");
 
 		citizenRepository = new CitizenRepository();
-		trafficRepository = new TrafficRepository();
+		trafficRepository = new HeapTrafficRepository();
 		utilityRepository = new UtilityRepository();
 		complaintRepository = new ComplaintRepository();
 		emergencyRepository = new EmergencyRepository();
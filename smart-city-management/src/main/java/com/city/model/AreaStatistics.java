@@ -0,0 +1,43 @@
+package com.city.model;
+
+public class AreaStatistics {
+
+	private String location;
+	private int sensorCount;
+	private int activeSensorCount;
+	private long totalActiveDensity;
+
+	public AreaStatistics(String location, int sensorCount, int activeSensorCount, long totalActiveDensity) {
+
+		if (location == null || location.trim().isEmpty()) {
+			throw new IllegalArgumentException("Location cannot be null or empty");
+		}
+		if (sensorCount < 0 || activeSensorCount < 0 || activeSensorCount > sensorCount) {
+			throw new IllegalArgumentException("Sensor counts are inconsistent");
+		}
+
+		this.location = location;
+		this.sensorCount = sensorCount;
+		this.activeSensorCount = activeSensorCount;
+		this.totalActiveDensity = totalActiveDensity;
+	}
+
+	//Getter Functions
+	public String getLocation() { return location; }
+	public int getSensorCount() { return sensorCount; }
+	public int getActiveSensorCount() { return activeSensorCount; }
+	public long getTotalActiveDensity() { return totalActiveDensity; }
+
+	public int getAverageDensity() {
+		return activeSensorCount == 0 ? 0 : (int) (totalActiveDensity / activeSensorCount);
+	}
+
+	public String toString() {
+		return "AreaStatistics Details:" +
+				"\nLocation: " + location +
+				"\nSensors: " + sensorCount +
+				"\nActive Sensors: " + activeSensorCount +
+				"\nAverage Density: " + getAverageDensity();
+	}
+
+}
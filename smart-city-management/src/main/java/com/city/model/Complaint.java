@@ -1,6 +1,7 @@
 package com.city.model;
 
 import java.time.LocalDateTime;
+import java.util.Objects;
 
 public class Complaint {
 	
@@ -12,6 +13,7 @@ public class Complaint {
     private Priority priority;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
+    private Listener listener;
     
     public enum Category {
         ROAD, WATER, ELECTRICITY
@@ -25,6 +27,14 @@ public class Complaint {
         LOW, MEDIUM, HIGH
     }
     
+    //Lets the owning repository keep its indexes in step with in-place changes
+    public interface Listener {
+    	default void onStatusChanged(Complaint complaint, Status oldStatus) {}
+    	default void onPriorityChanged(Complaint complaint, Priority oldPriority) {}
+    	default void onDescriptionChanged(Complaint complaint, String oldDescription) {}
+    	default void onUpdated(Complaint complaint, LocalDateTime oldUpdatedAt) {}
+    }
+    
     public Complaint(String complaintId, String citizenId, Category category, 
     		String description, Priority priority) {
     	
@@ -63,16 +73,43 @@ public class Complaint {
     
     //Setter Functions
     public void setDescription(String description) { 
+    	String oldDescription = this.description;
         this.description = description; 
-        this.updatedAt = LocalDateTime.now();
+        if (listener != null && !Objects.equals(oldDescription, description)) {
+        	listener.onDescriptionChanged(this, oldDescription);
+        }
+        touch();
     }
     public void setStatus(Status status) { 
+    	if (status == null) {
+    		throw new IllegalArgumentException("Status cannot be null");
+    	}
+    	Status oldStatus = this.status;
         this.status = status; 
-        this.updatedAt = LocalDateTime.now();
+        if (listener != null && oldStatus != status) {
+        	listener.onStatusChanged(this, oldStatus);
+        }
+        touch();
     }
     public void setPriority(Priority priority) { 
+    	if (priority == null) {
+    		throw new IllegalArgumentException("Priority cannot be null");
+    	}
+    	Priority oldPriority = this.priority;
         this.priority = priority; 
-        this.updatedAt = LocalDateTime.now();
+        if (listener != null && oldPriority != priority) {
+        	listener.onPriorityChanged(this, oldPriority);
+        }
+        touch();
+    }
+    public void setListener(Listener listener) { this.listener = listener; }
+    
+    private void touch() {
+    	LocalDateTime oldUpdatedAt = this.updatedAt;
+    	this.updatedAt = LocalDateTime.now();
+    	if (listener != null) {
+    		listener.onUpdated(this, oldUpdatedAt);
+    	}
     }
     
     public String toString() {
@@ -0,0 +1,44 @@
+package com.city.model;
+
+public class ConsumptionStatistics {
+
+	private UtilityMeter.UtilityType utilityType;
+	private int meterCount;
+	private double averageReading;
+	private double standardDeviation;
+
+	public ConsumptionStatistics(UtilityMeter.UtilityType utilityType, int meterCount, double averageReading, double standardDeviation) {
+
+		if (utilityType == null) {
+			throw new IllegalArgumentException("Utility type cannot be null");
+		}
+		if (meterCount < 0 || standardDeviation < 0) {
+			throw new IllegalArgumentException("Meter count and standard deviation cannot be negative");
+		}
+
+		this.utilityType = utilityType;
+		this.meterCount = meterCount;
+		this.averageReading = averageReading;
+		this.standardDeviation = standardDeviation;
+	}
+
+	//Getter Functions
+	public UtilityMeter.UtilityType getUtilityType() { return utilityType; }
+	public int getMeterCount() { return meterCount; }
+	public double getAverageReading() { return averageReading; }
+	public double getStandardDeviation() { return standardDeviation; }
+
+	//Standard scores are only defined once readings differ
+	public double zScore(double reading) {
+		return standardDeviation == 0 ? 0.0 : (reading - averageReading) / standardDeviation;
+	}
+
+	public String toString() {
+		return "ConsumptionStatistics Details:" +
+				"\nUtility Type: " + utilityType +
+				"\nMeters: " + meterCount +
+				"\nAverage Reading: " + averageReading +
+				"\nStandard Deviation: " + standardDeviation;
+	}
+
+}
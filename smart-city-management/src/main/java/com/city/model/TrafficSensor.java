@@ -1,20 +1,42 @@
 package com.city.model;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 public class TrafficSensor {
 	
 	private String sensorId;
-	private String location;
-	private int currentTrafficDensity;
-	private LocalDateTime timestamp;
-	private Status status;
+	private volatile String location;
+	private volatile int currentTrafficDensity;
+	private volatile long timestampMillis;
+	private volatile Status status;
+	private volatile double latitude = Double.NaN;
+	private volatile double longitude = Double.NaN;
+	private volatile Listener listener;
 	
+	//STALE sensors missed their heartbeat and become ACTIVE again with their next density reading
 	public enum Status{
-		ACTIVE, INACTIVE
+		ACTIVE, INACTIVE, STALE
+	}
+	
+	//Notified by setters so that repository indexes stay in sync with in-place mutations.
+	//Setters are serialized per sensor, so a listener sees each sensor's changes in order.
+	public interface Listener {
+		default void onLocationChanged(TrafficSensor sensor, String oldLocation) {}
+		default void onDensityChanged(TrafficSensor sensor, int oldDensity) {}
+		default void onStatusChanged(TrafficSensor sensor, Status oldStatus) {}
+		default void onCoordinatesChanged(TrafficSensor sensor, double oldLatitude, double oldLongitude) {}
+		//Fired by a repository when the sensor is added or replaces the stored sensor with its ID
+		default void onAdded(TrafficSensor sensor) {}
 	}
 	
 	public TrafficSensor(String sensorId, String location, int currentTrafficDensity, Status status) {
+		this(sensorId, location, currentTrafficDensity, status, System.currentTimeMillis());
+	}
+	
+	//Restores a sensor with the time of its last reading, e.g. when materialised from stored columns
+	public TrafficSensor(String sensorId, String location, int currentTrafficDensity, Status status, long timestampMillis) {
 		
 		if (sensorId == null || sensorId.trim().isEmpty()) {
 			throw new IllegalArgumentException("Sensor ID cannot be null or empty");
@@ -33,23 +55,71 @@ public class TrafficSensor {
 		this.currentTrafficDensity = currentTrafficDensity;
 		this.location = location;
 		this.status = status;
-		this.timestamp = LocalDateTime.now();
+		this.timestampMillis = timestampMillis;
 	}
 
 	//Getter Functions
 	public String getSensorId() { return sensorId; }
 	public String getLocation() { return location; }
 	public int getCurrentTrafficDensity() { return currentTrafficDensity; }
-	public LocalDateTime getTimestamp() { return timestamp; }
+	public LocalDateTime getTimestamp() { 
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault()); 
+	}
+	public long getTimestampMillis() { return timestampMillis; }
 	public Status getStatus() { return status; }
+	public double getLatitude() { return latitude; }
+	public double getLongitude() { return longitude; }
+	
+	//Coordinates are optional, sensors without them are only addressable by location
+	public boolean hasCoordinates() {
+		return !Double.isNaN(latitude);
+	}
 
 	// Setter Functions
-	public void setLocation(String location) { this.location = location; }
-	public void setCurrentTrafficDensity(int currentTrafficDensity) { 
+	public synchronized void setLocation(String location) { 
+		if (location == null || location.trim().isEmpty()) {
+	        throw new IllegalArgumentException("Location cannot be null or empty");
+	    }
+		String oldLocation = this.location;
+		this.location = location; 
+		if (listener != null && !oldLocation.equals(location)) {
+			listener.onLocationChanged(this, oldLocation);
+		}
+	}
+	public synchronized void setCurrentTrafficDensity(int currentTrafficDensity) { 
+		int oldDensity = this.currentTrafficDensity;
 		this.currentTrafficDensity = currentTrafficDensity; 
-		this.timestamp = LocalDateTime.now();
+		this.timestampMillis = System.currentTimeMillis();
+		if (listener != null) {
+			listener.onDensityChanged(this, oldDensity);
+		}
+	}
+	public synchronized void setStatus(Status status) { 
+		if (status == null) {
+			throw new IllegalArgumentException("Status cannot be null");
+		}
+		Status oldStatus = this.status;
+		this.status = status; 
+		if (listener != null && oldStatus != status) {
+			listener.onStatusChanged(this, oldStatus);
+		}
+	}
+	public synchronized void setCoordinates(double latitude, double longitude) {
+		if (!(latitude >= -90 && latitude <= 90)) {
+			throw new IllegalArgumentException("Latitude must be between -90 and 90");
+		}
+		if (!(longitude >= -180 && longitude <= 180)) {
+			throw new IllegalArgumentException("Longitude must be between -180 and 180");
+		}
+		double oldLatitude = this.latitude;
+		double oldLongitude = this.longitude;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		if (listener != null && (oldLatitude != latitude || oldLongitude != longitude)) {
+			listener.onCoordinatesChanged(this, oldLatitude, oldLongitude);
+		}
 	}
-	public void setStatus(Status status) { this.status = status; }
+	public synchronized void setListener(Listener listener) { this.listener = listener; }
 	
 	public boolean isActive() {
 		return status==Status.ACTIVE;
@@ -61,7 +131,7 @@ public class TrafficSensor {
                 "\nLocation: " + location +
                 "\nTraffic Density: " + currentTrafficDensity +
                 "\nStatus: " + status +
-                "\nLast Updated: " + timestamp;
+                "\nLast Updated: " + getTimestamp();
     }
 
 }
@@ -1,19 +1,35 @@
 package com.city.model;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 public class UtilityMeter {
 	
 	private String meterId;
     private String propertyId;
     private UtilityType utilityType;
+    private PropertyClass propertyClass = PropertyClass.RESIDENTIAL;
     private double currentReading;
-    private LocalDateTime lastUpdated;
+    private long lastUpdatedMillis;
+    private Listener listener;
     
     public enum UtilityType {
         WATER, ELECTRICITY, GAS
     }
     
+    //Selects the tariff the property is billed under
+    public enum PropertyClass {
+    	RESIDENTIAL, COMMERCIAL, INDUSTRIAL
+    }
+    
+    //Lets the owning repository keep its indexes in step with in-place changes
+    public interface Listener {
+    	default void onPropertyChanged(UtilityMeter meter, String oldPropertyId) {}
+    	default void onUtilityTypeChanged(UtilityMeter meter, UtilityType oldUtilityType) {}
+    	default void onReadingChanged(UtilityMeter meter) {}
+    }
+    
     public UtilityMeter(String meterId, String propertyId, UtilityType utilityType, double currentReading) {
     	
     	if (meterId == null || meterId.trim().isEmpty()) {
@@ -33,23 +49,55 @@ public class UtilityMeter {
         this.propertyId = propertyId;
         this.utilityType = utilityType;
         this.currentReading = currentReading;
-        this.lastUpdated = LocalDateTime.now();
+        this.lastUpdatedMillis = System.currentTimeMillis();
     }
     
     //Getter Functions
     public String getMeterId() { return meterId; }
     public String getPropertyId() { return propertyId; }
     public UtilityType getUtilityType() { return utilityType; }
+    public PropertyClass getPropertyClass() { return propertyClass; }
     public double getCurrentReading() { return currentReading; }
-    public LocalDateTime getLastUpdated() { return lastUpdated; }
+    public LocalDateTime getLastUpdated() { 
+    	return LocalDateTime.ofInstant(Instant.ofEpochMilli(lastUpdatedMillis), ZoneId.systemDefault()); 
+    }
+    public long getLastUpdatedMillis() { return lastUpdatedMillis; }
     
     //Setter Functions
-    public void setPropertyId(String propertyId) { this.propertyId = propertyId; }
-    public void setUtilityType(UtilityType utilityType) { this.utilityType = utilityType; }
+    public void setPropertyId(String propertyId) { 
+    	if (propertyId == null || propertyId.trim().isEmpty()) {
+            throw new IllegalArgumentException("Property ID cannot be null or empty");
+        }
+    	String oldPropertyId = this.propertyId;
+    	this.propertyId = propertyId; 
+    	if (listener != null && !oldPropertyId.equals(propertyId)) {
+    		listener.onPropertyChanged(this, oldPropertyId);
+    	}
+    }
+    public void setUtilityType(UtilityType utilityType) { 
+    	if (utilityType == null) {
+            throw new IllegalArgumentException("Utility type cannot be null");
+        }
+    	UtilityType oldUtilityType = this.utilityType;
+    	this.utilityType = utilityType; 
+    	if (listener != null && oldUtilityType != utilityType) {
+    		listener.onUtilityTypeChanged(this, oldUtilityType);
+    	}
+    }
+    public void setPropertyClass(PropertyClass propertyClass) { 
+    	if (propertyClass == null) {
+            throw new IllegalArgumentException("Property class cannot be null");
+        }
+    	this.propertyClass = propertyClass; 
+    }
     public void setCurrentReading(double currentReading) { 
     	this.currentReading = currentReading; 
-    	this.lastUpdated = LocalDateTime.now();
+    	this.lastUpdatedMillis = System.currentTimeMillis();
+    	if (listener != null) {
+    		listener.onReadingChanged(this);
+    	}
     }
+    public void setListener(Listener listener) { this.listener = listener; }
     
     public String toString() {
         return "UtilityMeter Details:" +
@@ -57,7 +105,7 @@ public class UtilityMeter {
                 "\nProperty ID: " + propertyId +
                 "\nUtility Type: " + utilityType +
                 "\nCurrent Reading: " + currentReading +
-                "\nLast Updated: " + lastUpdated;
+                "\nLast Updated: " + getLastUpdated();
     }
 
 }
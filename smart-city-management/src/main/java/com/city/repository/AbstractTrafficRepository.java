@@ -0,0 +1,74 @@
+package com.city.repository;
+
+import java.util.Arrays;
+
+import com.city.exception.InvalidInputException;
+import com.city.model.TrafficSensor;
+
+//Spatial grid and listener fan-out shared by the TrafficRepository implementations; holds no sensors
+abstract class AbstractTrafficRepository implements TrafficRepository {
+	
+	private final GeoGrid geoGrid;
+	private volatile TrafficSensor.Listener[] sensorListeners;
+	
+	//gridCellMeters sets the cell size of the spatial index used by radius and bounding-box queries
+	AbstractTrafficRepository(double gridCellMeters) {
+		this.geoGrid = new GeoGrid(gridCellMeters);
+		this.sensorListeners = new TrafficSensor.Listener[0];
+	}
+	
+	@Override
+	public synchronized void addSensorListener(TrafficSensor.Listener listener) {
+		if (listener == null) {
+			throw new InvalidInputException("Sensor listener cannot be null");
+		}
+		
+		TrafficSensor.Listener[] listeners = Arrays.copyOf(sensorListeners, sensorListeners.length + 1);
+		listeners[sensorListeners.length] = listener;
+		sensorListeners = listeners;
+	}
+	
+	GeoGrid getGeoGrid() {
+		return geoGrid;
+	}
+	
+	protected boolean hasSensorListeners() {
+		return sensorListeners.length > 0;
+	}
+	
+	protected void notifyAdded(TrafficSensor sensor) {
+		TrafficSensor.Listener[] listeners = sensorListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onAdded(sensor);
+		}
+	}
+	
+	protected void notifyLocationChanged(TrafficSensor sensor, String oldLocation) {
+		TrafficSensor.Listener[] listeners = sensorListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onLocationChanged(sensor, oldLocation);
+		}
+	}
+	
+	protected void notifyDensityChanged(TrafficSensor sensor, int oldDensity) {
+		TrafficSensor.Listener[] listeners = sensorListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onDensityChanged(sensor, oldDensity);
+		}
+	}
+	
+	protected void notifyStatusChanged(TrafficSensor sensor, TrafficSensor.Status oldStatus) {
+		TrafficSensor.Listener[] listeners = sensorListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onStatusChanged(sensor, oldStatus);
+		}
+	}
+	
+	protected void notifyCoordinatesChanged(TrafficSensor sensor, double oldLatitude, double oldLongitude) {
+		TrafficSensor.Listener[] listeners = sensorListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onCoordinatesChanged(sensor, oldLatitude, oldLongitude);
+		}
+	}
+
+}
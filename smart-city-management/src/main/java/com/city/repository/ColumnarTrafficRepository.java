@@ -0,0 +1,716 @@
+package com.city.repository;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.city.exception.DuplicateEntityException;
+import com.city.exception.InvalidInputException;
+import com.city.model.AreaStatistics;
+import com.city.model.TrafficSensor;
+
+//TrafficRepository backend for city-scale deployments. Sensor IDs are mapped to dense int ordinals
+//and timestamp, coordinates, density, location, status and density bucket position live in off-heap
+//columns (37 bytes per sensor) held in fixed-size direct ByteBuffer chunks, so growing the store never
+//copies or loses column data. TrafficSensor instances are only materialised on demand and write their
+//changes back to the columns. Column writes for one ordinal are serialized on a lock stripe, which is
+//also the sensor's lock for callers; scans and lookups never lock. Active ordinals are bucketed by
+//density so that threshold and top-k queries only visit the sensors they return.
+public class ColumnarTrafficRepository extends AbstractTrafficRepository {
+
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int TIMESTAMP_OFFSET = 0;
+	private static final int LATITUDE_OFFSET = TIMESTAMP_OFFSET + 8 * CHUNK_SIZE;
+	private static final int LONGITUDE_OFFSET = LATITUDE_OFFSET + 8 * CHUNK_SIZE;
+	private static final int DENSITY_OFFSET = LONGITUDE_OFFSET + 8 * CHUNK_SIZE;
+	private static final int LOCATION_OFFSET = DENSITY_OFFSET + 4 * CHUNK_SIZE;
+	private static final int POSITION_OFFSET = LOCATION_OFFSET + 4 * CHUNK_SIZE;
+	private static final int STATUS_OFFSET = POSITION_OFFSET + 4 * CHUNK_SIZE;
+	private static final int CHUNK_BYTES = STATUS_OFFSET + CHUNK_SIZE;
+	private static final int LOCK_STRIPES = 256;
+	private static final int DENSITY_LOCK_STRIPES = 64;
+	private static final TrafficSensor.Status[] STATUSES = TrafficSensor.Status.values();
+	private static final byte ACTIVE = (byte) TrafficSensor.Status.ACTIVE.ordinal();
+
+	private Map<String, Integer> ordinals;
+	private Map<String, Integer> locationOrdinals;
+	private Object[] locks;
+	private Object[] densityLocks;
+	private Object locationLock;
+	private Map<Long, OrdinalSet> cells;
+	private NavigableMap<Integer, DensityBucket> activeByDensity;
+	private volatile ByteBuffer[] chunks;
+	private volatile String[][] sensorIds;
+	private volatile Area[] areas;
+	private volatile int sensorCount;
+
+	public ColumnarTrafficRepository() {
+		this(GeoGrid.DEFAULT_CELL_METERS);
+	}
+
+	public ColumnarTrafficRepository(double gridCellMeters) {
+		super(gridCellMeters);
+		this.cells = new ConcurrentHashMap<>();
+		this.activeByDensity = new ConcurrentSkipListMap<>();
+		this.ordinals = new ConcurrentHashMap<>();
+		this.locationOrdinals = new ConcurrentHashMap<>();
+		this.locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		this.densityLocks = new Object[DENSITY_LOCK_STRIPES];
+		for (int i = 0; i < DENSITY_LOCK_STRIPES; i++) {
+			densityLocks[i] = new Object();
+		}
+		this.locationLock = new Object();
+		this.chunks = new ByteBuffer[0];
+		this.sensorIds = new String[0][];
+		this.areas = new Area[0];
+	}
+
+	@Override
+	public void addSensor(TrafficSensor sensor) {
+		if (sensor == null) {
+			throw new InvalidInputException("Traffic sensor cannot be null");
+		}
+
+		String sensorId = sensor.getSensorId();
+		synchronized (this) {
+			if (ordinals.containsKey(sensorId)) {
+				throw new DuplicateEntityException("Traffic sensor with ID " + sensorId + " already exists");
+			}
+
+			int ordinal = sensorCount;
+			if ((ordinal & CHUNK_MASK) == 0) {
+				addChunk();
+			}
+			sensorIds[ordinal >>> CHUNK_BITS][ordinal & CHUNK_MASK] = sensorId;
+
+			synchronized (sensor) {
+				int location = locationOrdinal(sensor.getLocation());
+				ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+				int slot = ordinal & CHUNK_MASK;
+				chunk.putInt(DENSITY_OFFSET + 4 * slot, sensor.getCurrentTrafficDensity());
+				chunk.putLong(TIMESTAMP_OFFSET + 8 * slot, sensor.getTimestampMillis());
+				chunk.putInt(LOCATION_OFFSET + 4 * slot, location);
+				chunk.put(STATUS_OFFSET + slot, (byte) sensor.getStatus().ordinal());
+				writeCoordinates(ordinal, chunk, slot, sensor.getLatitude(), sensor.getLongitude());
+				areas[location].add(ordinal, sensor.isActive(), sensor.getCurrentTrafficDensity());
+				if (sensor.isActive()) {
+					addToDensity(ordinal, sensor.getCurrentTrafficDensity());
+				}
+				sensor.setListener(new ColumnWriter(ordinal));
+			}
+
+			ordinals.put(sensorId, ordinal);
+			sensorCount = ordinal + 1;
+		}
+		notifyAdded(sensor);
+	}
+
+	@Override
+	public Optional<TrafficSensor> findSensorById(String sensorId) {
+		if (sensorId == null || sensorId.trim().isEmpty()) {
+			throw new InvalidInputException("Sensor ID cannot be null or empty");
+		}
+
+		return Optional.ofNullable(getSensor(sensorId));
+	}
+
+	@Override
+	public TrafficSensor getSensor(String sensorId) {
+		Integer ordinal = ordinals.get(sensorId);
+		return ordinal == null ? null : materialise(ordinal);
+	}
+
+	@Override
+	public void updateSensor(String sensorId, TrafficSensor updatedSensor) {
+		if (sensorId == null || sensorId.trim().isEmpty()) {
+			throw new InvalidInputException("Sensor ID cannot be null or empty");
+		}
+
+		if (updatedSensor == null) {
+			throw new InvalidInputException("Updated sensor cannot be null");
+		}
+
+		Integer ordinal = ordinals.get(sensorId);
+		if (ordinal == null) {
+			throw new InvalidInputException("Sensor with ID " + sensorId + " not found");
+		}
+
+		synchronized (updatedSensor) {
+			int location = locationOrdinal(updatedSensor.getLocation());
+			synchronized (lockFor(ordinal)) {
+				ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+				int slot = ordinal & CHUNK_MASK;
+				int oldLocation = chunk.getInt(LOCATION_OFFSET + 4 * slot);
+				boolean wasActive = chunk.get(STATUS_OFFSET + slot) == ACTIVE;
+				int oldDensity = chunk.getInt(DENSITY_OFFSET + 4 * slot);
+				areas[oldLocation].remove(ordinal, wasActive, oldDensity);
+				if (wasActive) {
+					removeFromDensity(ordinal, oldDensity);
+				}
+
+				chunk.putInt(DENSITY_OFFSET + 4 * slot, updatedSensor.getCurrentTrafficDensity());
+				chunk.putLong(TIMESTAMP_OFFSET + 8 * slot, updatedSensor.getTimestampMillis());
+				chunk.putInt(LOCATION_OFFSET + 4 * slot, location);
+				chunk.put(STATUS_OFFSET + slot, (byte) updatedSensor.getStatus().ordinal());
+				writeCoordinates(ordinal, chunk, slot, updatedSensor.getLatitude(), updatedSensor.getLongitude());
+				areas[location].add(ordinal, updatedSensor.isActive(), updatedSensor.getCurrentTrafficDensity());
+				if (updatedSensor.isActive()) {
+					addToDensity(ordinal, updatedSensor.getCurrentTrafficDensity());
+				}
+			}
+			updatedSensor.setListener(new ColumnWriter(ordinal));
+		}
+		notifyAdded(updatedSensor);
+	}
+
+	//Writes the columns in place; a sensor is only materialised when registered listeners need one to
+	//observe the change. Listeners run under the stripe, as they do for the setters of a materialised sensor.
+	@Override
+	public DensityReadingResult recordDensityReading(String sensorId, int density) {
+		Integer ordinal = ordinals.get(sensorId);
+		if (ordinal == null) {
+			return DensityReadingResult.SENSOR_NOT_FOUND;
+		}
+
+		synchronized (lockFor(ordinal)) {
+			ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+			int slot = ordinal & CHUNK_MASK;
+			TrafficSensor.Status oldStatus = STATUSES[chunk.get(STATUS_OFFSET + slot)];
+			if (oldStatus == TrafficSensor.Status.INACTIVE) {
+				return DensityReadingResult.SENSOR_INACTIVE;
+			}
+
+			int oldDensity = chunk.getInt(DENSITY_OFFSET + 4 * slot);
+			chunk.putInt(DENSITY_OFFSET + 4 * slot, density);
+			chunk.putLong(TIMESTAMP_OFFSET + 8 * slot, System.currentTimeMillis());
+			Area area = areas[chunk.getInt(LOCATION_OFFSET + 4 * slot)];
+			if (oldStatus == TrafficSensor.Status.ACTIVE) {
+				area.adjustActive(0, density - oldDensity);
+				if (density != oldDensity) {
+					removeFromDensity(ordinal, oldDensity);
+					addToDensity(ordinal, density);
+				}
+			}
+			else {
+				chunk.put(STATUS_OFFSET + slot, ACTIVE);
+				area.adjustActive(1, density);
+				addToDensity(ordinal, density);
+			}
+
+			if (hasSensorListeners()) {
+				TrafficSensor sensor = materialise(ordinal);
+				notifyDensityChanged(sensor, oldDensity);
+				if (oldStatus != TrafficSensor.Status.ACTIVE) {
+					notifyStatusChanged(sensor, oldStatus);
+				}
+			}
+		}
+		return DensityReadingResult.UPDATED;
+	}
+
+	//Materialised instances are fresh per lookup, so callers serialize on the ordinal's stripe instead
+	@Override
+	public Object getSensorLock(String sensorId) {
+		Integer ordinal = ordinals.get(sensorId);
+		return ordinal == null ? null : lockFor(ordinal);
+	}
+
+	@Override
+	public Map<String, TrafficSensor> getAllSensors() {
+		Map<String, TrafficSensor> allSensors = new HashMap<>();
+		int count = sensorCount;
+		for (int ordinal = 0; ordinal < count; ordinal++) {
+			TrafficSensor sensor = materialise(ordinal);
+			allSensors.put(sensor.getSensorId(), sensor);
+		}
+		return allSensors;
+	}
+
+	@Override
+	public List<TrafficSensor> getSensorsByLocation(String location) {
+		if (location == null || location.trim().isEmpty()) {
+			throw new InvalidInputException("Location cannot be null or empty");
+		}
+
+		List<TrafficSensor> locationSensors = new ArrayList<>();
+		Integer locationOrdinal = locationOrdinals.get(location);
+		if (locationOrdinal != null) {
+			for (int ordinal : areas[locationOrdinal].sensors.toArray()) {
+				locationSensors.add(materialise(ordinal));
+			}
+		}
+		return locationSensors;
+	}
+
+	@Override
+	public Optional<AreaStatistics> findAreaStatistics(String location) {
+		if (location == null || location.trim().isEmpty()) {
+			throw new InvalidInputException("Location cannot be null or empty");
+		}
+
+		Integer locationOrdinal = locationOrdinals.get(location);
+		if (locationOrdinal == null || areas[locationOrdinal].size() == 0) {
+			return Optional.empty();
+		}
+		return Optional.of(areas[locationOrdinal].toStatistics());
+	}
+
+	@Override
+	public double getAverageActiveDensity(String location) {
+		Integer locationOrdinal = locationOrdinals.get(location);
+		return locationOrdinal == null ? Double.NaN : areas[locationOrdinal].averageActiveDensity();
+	}
+
+	@Override
+	public List<AreaStatistics> getAllAreaStatistics() {
+		List<AreaStatistics> areaStatistics = new ArrayList<>();
+		for (Area area : areas) {
+			if (area != null && area.size() > 0) {
+				areaStatistics.add(area.toStatistics());
+			}
+		}
+		return areaStatistics;
+	}
+
+	@Override
+	public List<TrafficSensor> getActiveSensors() {
+		List<TrafficSensor> activeSensors = new ArrayList<>();
+		int count = sensorCount;
+		for (int ordinal = 0; ordinal < count; ordinal++) {
+			if (chunks[ordinal >>> CHUNK_BITS].get(STATUS_OFFSET + (ordinal & CHUNK_MASK)) == ACTIVE) {
+				activeSensors.add(materialise(ordinal));
+			}
+		}
+		return activeSensors;
+	}
+
+	@Override
+	public List<TrafficSensor> getActiveSensorsWithDensityAtLeast(int minDensity) {
+		List<TrafficSensor> matchingSensors = new ArrayList<>();
+		for (DensityBucket bucket : activeByDensity.tailMap(minDensity, true).descendingMap().values()) {
+			for (int ordinal : bucket.toArray(Integer.MAX_VALUE)) {
+				matchingSensors.add(materialise(ordinal));
+			}
+		}
+		return matchingSensors;
+	}
+
+	@Override
+	public List<TrafficSensor> getMostCongestedSensors(int limit) {
+		if (limit < 0) {
+			throw new InvalidInputException("Limit cannot be negative");
+		}
+
+		List<TrafficSensor> congestedSensors = new ArrayList<>();
+		for (DensityBucket bucket : activeByDensity.descendingMap().values()) {
+			if (congestedSensors.size() == limit) {
+				break;
+			}
+			for (int ordinal : bucket.toArray(limit - congestedSensors.size())) {
+				congestedSensors.add(materialise(ordinal));
+			}
+		}
+		return congestedSensors;
+	}
+
+	@Override
+	public List<String> getMostCongestedLocations(int limit) {
+		if (limit < 0) {
+			throw new InvalidInputException("Limit cannot be negative");
+		}
+
+		Set<String> congestedLocations = new LinkedHashSet<>();
+		for (DensityBucket bucket : activeByDensity.descendingMap().values()) {
+			for (int ordinal : bucket.toArray(Integer.MAX_VALUE)) {
+				if (congestedLocations.size() == limit) {
+					return new ArrayList<>(congestedLocations);
+				}
+				int location = chunks[ordinal >>> CHUNK_BITS].getInt(LOCATION_OFFSET + 4 * (ordinal & CHUNK_MASK));
+				congestedLocations.add(areas[location].location);
+			}
+		}
+		return new ArrayList<>(congestedLocations);
+	}
+
+	@Override
+	public List<TrafficSensor> getSensorsWithinRadius(double latitude, double longitude, double radiusMeters) {
+		GeoGrid.validateRadius(latitude, longitude, radiusMeters);
+
+		double[] box = GeoGrid.boundingBox(latitude, longitude, radiusMeters);
+		List<TrafficSensor> nearbySensors = new ArrayList<>();
+		getGeoGrid().forEachCell(box[0], box[1], box[2], box[3], cells.keySet(), cell -> {
+			OrdinalSet cellOrdinals = cells.get(cell);
+			if (cellOrdinals != null) {
+				for (int ordinal : cellOrdinals.toArray()) {
+					ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+					int slot = ordinal & CHUNK_MASK;
+					double distance = GeoGrid.distanceMeters(latitude, longitude,
+							chunk.getDouble(LATITUDE_OFFSET + 8 * slot), chunk.getDouble(LONGITUDE_OFFSET + 8 * slot));
+					if (distance <= radiusMeters) {
+						nearbySensors.add(materialise(ordinal));
+					}
+				}
+			}
+		});
+
+		nearbySensors.sort(Comparator.comparingDouble(
+				sensor -> GeoGrid.distanceMeters(latitude, longitude, sensor.getLatitude(), sensor.getLongitude())));
+		return nearbySensors;
+	}
+
+	@Override
+	public List<TrafficSensor> getSensorsInBoundingBox(double minLatitude, double minLongitude,
+			double maxLatitude, double maxLongitude) {
+		GeoGrid.validateBoundingBox(minLatitude, minLongitude, maxLatitude, maxLongitude);
+
+		List<TrafficSensor> boxSensors = new ArrayList<>();
+		getGeoGrid().forEachCell(minLatitude, minLongitude, maxLatitude, maxLongitude, cells.keySet(), cell -> {
+			OrdinalSet cellOrdinals = cells.get(cell);
+			if (cellOrdinals != null) {
+				for (int ordinal : cellOrdinals.toArray()) {
+					ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+					int slot = ordinal & CHUNK_MASK;
+					if (GeoGrid.contains(minLatitude, minLongitude, maxLatitude, maxLongitude,
+							chunk.getDouble(LATITUDE_OFFSET + 8 * slot), chunk.getDouble(LONGITUDE_OFFSET + 8 * slot))) {
+						boxSensors.add(materialise(ordinal));
+					}
+				}
+			}
+		});
+		return boxSensors;
+	}
+
+	@Override
+	public int getSensorCount() {
+		return sensorCount;
+	}
+
+	@Override
+	public void forEachDensity(DensityVisitor visitor) {
+		if (visitor == null) {
+			throw new InvalidInputException("Density visitor cannot be null");
+		}
+
+		int count = sensorCount;
+		ByteBuffer[] columnChunks = chunks;
+		for (int chunkIndex = 0; chunkIndex * CHUNK_SIZE < count; chunkIndex++) {
+			ByteBuffer chunk = columnChunks[chunkIndex];
+			int slots = Math.min(CHUNK_SIZE, count - chunkIndex * CHUNK_SIZE);
+			for (int slot = 0; slot < slots; slot++) {
+				visitor.visit(chunk.getInt(DENSITY_OFFSET + 4 * slot), chunk.get(STATUS_OFFSET + slot) == ACTIVE);
+			}
+		}
+	}
+
+	//Callers hold the ordinal's stripe. Like HeapTrafficRepository's density buckets, a bucket is dropped once
+	//empty, and the adds and removals of one density serialize on its own stripe so no add is lost
+	private void addToDensity(int ordinal, int density) {
+		synchronized (densityLocks[density & (DENSITY_LOCK_STRIPES - 1)]) {
+			activeByDensity.computeIfAbsent(density, key -> new DensityBucket()).add(ordinal);
+		}
+	}
+
+	private void removeFromDensity(int ordinal, int density) {
+		synchronized (densityLocks[density & (DENSITY_LOCK_STRIPES - 1)]) {
+			activeByDensity.computeIfPresent(density, (key, bucket) -> bucket.remove(ordinal) ? null : bucket);
+		}
+	}
+
+	private TrafficSensor materialise(int ordinal) {
+		ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+		int slot = ordinal & CHUNK_MASK;
+		TrafficSensor sensor = new TrafficSensor(sensorIds[ordinal >>> CHUNK_BITS][slot],
+				areas[chunk.getInt(LOCATION_OFFSET + 4 * slot)].location,
+				chunk.getInt(DENSITY_OFFSET + 4 * slot),
+				STATUSES[chunk.get(STATUS_OFFSET + slot)],
+				chunk.getLong(TIMESTAMP_OFFSET + 8 * slot));
+		double latitude = chunk.getDouble(LATITUDE_OFFSET + 8 * slot);
+		if (!Double.isNaN(latitude)) {
+			sensor.setCoordinates(latitude, chunk.getDouble(LONGITUDE_OFFSET + 8 * slot));
+		}
+		sensor.setListener(new ColumnWriter(ordinal));
+		return sensor;
+	}
+
+	//Moves the ordinal between grid cells; NaN coordinates keep it out of the grid. Callers hold the ordinal's
+	//stripe or have not published it yet
+	private void writeCoordinates(int ordinal, ByteBuffer chunk, int slot, double latitude, double longitude) {
+		double oldLatitude = chunk.getDouble(LATITUDE_OFFSET + 8 * slot);
+		double oldLongitude = chunk.getDouble(LONGITUDE_OFFSET + 8 * slot);
+		if (!Double.isNaN(oldLatitude)) {
+			OrdinalSet oldCell = cells.get(getGeoGrid().cellKey(oldLatitude, oldLongitude));
+			if (oldCell != null) {
+				oldCell.remove(ordinal);
+			}
+		}
+
+		chunk.putDouble(LATITUDE_OFFSET + 8 * slot, latitude);
+		chunk.putDouble(LONGITUDE_OFFSET + 8 * slot, longitude);
+		if (!Double.isNaN(latitude)) {
+			cells.computeIfAbsent(getGeoGrid().cellKey(latitude, longitude), key -> new OrdinalSet()).add(ordinal);
+		}
+	}
+
+	private void addChunk() {
+		ByteBuffer[] grownChunks = Arrays.copyOf(chunks, chunks.length + 1);
+		ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+		for (int slot = 0; slot < CHUNK_SIZE; slot++) {
+			chunk.putDouble(LATITUDE_OFFSET + 8 * slot, Double.NaN);
+		}
+		grownChunks[chunks.length] = chunk;
+		String[][] grownIds = Arrays.copyOf(sensorIds, sensorIds.length + 1);
+		grownIds[sensorIds.length] = new String[CHUNK_SIZE];
+		sensorIds = grownIds;
+		chunks = grownChunks;
+	}
+
+	private int locationOrdinal(String location) {
+		Integer ordinal = locationOrdinals.get(location);
+		if (ordinal != null) {
+			return ordinal;
+		}
+
+		synchronized (locationLock) {
+			ordinal = locationOrdinals.get(location);
+			if (ordinal == null) {
+				ordinal = areas.length;
+				Area[] grownAreas = Arrays.copyOf(areas, ordinal + 1);
+				grownAreas[ordinal] = new Area(location);
+				areas = grownAreas;
+				locationOrdinals.put(location, ordinal);
+			}
+			return ordinal;
+		}
+	}
+
+	private Object lockFor(int ordinal) {
+		return locks[ordinal & (LOCK_STRIPES - 1)];
+	}
+
+	//Unordered set of ordinals backed by a growable int array, used for areas and grid cells
+	private static class OrdinalSet {
+		private int[] ordinals = new int[4];
+		private int size;
+
+		private synchronized void add(int ordinal) {
+			if (size == ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+			}
+			ordinals[size++] = ordinal;
+		}
+
+		private synchronized boolean remove(int ordinal) {
+			for (int i = 0; i < size; i++) {
+				if (ordinals[i] == ordinal) {
+					ordinals[i] = ordinals[--size];
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized int[] toArray() {
+			return Arrays.copyOf(ordinals, size);
+		}
+	}
+
+	//Active ordinals sharing one density. Each ordinal's index in the array is kept in its position column,
+	//so removal moves the last ordinal into the gap in O(1)
+	private class DensityBucket {
+		private int[] ordinals = new int[4];
+		private int size;
+
+		private synchronized void add(int ordinal) {
+			if (size == ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+			}
+			ordinals[size] = ordinal;
+			setPosition(ordinal, size);
+			size++;
+		}
+
+		//True when the bucket is left empty
+		private synchronized boolean remove(int ordinal) {
+			int position = chunks[ordinal >>> CHUNK_BITS].getInt(POSITION_OFFSET + 4 * (ordinal & CHUNK_MASK));
+			if (position < size && ordinals[position] == ordinal) {
+				int last = ordinals[--size];
+				ordinals[position] = last;
+				setPosition(last, position);
+			}
+			return size == 0;
+		}
+
+		private synchronized int[] toArray(int limit) {
+			return Arrays.copyOf(ordinals, Math.min(size, limit));
+		}
+
+		private void setPosition(int ordinal, int position) {
+			chunks[ordinal >>> CHUNK_BITS].putInt(POSITION_OFFSET + 4 * (ordinal & CHUNK_MASK), position);
+		}
+	}
+
+	//Ordinals of one location with running totals over its active sensors. Membership and totals change
+	//together under the area's monitor, so a snapshot never sees one without the other.
+	private static class Area {
+		private final String location;
+		private OrdinalSet sensors = new OrdinalSet();
+		private int sensorCount;
+		private int activeSensorCount;
+		private long totalActiveDensity;
+
+		private Area(String location) {
+			this.location = location;
+		}
+
+		private synchronized void add(int ordinal, boolean active, int density) {
+			sensors.add(ordinal);
+			sensorCount++;
+			if (active) {
+				activeSensorCount++;
+				totalActiveDensity += density;
+			}
+		}
+
+		private synchronized void remove(int ordinal, boolean active, int density) {
+			if (sensors.remove(ordinal)) {
+				sensorCount--;
+				if (active) {
+					activeSensorCount--;
+					totalActiveDensity -= density;
+				}
+			}
+		}
+
+		private synchronized void adjustActive(int sensors, long density) {
+			activeSensorCount += sensors;
+			totalActiveDensity += density;
+		}
+
+		private synchronized double averageActiveDensity() {
+			return activeSensorCount == 0 ? Double.NaN : (double) totalActiveDensity / activeSensorCount;
+		}
+
+		private synchronized int size() {
+			return sensorCount;
+		}
+
+		private synchronized AreaStatistics toStatistics() {
+			return new AreaStatistics(location, sensorCount, activeSensorCount, totalActiveDensity);
+		}
+	}
+
+	//Writes in-place changes of a materialised sensor back to its columns and area totals
+	private class ColumnWriter implements TrafficSensor.Listener {
+		private final int ordinal;
+
+		private ColumnWriter(int ordinal) {
+			this.ordinal = ordinal;
+		}
+
+		@Override
+		public void onLocationChanged(TrafficSensor sensor, String staleLocation) {
+			int location = locationOrdinal(sensor.getLocation());
+			int oldLocation;
+			synchronized (lockFor(ordinal)) {
+				ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+				int slot = ordinal & CHUNK_MASK;
+				oldLocation = chunk.getInt(LOCATION_OFFSET + 4 * slot);
+				if (oldLocation == location) {
+					return;
+				}
+				boolean active = chunk.get(STATUS_OFFSET + slot) == ACTIVE;
+				int density = chunk.getInt(DENSITY_OFFSET + 4 * slot);
+				areas[oldLocation].remove(ordinal, active, density);
+				chunk.putInt(LOCATION_OFFSET + 4 * slot, location);
+				areas[location].add(ordinal, active, density);
+			}
+			notifyLocationChanged(sensor, areas[oldLocation].location);
+		}
+
+		@Override
+		public void onDensityChanged(TrafficSensor sensor, int staleDensity) {
+			int oldDensity;
+			synchronized (lockFor(ordinal)) {
+				ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+				int slot = ordinal & CHUNK_MASK;
+				int density = sensor.getCurrentTrafficDensity();
+				oldDensity = chunk.getInt(DENSITY_OFFSET + 4 * slot);
+				chunk.putInt(DENSITY_OFFSET + 4 * slot, density);
+				chunk.putLong(TIMESTAMP_OFFSET + 8 * slot, sensor.getTimestampMillis());
+				if (chunk.get(STATUS_OFFSET + slot) == ACTIVE) {
+					areas[chunk.getInt(LOCATION_OFFSET + 4 * slot)].adjustActive(0, density - oldDensity);
+					if (density != oldDensity) {
+						removeFromDensity(ordinal, oldDensity);
+						addToDensity(ordinal, density);
+					}
+				}
+			}
+			notifyDensityChanged(sensor, oldDensity);
+		}
+
+		@Override
+		public void onStatusChanged(TrafficSensor sensor, TrafficSensor.Status staleStatus) {
+			TrafficSensor.Status oldStatus;
+			synchronized (lockFor(ordinal)) {
+				ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+				int slot = ordinal & CHUNK_MASK;
+				oldStatus = STATUSES[chunk.get(STATUS_OFFSET + slot)];
+				if (oldStatus == sensor.getStatus()) {
+					return;
+				}
+				chunk.put(STATUS_OFFSET + slot, (byte) sensor.getStatus().ordinal());
+				boolean wasActive = oldStatus == TrafficSensor.Status.ACTIVE;
+				if (wasActive != sensor.isActive()) {
+					Area area = areas[chunk.getInt(LOCATION_OFFSET + 4 * slot)];
+					int direction = sensor.isActive() ? 1 : -1;
+					int density = chunk.getInt(DENSITY_OFFSET + 4 * slot);
+					area.adjustActive(direction, direction * density);
+					if (sensor.isActive()) {
+						addToDensity(ordinal, density);
+					}
+					else {
+						removeFromDensity(ordinal, density);
+					}
+				}
+			}
+			notifyStatusChanged(sensor, oldStatus);
+		}
+
+		@Override
+		public void onCoordinatesChanged(TrafficSensor sensor, double staleLatitude, double staleLongitude) {
+			double oldLatitude;
+			double oldLongitude;
+			synchronized (lockFor(ordinal)) {
+				ByteBuffer chunk = chunks[ordinal >>> CHUNK_BITS];
+				int slot = ordinal & CHUNK_MASK;
+				oldLatitude = chunk.getDouble(LATITUDE_OFFSET + 8 * slot);
+				oldLongitude = chunk.getDouble(LONGITUDE_OFFSET + 8 * slot);
+				if (oldLatitude == sensor.getLatitude() && oldLongitude == sensor.getLongitude()) {
+					return;
+				}
+				writeCoordinates(ordinal, chunk, slot, sensor.getLatitude(), sensor.getLongitude());
+			}
+			notifyCoordinatesChanged(sensor, oldLatitude, oldLongitude);
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.city.repository;
+
+import com.city.exception.InvalidInputException;
+
+//Position in a repository's update order. Every time a stored complaint is added or changed it takes
+//the next number of the repository's update sequence, so positions are distinct and strictly
+//increasing even if the wall clock stalls or steps back, and paging from a cursor neither skips nor
+//repeats updates. A cursor is only meaningful for the repository that issued it.
+public class ComplaintCursor implements Comparable<ComplaintCursor> {
+
+	private static final ComplaintCursor BEGINNING = new ComplaintCursor(0);
+
+	private final long sequence;
+
+	ComplaintCursor(long sequence) {
+		if (sequence < 0) {
+			throw new InvalidInputException("Cursor sequence cannot be negative");
+		}
+		this.sequence = sequence;
+	}
+
+	//Before every update
+	public static ComplaintCursor beginning() {
+		return BEGINNING;
+	}
+
+	public long getSequence() { return sequence; }
+
+	@Override
+	public int compareTo(ComplaintCursor other) {
+		return Long.compare(sequence, other.sequence);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof ComplaintCursor)) {
+			return false;
+		}
+		return sequence == ((ComplaintCursor) other).sequence;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(sequence);
+	}
+
+	public String toString() {
+		return "ComplaintCursor Details:" +
+				"\nSequence: " + sequence;
+	}
+
+}
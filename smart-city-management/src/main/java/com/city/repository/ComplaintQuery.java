@@ -0,0 +1,66 @@
+package com.city.repository;
+
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+
+import com.city.exception.InvalidInputException;
+import com.city.model.Complaint;
+
+//Compound complaint filter: a complaint matches if its status, priority and category are each among
+//the accepted values and it was created in [createdFrom, createdTo). Unset criteria accept everything.
+public class ComplaintQuery {
+
+	private EnumSet<Complaint.Status> statuses;
+	private EnumSet<Complaint.Priority> priorities;
+	private EnumSet<Complaint.Category> categories;
+	private LocalDateTime createdFrom;
+	private LocalDateTime createdTo;
+
+	public ComplaintQuery status(Complaint.Status... statuses) {
+		this.statuses = toSet(Complaint.Status.class, statuses, "status");
+		return this;
+	}
+
+	public ComplaintQuery priority(Complaint.Priority... priorities) {
+		this.priorities = toSet(Complaint.Priority.class, priorities, "priority");
+		return this;
+	}
+
+	public ComplaintQuery category(Complaint.Category... categories) {
+		this.categories = toSet(Complaint.Category.class, categories, "category");
+		return this;
+	}
+
+	public ComplaintQuery createdBetween(LocalDateTime from, LocalDateTime to) {
+		if (from == null || to == null) {
+			throw new InvalidInputException("Creation range bounds cannot be null");
+		}
+		if (from.isAfter(to)) {
+			throw new InvalidInputException("Creation range must not start after it ends");
+		}
+		this.createdFrom = from;
+		this.createdTo = to;
+		return this;
+	}
+
+	EnumSet<Complaint.Status> getStatuses() { return statuses; }
+	EnumSet<Complaint.Priority> getPriorities() { return priorities; }
+	EnumSet<Complaint.Category> getCategories() { return categories; }
+	LocalDateTime getCreatedFrom() { return createdFrom; }
+	LocalDateTime getCreatedTo() { return createdTo; }
+
+	private static <E extends Enum<E>> EnumSet<E> toSet(Class<E> type, E[] values, String name) {
+		if (values == null || values.length == 0) {
+			throw new InvalidInputException("At least one " + name + " is required");
+		}
+		EnumSet<E> set = EnumSet.noneOf(type);
+		for (E value : values) {
+			if (value == null) {
+				throw new InvalidInputException("Query " + name + " cannot be null");
+			}
+			set.add(value);
+		}
+		return set;
+	}
+
+}
@@ -1,10 +1,22 @@
 package com.city.repository;
 
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import com.city.exception.DuplicateEntityException;
 import com.city.exception.InvalidInputException;
@@ -12,10 +24,64 @@ import com.city.model.Complaint;
 
 public class ComplaintRepository {
 	
+	private static final long MILLIS_PER_DAY = 86_400_000L;
+	
+	public enum SearchMode {
+		ALL, ANY
+	}
+	
 	private Map<String, Complaint> complaints;
+	//Stored complaints are numbered with dense ordinals, reused after removal, which the bitmap indexes
+	//are built over. Every ordinal is in exactly one bitmap of each enum index; the listener moves it on
+	//in-place changes.
+	private Map<String, Integer> ordinals;
+	private Complaint[] complaintsByOrdinal;
+	//Creation time of each ordinal as local date-time millis, and one bitmap per creation day
+	private long[] createdAtMillis;
+	private int[] freeOrdinals;
+	private int freeOrdinalCount;
+	private int ordinalCount;
+	private Map<Complaint.Status, CompressedBitmap> complaintsByStatus;
+	private Map<Complaint.Priority, CompressedBitmap> complaintsByPriority;
+	private Map<Complaint.Category, CompressedBitmap> complaintsByCategory;
+	private NavigableMap<Long, CompressedBitmap> complaintsByDay;
+	//(time, ID) positions of every complaint, ordered for range scans
+	private NavigableSet<TimePosition> createdAtIndex;
+	private NavigableSet<TimePosition> updatedAtIndex;
+	//Complaint ID at the update sequence number of its latest change, for cursor paging
+	private long updateSequence;
+	private long[] updateSequences;
+	private NavigableMap<Long, String> complaintIdsByUpdate;
+	//Complaint IDs of each citizen in the order they were added; a replacement keeps its place
+	private Map<String, Set<String>> complaintIdsByCitizen;
+	//Description terms of every complaint
+	private DescriptionIndex descriptionIndex;
 
     public ComplaintRepository() {
         this.complaints = new HashMap<>();
+        this.ordinals = new HashMap<>();
+        this.complaintsByOrdinal = new Complaint[16];
+        this.createdAtMillis = new long[16];
+        this.updateSequences = new long[16];
+        this.freeOrdinals = new int[16];
+        this.complaintsByStatus = new EnumMap<>(Complaint.Status.class);
+        for (Complaint.Status status : Complaint.Status.values()) {
+        	complaintsByStatus.put(status, new CompressedBitmap());
+        }
+        this.complaintsByPriority = new EnumMap<>(Complaint.Priority.class);
+        for (Complaint.Priority priority : Complaint.Priority.values()) {
+        	complaintsByPriority.put(priority, new CompressedBitmap());
+        }
+        this.complaintsByCategory = new EnumMap<>(Complaint.Category.class);
+        for (Complaint.Category category : Complaint.Category.values()) {
+        	complaintsByCategory.put(category, new CompressedBitmap());
+        }
+        this.complaintsByDay = new TreeMap<>();
+        this.createdAtIndex = new TreeSet<>();
+        this.updatedAtIndex = new TreeSet<>();
+        this.complaintIdsByUpdate = new TreeMap<>();
+        this.complaintIdsByCitizen = new HashMap<>();
+        this.descriptionIndex = new DescriptionIndex();
     }
     
     public void addComplaint(Complaint complaint) {
@@ -29,6 +95,8 @@ public class ComplaintRepository {
         }
         
         complaints.put(complaintId, complaint);
+        index(complaint);
+        addToCitizen(complaint);
     }
     
     public Optional<Complaint> findComplaintById(String complaintId) {
@@ -39,6 +107,16 @@ public class ComplaintRepository {
         return Optional.ofNullable(complaints.get(complaintId));
     }
     
+    //Position of the complaint's latest change in this repository's update order
+    public Optional<ComplaintCursor> findCursor(String complaintId) {
+        if (complaintId == null || complaintId.trim().isEmpty()) {
+            throw new InvalidInputException("Complaint ID cannot be null or empty");
+        }
+        
+        Integer ordinal = ordinals.get(complaintId);
+        return ordinal == null ? Optional.empty() : Optional.of(new ComplaintCursor(updateSequences[ordinal]));
+    }
+    
     public void updateComplaint(String complaintId, Complaint updatedComplaint) {
         if (complaintId == null || complaintId.trim().isEmpty()) {
             throw new InvalidInputException("Complaint ID cannot be null or empty");
@@ -48,11 +126,25 @@ public class ComplaintRepository {
             throw new InvalidInputException("Updated complaint cannot be null");
         }
         
+        //Indexes are keyed by the complaint's own ID, so it must match the key it is stored under
+        if (!complaintId.equals(updatedComplaint.getComplaintId())) {
+            throw new InvalidInputException("Updated complaint has ID " + updatedComplaint.getComplaintId() +
+            		" instead of " + complaintId);
+        }
+        
         if (!complaints.containsKey(complaintId)) {
             throw new InvalidInputException("Complaint with ID " + complaintId + " not found");
         }
         
-        complaints.put(complaintId, updatedComplaint);
+        Complaint previousComplaint = complaints.put(complaintId, updatedComplaint);
+        if (previousComplaint != updatedComplaint) {
+        	unindex(previousComplaint);
+        	index(updatedComplaint);
+        	if (!previousComplaint.getCitizenId().equals(updatedComplaint.getCitizenId())) {
+        		removeFromCitizen(previousComplaint);
+        		addToCitizen(updatedComplaint);
+        	}
+        }
     }
     
     public boolean removeComplaint(String complaintId) {
@@ -60,7 +152,13 @@ public class ComplaintRepository {
             throw new InvalidInputException("Complaint ID cannot be null or empty");
         }
         
-        return complaints.remove(complaintId) != null;
+        Complaint removedComplaint = complaints.remove(complaintId);
+        if (removedComplaint == null) {
+        	return false;
+        }
+        unindex(removedComplaint);
+        removeFromCitizen(removedComplaint);
+        return true;
     }
     
     public Map<String, Complaint> getAllComplaints() {
@@ -72,27 +170,51 @@ public class ComplaintRepository {
             throw new InvalidInputException("Citizen ID cannot be null or empty");
         }
         
+        return getComplaintsByCitizen(citizenId, 0, Integer.MAX_VALUE);
+    }
+    
+    //One page of a citizen's complaints, oldest first; skips the offset without materializing the skipped complaints
+    public List<Complaint> getComplaintsByCitizen(String citizenId, int offset, int limit) {
+        if (citizenId == null || citizenId.trim().isEmpty()) {
+            throw new InvalidInputException("Citizen ID cannot be null or empty");
+        }
+        if (offset < 0) {
+            throw new InvalidInputException("Offset cannot be negative");
+        }
+        if (limit <= 0) {
+            throw new InvalidInputException("Limit must be positive");
+        }
+        
+        Set<String> complaintIds = complaintIdsByCitizen.get(citizenId);
         List<Complaint> citizenComplaints = new ArrayList<>();
-        for (Complaint complaint : complaints.values()) {
-            if (citizenId.equals(complaint.getCitizenId())) {
-                citizenComplaints.add(complaint);
-            }
+        if (complaintIds == null || offset >= complaintIds.size()) {
+        	return citizenComplaints;
+        }
+        Iterator<String> iterator = complaintIds.iterator();
+        for (int i = 0; i < offset; i++) {
+        	iterator.next();
+        }
+        while (iterator.hasNext() && citizenComplaints.size() < limit) {
+        	citizenComplaints.add(complaints.get(iterator.next()));
         }
         return citizenComplaints;
     }
     
+    public int getComplaintCountByCitizen(String citizenId) {
+        if (citizenId == null || citizenId.trim().isEmpty()) {
+            throw new InvalidInputException("Citizen ID cannot be null or empty");
+        }
+        
+        Set<String> complaintIds = complaintIdsByCitizen.get(citizenId);
+        return complaintIds == null ? 0 : complaintIds.size();
+    }
+    
     public List<Complaint> getComplaintsByPriority(Complaint.Priority priority) {
         if (priority == null) {
             throw new InvalidInputException("Priority cannot be null");
         }
         
-        List<Complaint> priorityComplaints = new ArrayList<>();
-        for (Complaint complaint : complaints.values()) {
-            if (priority == complaint.getPriority()) {
-                priorityComplaints.add(complaint);
-            }
-        }
-        return priorityComplaints;
+        return materialize(complaintsByPriority.get(priority));
     }
     
     public List<Complaint> getComplaintsByStatus(Complaint.Status status) {
@@ -100,13 +222,7 @@ public class ComplaintRepository {
             throw new InvalidInputException("Status cannot be null");
         }
         
-        List<Complaint> complaintByStatus = new ArrayList<>();
-        for (Complaint complaint : complaints.values()) {
-            if (status == complaint.getStatus()) {
-            	complaintByStatus.add(complaint);
-            }
-        }
-        return complaintByStatus;
+        return materialize(complaintsByStatus.get(status));
     }
     
     public List<Complaint> getComplaintsByCategory(Complaint.Category category) {
@@ -114,17 +230,278 @@ public class ComplaintRepository {
             throw new InvalidInputException("Category cannot be null");
         }
         
-        List<Complaint> complaintByCategory = new ArrayList<>();
-        for (Complaint complaint : complaints.values()) {
-            if (category == complaint.getCategory()) {
-            	complaintByCategory.add(complaint);
-            }
+        return materialize(complaintsByCategory.get(category));
+    }
+    
+    //Complaints matching every criterion of the query, in ordinal order
+    public List<Complaint> findComplaints(ComplaintQuery query) {
+        if (query == null) {
+            throw new InvalidInputException("Complaint query cannot be null");
+        }
+        
+        return materialize(evaluate(query));
+    }
+    
+    //Counts come from bitmap cardinalities, no complaint is visited
+    public int countComplaints(ComplaintQuery query) {
+        if (query == null) {
+            throw new InvalidInputException("Complaint query cannot be null");
         }
-        return complaintByCategory;
+        
+        return evaluate(query).cardinality();
+    }
+    
+    //Complaints created in [from, to), oldest first
+    public List<Complaint> getComplaintsCreatedBetween(LocalDateTime from, LocalDateTime to) {
+        return scan(createdAtIndex, from, to);
+    }
+    
+    //Complaints last updated in [from, to), least recently updated first
+    public List<Complaint> getComplaintsUpdatedBetween(LocalDateTime from, LocalDateTime to) {
+        return scan(updatedAtIndex, from, to);
+    }
+    
+    //Up to limit complaints whose last update comes after the cursor, in update order. Passing the
+    //position of the last complaint returned, findCursor(complaintId), resumes the sync; a complaint
+    //updated again since then moves behind the cursor and is returned again.
+    public List<Complaint> getComplaintsUpdatedAfter(ComplaintCursor cursor, int limit) {
+        if (cursor == null) {
+            throw new InvalidInputException("Cursor cannot be null");
+        }
+        if (limit <= 0) {
+            throw new InvalidInputException("Limit must be positive");
+        }
+        
+        List<Complaint> updated = new ArrayList<>();
+        for (String complaintId : complaintIdsByUpdate.tailMap(cursor.getSequence(), false).values()) {
+        	if (updated.size() == limit) {
+        		break;
+        	}
+        	updated.add(complaints.get(complaintId));
+        }
+        return updated;
+    }
+    
+    //Up to limit complaints whose description contains all (or any) of the query's words, best tf-idf
+    //score first. Words are case-insensitive runs of letters and digits.
+    public List<Complaint> searchComplaints(String query, SearchMode mode, int limit) {
+        if (query == null || query.trim().isEmpty()) {
+            throw new InvalidInputException("Search query cannot be null or empty");
+        }
+        if (mode == null) {
+            throw new InvalidInputException("Search mode cannot be null");
+        }
+        if (limit <= 0) {
+            throw new InvalidInputException("Limit must be positive");
+        }
+        
+        List<Complaint> matches = new ArrayList<>();
+        for (String complaintId : descriptionIndex.search(query, mode == SearchMode.ALL, limit)) {
+        	matches.add(complaints.get(complaintId));
+        }
+        return matches;
     }
     
     public int getComplaintCount() {
         return complaints.size();
     }
+    
+    private List<Complaint> scan(NavigableSet<TimePosition> index, LocalDateTime from, LocalDateTime to) {
+    	if (from == null || to == null) {
+    		throw new InvalidInputException("Time range bounds cannot be null");
+    	}
+    	if (from.isAfter(to)) {
+    		throw new InvalidInputException("Time range must not start after it ends");
+    	}
+    	
+    	List<Complaint> matches = new ArrayList<>();
+    	for (TimePosition position : index.subSet(new TimePosition(from, ""), true, new TimePosition(to, ""), false)) {
+    		matches.add(complaints.get(position.complaintId));
+    	}
+    	return matches;
+    }
+    
+    //ANDs the OR of each criterion's bitmaps; a query without criteria matches every complaint
+    private CompressedBitmap evaluate(ComplaintQuery query) {
+    	CompressedBitmap result = null;
+    	if (query.getStatuses() != null) {
+    		result = intersect(result, union(complaintsByStatus, query.getStatuses()));
+    	}
+    	if (query.getPriorities() != null) {
+    		result = intersect(result, union(complaintsByPriority, query.getPriorities()));
+    	}
+    	if (query.getCategories() != null) {
+    		result = intersect(result, union(complaintsByCategory, query.getCategories()));
+    	}
+    	if (query.getCreatedFrom() != null) {
+    		result = intersect(result, createdBetween(toMillis(query.getCreatedFrom()), toMillis(query.getCreatedTo())));
+    	}
+    	return result != null ? result : union(complaintsByStatus, EnumSet.allOf(Complaint.Status.class));
+    }
+    
+    private static CompressedBitmap intersect(CompressedBitmap result, CompressedBitmap criterion) {
+    	return result == null ? criterion : CompressedBitmap.and(result, criterion);
+    }
+    
+    private static <E extends Enum<E>> CompressedBitmap union(Map<E, CompressedBitmap> index, EnumSet<E> values) {
+    	CompressedBitmap result = new CompressedBitmap();
+    	for (E value : values) {
+    		result = CompressedBitmap.or(result, index.get(value));
+    	}
+    	return result;
+    }
+    
+    //Whole days inside the range are ORed in, the boundary days are filtered through the creation column
+    private CompressedBitmap createdBetween(long fromMillis, long toMillis) {
+    	CompressedBitmap result = new CompressedBitmap();
+    	if (fromMillis >= toMillis) {
+    		return result;
+    	}
+    	
+    	long firstDay = Math.floorDiv(fromMillis, MILLIS_PER_DAY);
+    	long lastDay = Math.floorDiv(toMillis - 1, MILLIS_PER_DAY);
+    	for (Map.Entry<Long, CompressedBitmap> day : complaintsByDay.subMap(firstDay, true, lastDay, true).entrySet()) {
+    		long dayStart = day.getKey() * MILLIS_PER_DAY;
+    		if (fromMillis <= dayStart && dayStart + MILLIS_PER_DAY <= toMillis) {
+    			result = CompressedBitmap.or(result, day.getValue());
+    		}
+    		else {
+    			CompressedBitmap partial = result;
+    			day.getValue().forEach(ordinal -> {
+    				if (createdAtMillis[ordinal] >= fromMillis && createdAtMillis[ordinal] < toMillis) {
+    					partial.add(ordinal);
+    				}
+    			});
+    		}
+    	}
+    	return result;
+    }
+    
+    private List<Complaint> materialize(CompressedBitmap bitmap) {
+    	List<Complaint> matches = new ArrayList<>(bitmap.cardinality());
+    	bitmap.forEach(ordinal -> matches.add(complaintsByOrdinal[ordinal]));
+    	return matches;
+    }
+    
+    //Creation times are local date-times, so they are encoded against UTC purely to get an ordered number
+    private static long toMillis(LocalDateTime dateTime) {
+    	return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+    
+    private void index(Complaint complaint) {
+    	int ordinal;
+    	if (freeOrdinalCount > 0) {
+    		ordinal = freeOrdinals[--freeOrdinalCount];
+    	}
+    	else {
+    		ordinal = ordinalCount++;
+    		if (ordinal == complaintsByOrdinal.length) {
+    			complaintsByOrdinal = Arrays.copyOf(complaintsByOrdinal, 2 * ordinal);
+    			createdAtMillis = Arrays.copyOf(createdAtMillis, 2 * ordinal);
+    			updateSequences = Arrays.copyOf(updateSequences, 2 * ordinal);
+    		}
+    	}
+    	ordinals.put(complaint.getComplaintId(), ordinal);
+    	complaintsByOrdinal[ordinal] = complaint;
+    	createdAtMillis[ordinal] = toMillis(complaint.getCreatedAt());
+    	descriptionIndex.add(complaint.getComplaintId(), complaint.getDescription());
+    	
+    	createdAtIndex.add(new TimePosition(complaint.getCreatedAt(), complaint.getComplaintId()));
+    	updatedAtIndex.add(new TimePosition(complaint.getUpdatedAt(), complaint.getComplaintId()));
+    	updateSequences[ordinal] = ++updateSequence;
+    	complaintIdsByUpdate.put(updateSequences[ordinal], complaint.getComplaintId());
+    	complaint.setListener(new IndexUpdater(ordinal));
+    	complaintsByStatus.get(complaint.getStatus()).add(ordinal);
+    	complaintsByPriority.get(complaint.getPriority()).add(ordinal);
+    	complaintsByCategory.get(complaint.getCategory()).add(ordinal);
+    	complaintsByDay.computeIfAbsent(Math.floorDiv(createdAtMillis[ordinal], MILLIS_PER_DAY), key -> new CompressedBitmap()).add(ordinal);
+    }
+    
+    private void unindex(Complaint complaint) {
+    	int ordinal = ordinals.remove(complaint.getComplaintId());
+    	complaint.setListener(null);
+    	createdAtIndex.remove(new TimePosition(complaint.getCreatedAt(), complaint.getComplaintId()));
+    	updatedAtIndex.remove(new TimePosition(complaint.getUpdatedAt(), complaint.getComplaintId()));
+    	complaintIdsByUpdate.remove(updateSequences[ordinal]);
+    	complaintsByStatus.get(complaint.getStatus()).remove(ordinal);
+    	complaintsByPriority.get(complaint.getPriority()).remove(ordinal);
+    	complaintsByCategory.get(complaint.getCategory()).remove(ordinal);
+    	descriptionIndex.remove(complaint.getComplaintId(), complaint.getDescription());
+    	long day = Math.floorDiv(createdAtMillis[ordinal], MILLIS_PER_DAY);
+    	CompressedBitmap dayComplaints = complaintsByDay.get(day);
+    	dayComplaints.remove(ordinal);
+    	if (dayComplaints.isEmpty()) {
+    		complaintsByDay.remove(day);
+    	}
+    	complaintsByOrdinal[ordinal] = null;
+    	if (freeOrdinalCount == freeOrdinals.length) {
+    		freeOrdinals = Arrays.copyOf(freeOrdinals, 2 * freeOrdinalCount);
+    	}
+    	freeOrdinals[freeOrdinalCount++] = ordinal;
+    }
+    
+    private void addToCitizen(Complaint complaint) {
+    	complaintIdsByCitizen.computeIfAbsent(complaint.getCitizenId(), key -> new LinkedHashSet<>()).add(complaint.getComplaintId());
+    }
+    
+    private void removeFromCitizen(Complaint complaint) {
+    	Set<String> complaintIds = complaintIdsByCitizen.get(complaint.getCitizenId());
+    	complaintIds.remove(complaint.getComplaintId());
+    	if (complaintIds.isEmpty()) {
+    		complaintIdsByCitizen.remove(complaint.getCitizenId());
+    	}
+    }
+    
+    private class IndexUpdater implements Complaint.Listener {
+    	private final int ordinal;
+    	
+    	private IndexUpdater(int ordinal) {
+    		this.ordinal = ordinal;
+    	}
+    	
+    	@Override
+    	public void onStatusChanged(Complaint complaint, Complaint.Status oldStatus) {
+    		complaintsByStatus.get(oldStatus).remove(ordinal);
+    		complaintsByStatus.get(complaint.getStatus()).add(ordinal);
+    	}
+    	
+    	@Override
+    	public void onPriorityChanged(Complaint complaint, Complaint.Priority oldPriority) {
+    		complaintsByPriority.get(oldPriority).remove(ordinal);
+    		complaintsByPriority.get(complaint.getPriority()).add(ordinal);
+    	}
+    	
+    	@Override
+    	public void onDescriptionChanged(Complaint complaint, String oldDescription) {
+    		descriptionIndex.remove(complaint.getComplaintId(), oldDescription);
+    		descriptionIndex.add(complaint.getComplaintId(), complaint.getDescription());
+    	}
+    	
+    	@Override
+    	public void onUpdated(Complaint complaint, LocalDateTime oldUpdatedAt) {
+    		updatedAtIndex.remove(new TimePosition(oldUpdatedAt, complaint.getComplaintId()));
+    		updatedAtIndex.add(new TimePosition(complaint.getUpdatedAt(), complaint.getComplaintId()));
+    		complaintIdsByUpdate.remove(updateSequences[ordinal]);
+    		updateSequences[ordinal] = ++updateSequence;
+    		complaintIdsByUpdate.put(updateSequences[ordinal], complaint.getComplaintId());
+    	}
+    }
+    
+    //Ordered by time and then by ID, so complaints sharing a timestamp still have distinct positions
+    private static class TimePosition implements Comparable<TimePosition> {
+    	private final LocalDateTime time;
+    	private final String complaintId;
+    	
+    	private TimePosition(LocalDateTime time, String complaintId) {
+    		this.time = time;
+    		this.complaintId = complaintId;
+    	}
+    	
+    	@Override
+    	public int compareTo(TimePosition other) {
+    		int byTime = time.compareTo(other.time);
+    		return byTime != 0 ? byTime : complaintId.compareTo(other.complaintId);
+    	}
+    }
 
 }
@@ -0,0 +1,341 @@
+package com.city.repository;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+//Set of non-negative ints in the roaring layout: values are grouped by their high 16 bits into
+//containers kept sorted by key. A container holds its low 16 bits either as a sorted char array
+//while it has at most ARRAY_MAX_SIZE values, or as a 65536-bit bitmap beyond that, so sparse and
+//dense ranges both stay compact. AND and OR work container by container, a word at a time
+//between bitmap containers.
+class CompressedBitmap {
+
+	private static final int ARRAY_MAX_SIZE = 4096;
+	private static final int BITMAP_WORDS = 1024;
+
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	CompressedBitmap() {
+		this.keys = new char[4];
+		this.containers = new Container[4];
+	}
+
+	void add(int value) {
+		char key = (char) (value >>> 16);
+		int index = Arrays.binarySearch(keys, 0, size, key);
+		if (index < 0) {
+			index = -index - 1;
+			insertContainer(index, key, new Container(new char[4], 0));
+		}
+		containers[index].add((char) value);
+	}
+
+	void remove(int value) {
+		int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+		if (index >= 0) {
+			containers[index].remove((char) value);
+			if (containers[index].cardinality == 0) {
+				removeContainer(index);
+			}
+		}
+	}
+
+	boolean contains(int value) {
+		int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+		return index >= 0 && containers[index].contains((char) value);
+	}
+
+	int cardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < size; i++) {
+			cardinality += containers[i].cardinality;
+		}
+		return cardinality;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	//Visits the values in ascending order
+	void forEach(IntConsumer consumer) {
+		for (int i = 0; i < size; i++) {
+			containers[i].forEach(keys[i] << 16, consumer);
+		}
+	}
+
+	static CompressedBitmap and(CompressedBitmap left, CompressedBitmap right) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < left.size && j < right.size) {
+			if (left.keys[i] < right.keys[j]) {
+				i++;
+			}
+			else if (left.keys[i] > right.keys[j]) {
+				j++;
+			}
+			else {
+				Container container = Container.and(left.containers[i], right.containers[j]);
+				if (container.cardinality > 0) {
+					result.insertContainer(result.size, left.keys[i], container);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	static CompressedBitmap or(CompressedBitmap left, CompressedBitmap right) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < left.size || j < right.size) {
+			if (j == right.size || (i < left.size && left.keys[i] < right.keys[j])) {
+				result.insertContainer(result.size, left.keys[i], left.containers[i].copy());
+				i++;
+			}
+			else if (i == left.size || left.keys[i] > right.keys[j]) {
+				result.insertContainer(result.size, right.keys[j], right.containers[j].copy());
+				j++;
+			}
+			else {
+				result.insertContainer(result.size, left.keys[i], Container.or(left.containers[i], right.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	private void insertContainer(int index, char key, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			containers = Arrays.copyOf(containers, 2 * size);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	private void removeContainer(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+		containers[--size] = null;
+	}
+
+	//Either values (sorted, first cardinality entries used) or words is set
+	private static class Container {
+		private char[] values;
+		private long[] words;
+		private int cardinality;
+
+		private Container(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		private Container(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		private void add(char value) {
+			if (words != null) {
+				long bit = 1L << value;
+				if ((words[value >>> 6] & bit) == 0) {
+					words[value >>> 6] |= bit;
+					cardinality++;
+				}
+				return;
+			}
+
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				return;
+			}
+			if (cardinality == ARRAY_MAX_SIZE) {
+				toBitmap();
+				add(value);
+				return;
+			}
+			index = -index - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX_SIZE, Math.max(4, 2 * cardinality)));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = value;
+			cardinality++;
+		}
+
+		private void remove(char value) {
+			if (words != null) {
+				long bit = 1L << value;
+				if ((words[value >>> 6] & bit) != 0) {
+					words[value >>> 6] &= ~bit;
+					cardinality--;
+					if (cardinality <= ARRAY_MAX_SIZE) {
+						toArray();
+					}
+				}
+				return;
+			}
+
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+				cardinality--;
+			}
+		}
+
+		private boolean contains(char value) {
+			if (words != null) {
+				return (words[value >>> 6] & (1L << value)) != 0;
+			}
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		private void forEach(int high, IntConsumer consumer) {
+			if (words == null) {
+				for (int i = 0; i < cardinality; i++) {
+					consumer.accept(high | values[i]);
+				}
+				return;
+			}
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					consumer.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		private Container copy() {
+			return words != null ? new Container(words.clone(), cardinality) : new Container(Arrays.copyOf(values, cardinality), cardinality);
+		}
+
+		private static Container and(Container left, Container right) {
+			if (left.words != null && right.words != null) {
+				long[] words = new long[BITMAP_WORDS];
+				int cardinality = 0;
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					words[i] = left.words[i] & right.words[i];
+					cardinality += Long.bitCount(words[i]);
+				}
+				Container container = new Container(words, cardinality);
+				if (cardinality <= ARRAY_MAX_SIZE) {
+					container.toArray();
+				}
+				return container;
+			}
+			if (left.words != null) {
+				return and(right, left);
+			}
+
+			char[] values = new char[left.cardinality];
+			int cardinality = 0;
+			if (right.words != null) {
+				for (int i = 0; i < left.cardinality; i++) {
+					if (right.contains(left.values[i])) {
+						values[cardinality++] = left.values[i];
+					}
+				}
+			}
+			else {
+				int i = 0;
+				int j = 0;
+				while (i < left.cardinality && j < right.cardinality) {
+					if (left.values[i] < right.values[j]) {
+						i++;
+					}
+					else if (left.values[i] > right.values[j]) {
+						j++;
+					}
+					else {
+						values[cardinality++] = left.values[i];
+						i++;
+						j++;
+					}
+				}
+			}
+			return new Container(values, cardinality);
+		}
+
+		private static Container or(Container left, Container right) {
+			if (left.words == null && right.words == null && left.cardinality + right.cardinality <= ARRAY_MAX_SIZE) {
+				char[] values = new char[left.cardinality + right.cardinality];
+				int cardinality = 0;
+				int i = 0;
+				int j = 0;
+				while (i < left.cardinality || j < right.cardinality) {
+					if (j == right.cardinality || (i < left.cardinality && left.values[i] < right.values[j])) {
+						values[cardinality++] = left.values[i++];
+					}
+					else if (i == left.cardinality || left.values[i] > right.values[j]) {
+						values[cardinality++] = right.values[j++];
+					}
+					else {
+						values[cardinality++] = left.values[i++];
+						j++;
+					}
+				}
+				return new Container(values, cardinality);
+			}
+
+			long[] words = left.words != null ? left.words.clone() : toWords(left);
+			if (right.words != null) {
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					words[i] |= right.words[i];
+				}
+			}
+			else {
+				for (int i = 0; i < right.cardinality; i++) {
+					words[right.values[i] >>> 6] |= 1L << right.values[i];
+				}
+			}
+			int cardinality = 0;
+			for (long word : words) {
+				cardinality += Long.bitCount(word);
+			}
+			Container container = new Container(words, cardinality);
+			if (cardinality <= ARRAY_MAX_SIZE) {
+				container.toArray();
+			}
+			return container;
+		}
+
+		private static long[] toWords(Container container) {
+			long[] words = new long[BITMAP_WORDS];
+			for (int i = 0; i < container.cardinality; i++) {
+				words[container.values[i] >>> 6] |= 1L << container.values[i];
+			}
+			return words;
+		}
+
+		private void toBitmap() {
+			words = toWords(this);
+			values = null;
+		}
+
+		private void toArray() {
+			char[] array = new char[cardinality];
+			int index = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					array[index++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			values = array;
+			words = null;
+		}
+	}
+
+}
@@ -0,0 +1,333 @@
+package com.city.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+//Inverted index over complaint descriptions. Every indexed description is a document with a fresh
+//int ID, so each term's postings are appended in ascending document order and stored as gaps between
+//IDs. Changing a description retires its old document instead of editing postings; a postings list is
+//rewritten once most of its documents are retired, and once most of all documents are retired the
+//live ones are renumbered densely in their existing order. Matches are ranked by tf-idf.
+class DescriptionIndex {
+
+	private Map<String, Postings> postingsByTerm;
+	//Complaint ID of each document, null once the document is retired
+	private String[] documents;
+	private int documentCount;
+	private int liveDocumentCount;
+	//Live document of each indexed complaint
+	private Map<String, Integer> documentsByComplaint;
+
+	DescriptionIndex() {
+		this.postingsByTerm = new HashMap<>();
+		this.documents = new String[16];
+		this.documentsByComplaint = new HashMap<>();
+	}
+
+	//Lower-cased runs of letters and digits
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<>();
+		if (text == null) {
+			return tokens;
+		}
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			}
+			else if (!wordChar && start >= 0) {
+				tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	//The complaint must not be indexed already
+	void add(String complaintId, String description) {
+		int document = documentCount++;
+		if (document == documents.length) {
+			documents = Arrays.copyOf(documents, 2 * document);
+		}
+		documents[document] = complaintId;
+		documentsByComplaint.put(complaintId, document);
+		liveDocumentCount++;
+
+		for (Map.Entry<String, Integer> term : termFrequencies(description).entrySet()) {
+			postingsByTerm.computeIfAbsent(term.getKey(), key -> new Postings()).append(document, term.getValue());
+		}
+	}
+
+	//description must be the text the complaint was added with
+	void remove(String complaintId, String description) {
+		int document = documentsByComplaint.remove(complaintId);
+		documents[document] = null;
+		liveDocumentCount--;
+
+		for (String term : termFrequencies(description).keySet()) {
+			Postings postings = postingsByTerm.get(term);
+			postings.liveDocuments--;
+			if (postings.liveDocuments == 0) {
+				postingsByTerm.remove(term);
+			}
+			else if (postings.size > 2 * postings.liveDocuments + 8) {
+				postings.compact(documents);
+			}
+		}
+		if (documentCount > 2 * liveDocumentCount + 16) {
+			renumber();
+		}
+	}
+
+	//Gives the live documents the IDs 0..liveDocumentCount-1 in their current order, so postings stay
+	//ascending and ties still rank older documents first
+	private void renumber() {
+		int[] renumbered = new int[documentCount];
+		int next = 0;
+		for (int document = 0; document < documentCount; document++) {
+			if (documents[document] == null) {
+				renumbered[document] = -1;
+				continue;
+			}
+			renumbered[document] = next;
+			documents[next] = documents[document];
+			documentsByComplaint.put(documents[next], next);
+			next++;
+		}
+		Arrays.fill(documents, next, documentCount, null);
+		documentCount = next;
+		if (documents.length > 4 * Math.max(documentCount, 16)) {
+			documents = Arrays.copyOf(documents, 2 * Math.max(documentCount, 8));
+		}
+
+		for (Postings postings : postingsByTerm.values()) {
+			postings.renumber(renumbered);
+		}
+	}
+
+	//Complaint IDs of the best matches, highest score first. With matchAll a document must contain
+	//every query term, otherwise any one of them.
+	List<String> search(String query, boolean matchAll, int limit) {
+		List<PostingsCursor> cursors = new ArrayList<>();
+		for (String term : new LinkedHashSet<>(tokenize(query))) {
+			Postings postings = postingsByTerm.get(term);
+			if (postings == null) {
+				if (matchAll) {
+					return new ArrayList<>();
+				}
+				continue;
+			}
+			cursors.add(new PostingsCursor(postings, Math.log(1 + (double) liveDocumentCount / postings.liveDocuments)));
+		}
+		if (cursors.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		PriorityQueue<Hit> best = new PriorityQueue<>(Hit::compareTo);
+		if (matchAll) {
+			intersect(cursors, best, limit);
+		}
+		else {
+			unite(cursors, best, limit);
+		}
+
+		List<String> complaintIds = new ArrayList<>(best.size());
+		while (!best.isEmpty()) {
+			complaintIds.add(documents[best.poll().document]);
+		}
+		Collections.reverse(complaintIds);
+		return complaintIds;
+	}
+
+	//Walks the shortest list and advances every other cursor to each of its documents
+	private void intersect(List<PostingsCursor> cursors, PriorityQueue<Hit> best, int limit) {
+		cursors.sort((left, right) -> Integer.compare(left.postings.size, right.postings.size));
+		PostingsCursor lead = cursors.get(0);
+		candidates:
+		while (lead.next()) {
+			if (documents[lead.document] == null) {
+				continue;
+			}
+			double score = lead.score();
+			for (int i = 1; i < cursors.size(); i++) {
+				PostingsCursor cursor = cursors.get(i);
+				if (!cursor.advanceTo(lead.document)) {
+					break candidates;
+				}
+				if (cursor.document != lead.document) {
+					continue candidates;
+				}
+				score += cursor.score();
+			}
+			offer(best, limit, lead.document, score);
+		}
+	}
+
+	//Merges all lists in document order, summing the scores of each document
+	private void unite(List<PostingsCursor> cursors, PriorityQueue<Hit> best, int limit) {
+		PriorityQueue<PostingsCursor> byDocument = new PriorityQueue<>((left, right) -> Integer.compare(left.document, right.document));
+		for (PostingsCursor cursor : cursors) {
+			if (cursor.next()) {
+				byDocument.add(cursor);
+			}
+		}
+		while (!byDocument.isEmpty()) {
+			int document = byDocument.peek().document;
+			double score = 0;
+			while (!byDocument.isEmpty() && byDocument.peek().document == document) {
+				PostingsCursor cursor = byDocument.poll();
+				score += cursor.score();
+				if (cursor.next()) {
+					byDocument.add(cursor);
+				}
+			}
+			if (documents[document] != null) {
+				offer(best, limit, document, score);
+			}
+		}
+	}
+
+	//Keeps the limit best hits in a min-heap
+	private static void offer(PriorityQueue<Hit> best, int limit, int document, double score) {
+		if (limit <= 0) {
+			return;
+		}
+		Hit hit = new Hit(document, score);
+		if (best.size() < limit) {
+			best.add(hit);
+		}
+		else if (hit.compareTo(best.peek()) > 0) {
+			best.poll();
+			best.add(hit);
+		}
+	}
+
+	private static Map<String, Integer> termFrequencies(String description) {
+		Map<String, Integer> frequencies = new HashMap<>();
+		for (String token : tokenize(description)) {
+			frequencies.merge(token, 1, Integer::sum);
+		}
+		return frequencies;
+	}
+
+	//Document IDs as gaps from the previous ID, with the term's frequency in each document
+	private static class Postings {
+		private int[] gaps = new int[4];
+		private int[] frequencies = new int[4];
+		private int size;
+		private int lastDocument = -1;
+		private int liveDocuments;
+
+		private void append(int document, int frequency) {
+			if (size == gaps.length) {
+				gaps = Arrays.copyOf(gaps, 2 * size);
+				frequencies = Arrays.copyOf(frequencies, 2 * size);
+			}
+			gaps[size] = document - lastDocument;
+			frequencies[size] = frequency;
+			size++;
+			lastDocument = document;
+			liveDocuments++;
+		}
+
+		//Moves every live document to its new ID and drops retired ones
+		private void renumber(int[] renumbered) {
+			int kept = 0;
+			int document = -1;
+			int previousKept = -1;
+			for (int i = 0; i < size; i++) {
+				document += gaps[i];
+				if (renumbered[document] >= 0) {
+					gaps[kept] = renumbered[document] - previousKept;
+					frequencies[kept] = frequencies[i];
+					previousKept = renumbered[document];
+					kept++;
+				}
+			}
+			size = kept;
+			lastDocument = previousKept;
+		}
+
+		//Drops retired documents and re-encodes the gaps
+		private void compact(String[] documents) {
+			int kept = 0;
+			int document = -1;
+			int previousKept = -1;
+			for (int i = 0; i < size; i++) {
+				document += gaps[i];
+				if (documents[document] != null) {
+					gaps[kept] = document - previousKept;
+					frequencies[kept] = frequencies[i];
+					previousKept = document;
+					kept++;
+				}
+			}
+			size = kept;
+			lastDocument = previousKept;
+			if (gaps.length > 4 * Math.max(size, 1)) {
+				gaps = Arrays.copyOf(gaps, 2 * Math.max(size, 2));
+				frequencies = Arrays.copyOf(frequencies, gaps.length);
+			}
+		}
+	}
+
+	private static class PostingsCursor {
+		private final Postings postings;
+		private final double idf;
+		private int index = -1;
+		private int document = -1;
+
+		private PostingsCursor(Postings postings, double idf) {
+			this.postings = postings;
+			this.idf = idf;
+		}
+
+		private boolean next() {
+			if (++index >= postings.size) {
+				return false;
+			}
+			document += postings.gaps[index];
+			return true;
+		}
+
+		//Moves to the first document at or after target; false once the list is exhausted
+		private boolean advanceTo(int target) {
+			while (document < target) {
+				if (!next()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private double score() {
+			return postings.frequencies[index] * idf;
+		}
+	}
+
+	//Ordered by score, then older documents first
+	private static class Hit implements Comparable<Hit> {
+		private final int document;
+		private final double score;
+
+		private Hit(int document, double score) {
+			this.document = document;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Hit other) {
+			int byScore = Double.compare(score, other.score);
+			return byScore != 0 ? byScore : Integer.compare(other.document, document);
+		}
+	}
+
+}
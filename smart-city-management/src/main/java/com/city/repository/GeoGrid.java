@@ -0,0 +1,148 @@
+package com.city.repository;
+
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+import com.city.exception.InvalidInputException;
+
+//Uniform latitude/longitude grid used by the traffic repositories for radius and bounding-box
+//queries. Cells are square in degrees, so a query visits the cells overlapping its box and then
+//filters the sensors in them exactly. A box whose minimum longitude exceeds its maximum crosses the
+//antimeridian and wraps around from 180 to -180.
+class GeoGrid {
+
+	static final double DEFAULT_CELL_METERS = 250;
+	private static final double METERS_PER_DEGREE = 111320;
+	private static final double EARTH_RADIUS_METERS = 6371000;
+
+	private final double cellDegrees;
+
+	GeoGrid(double cellMeters) {
+		if (!(cellMeters > 0)) {
+			throw new InvalidInputException("Grid cell size must be positive");
+		}
+		this.cellDegrees = cellMeters / METERS_PER_DEGREE;
+	}
+
+	long cellKey(double latitude, double longitude) {
+		return cellKey(row(latitude), column(longitude));
+	}
+
+	//Visits the cells of the box that are among occupiedCells. A box with more cells than are occupied
+	//is answered by filtering the occupied cells instead, so a query costs no more than the smaller of
+	//the two however large its box is.
+	void forEachCell(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			Set<Long> occupiedCells, LongConsumer visitor) {
+		if (minLongitude > maxLongitude) {
+			forEachCell(minLatitude, minLongitude, maxLatitude, 180, occupiedCells, visitor);
+			forEachCell(minLatitude, -180, maxLatitude, maxLongitude, occupiedCells, visitor);
+			return;
+		}
+
+		long firstRow = row(minLatitude);
+		long lastRow = row(maxLatitude);
+		long firstColumn = column(minLongitude);
+		long lastColumn = column(maxLongitude);
+		if ((double) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > occupiedCells.size()) {
+			for (long cell : occupiedCells) {
+				long row = cell >>> 32;
+				long column = cell & 0xFFFFFFFFL;
+				if (row >= firstRow && row <= lastRow && column >= firstColumn && column <= lastColumn) {
+					visitor.accept(cell);
+				}
+			}
+			return;
+		}
+		for (long row = firstRow; row <= lastRow; row++) {
+			for (long column = firstColumn; column <= lastColumn; column++) {
+				if (occupiedCells.contains(cellKey(row, column))) {
+					visitor.accept(cellKey(row, column));
+				}
+			}
+		}
+	}
+
+	//Bounding box that contains the circle, as {minLatitude, minLongitude, maxLatitude, maxLongitude}.
+	//Its minLongitude exceeds maxLongitude when the circle crosses the antimeridian, and a circle that
+	//reaches a pole spans every longitude.
+	static double[] boundingBox(double latitude, double longitude, double radiusMeters) {
+		double angularRadius = radiusMeters / EARTH_RADIUS_METERS;
+		double latitudeDelta = Math.toDegrees(angularRadius);
+		double minLatitude = latitude - latitudeDelta;
+		double maxLatitude = latitude + latitudeDelta;
+		if (minLatitude <= -90 || maxLatitude >= 90) {
+			return new double[] {Math.max(-90, minLatitude), -180, Math.min(90, maxLatitude), 180};
+		}
+
+		//Widest longitude reached by a circle that does not contain a pole
+		double longitudeDelta = Math.toDegrees(Math.asin(Math.sin(angularRadius) / Math.cos(Math.toRadians(latitude))));
+		if (longitudeDelta >= 180) {
+			return new double[] {minLatitude, -180, maxLatitude, 180};
+		}
+		double minLongitude = longitude - longitudeDelta;
+		double maxLongitude = longitude + longitudeDelta;
+		return new double[] {
+				minLatitude,
+				minLongitude < -180 ? minLongitude + 360 : minLongitude,
+				maxLatitude,
+				maxLongitude > 180 ? maxLongitude - 360 : maxLongitude
+		};
+	}
+
+	static boolean contains(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			double latitude, double longitude) {
+		if (latitude < minLatitude || latitude > maxLatitude) {
+			return false;
+		}
+		return minLongitude <= maxLongitude
+				? longitude >= minLongitude && longitude <= maxLongitude
+				: longitude >= minLongitude || longitude <= maxLongitude;
+	}
+
+	static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double latitudeDelta = Math.toRadians(latitude2 - latitude1);
+		double longitudeDelta = Math.toRadians(longitude2 - longitude1);
+		double a = Math.sin(latitudeDelta / 2) * Math.sin(latitudeDelta / 2) +
+				Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) *
+				Math.sin(longitudeDelta / 2) * Math.sin(longitudeDelta / 2);
+		return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	static void validatePoint(double latitude, double longitude) {
+		if (!(latitude >= -90 && latitude <= 90)) {
+			throw new InvalidInputException("Latitude must be between -90 and 90");
+		}
+		if (!(longitude >= -180 && longitude <= 180)) {
+			throw new InvalidInputException("Longitude must be between -180 and 180");
+		}
+	}
+
+	//A minLongitude above maxLongitude is a box across the antimeridian, latitudes cannot be inverted
+	static void validateBoundingBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+		validatePoint(minLatitude, minLongitude);
+		validatePoint(maxLatitude, maxLongitude);
+		if (minLatitude > maxLatitude) {
+			throw new InvalidInputException("Bounding box minimum latitude cannot exceed its maximum");
+		}
+	}
+
+	static void validateRadius(double latitude, double longitude, double radiusMeters) {
+		validatePoint(latitude, longitude);
+		if (!(radiusMeters >= 0)) {
+			throw new InvalidInputException("Radius cannot be negative");
+		}
+	}
+
+	private long row(double latitude) {
+		return (long) Math.floor((latitude + 90) / cellDegrees);
+	}
+
+	private long column(double longitude) {
+		return (long) Math.floor((longitude + 180) / cellDegrees);
+	}
+
+	private static long cellKey(long row, long column) {
+		return (row << 32) | column;
+	}
+
+}
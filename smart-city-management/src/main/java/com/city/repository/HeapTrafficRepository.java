@@ -0,0 +1,459 @@
+package com.city.repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.city.exception.DuplicateEntityException;
+import com.city.exception.InvalidInputException;
+import com.city.model.AreaStatistics;
+import com.city.model.TrafficSensor;
+
+//TrafficRepository backend that keeps the sensor instances and indexes them on the heap.
+//Safe for concurrent use: lookups and index reads never block, and updates to sensors of different
+//areas do not contend. Location and grid cell buckets are kept once created so that concurrent
+//writers never add a sensor to a bucket that another thread has just unlinked; empty buckets are
+//skipped. Density buckets are dropped once empty instead, since densities keep changing; the adds and
+//removals of one density serialize on its lock stripe, so a drop never loses a concurrent add.
+public class HeapTrafficRepository extends AbstractTrafficRepository {
+	
+	private static final int DENSITY_LOCK_STRIPES = 64;
+	
+	private Map<String, TrafficSensor> trafficSensors;
+	private Map<String, Area> sensorsByLocation;
+	private NavigableMap<Integer, Set<TrafficSensor>> activeSensorsByDensity;
+	private Map<Long, Set<TrafficSensor>> sensorsByCell;
+	private Object[] densityLocks;
+	private TrafficSensor.Listener indexUpdater;
+
+    public HeapTrafficRepository() {
+    	this(GeoGrid.DEFAULT_CELL_METERS);
+    }
+    
+    public HeapTrafficRepository(double gridCellMeters) {
+        super(gridCellMeters);
+        this.sensorsByCell = new ConcurrentHashMap<>();
+        this.trafficSensors = new ConcurrentHashMap<>();
+        this.sensorsByLocation = new ConcurrentHashMap<>();
+        this.activeSensorsByDensity = new ConcurrentSkipListMap<>();
+        this.densityLocks = new Object[DENSITY_LOCK_STRIPES];
+        for (int i = 0; i < DENSITY_LOCK_STRIPES; i++) {
+        	densityLocks[i] = new Object();
+        }
+        this.indexUpdater = new IndexUpdater();
+    }
+    
+    @Override
+    public void addSensor(TrafficSensor sensor) {
+        if (sensor == null) {
+            throw new InvalidInputException("Traffic sensor cannot be null");
+        }
+        
+        //Indexed inside the mapping's compute so that a concurrent replacement cannot unindex it first
+        String sensorId = sensor.getSensorId();
+        if (trafficSensors.computeIfAbsent(sensorId, key -> {
+        	index(sensor);
+        	return sensor;
+        }) != sensor) {
+            throw new DuplicateEntityException("Traffic sensor with ID " + sensorId + " already exists");
+        }
+        
+        notifyAdded(sensor);
+    }
+    
+    @Override
+    public Optional<TrafficSensor> findSensorById(String sensorId) {
+        if (sensorId == null || sensorId.trim().isEmpty()) {
+            throw new InvalidInputException("Sensor ID cannot be null or empty");
+        }
+        
+        return Optional.ofNullable(trafficSensors.get(sensorId));
+    }
+    
+    @Override
+    public TrafficSensor getSensor(String sensorId) {
+    	return trafficSensors.get(sensorId);
+    }
+    
+    //The stored instance is the sensor's lock
+    @Override
+    public Object getSensorLock(String sensorId) {
+    	return trafficSensors.get(sensorId);
+    }
+    
+    @Override
+    public void updateSensor(String sensorId, TrafficSensor updatedSensor) {
+        if (sensorId == null || sensorId.trim().isEmpty()) {
+            throw new InvalidInputException("Sensor ID cannot be null or empty");
+        }
+        
+        if (updatedSensor == null) {
+            throw new InvalidInputException("Updated sensor cannot be null");
+        }
+        
+        //The swap and the reindexing happen together inside the mapping's compute, so concurrent
+        //replacements of one sensor leave exactly the stored instance indexed
+        TrafficSensor[] previousSensor = new TrafficSensor[1];
+        trafficSensors.computeIfPresent(sensorId, (key, storedSensor) -> {
+        	previousSensor[0] = storedSensor;
+        	if (storedSensor != updatedSensor) {
+        		unindex(storedSensor);
+        		index(updatedSensor);
+        	}
+        	return updatedSensor;
+        });
+        if (previousSensor[0] == null) {
+            throw new InvalidInputException("Sensor with ID " + sensorId + " not found");
+        }
+        
+        if (previousSensor[0] != updatedSensor) {
+        	notifyAdded(updatedSensor);
+        }
+    }
+    
+    //The sensor's listener keeps the indexes in step with the setters
+    @Override
+    public DensityReadingResult recordDensityReading(String sensorId, int density) {
+    	TrafficSensor sensor = trafficSensors.get(sensorId);
+    	if (sensor == null) {
+    		return DensityReadingResult.SENSOR_NOT_FOUND;
+    	}
+    	
+    	synchronized (sensor) {
+    		if (sensor.getStatus() == TrafficSensor.Status.INACTIVE) {
+    			return DensityReadingResult.SENSOR_INACTIVE;
+    		}
+    		sensor.setCurrentTrafficDensity(density);
+    		if (sensor.getStatus() == TrafficSensor.Status.STALE) {
+    			sensor.setStatus(TrafficSensor.Status.ACTIVE);
+    		}
+    	}
+    	return DensityReadingResult.UPDATED;
+    }
+    
+    @Override
+    public Map<String, TrafficSensor> getAllSensors() {
+        return new HashMap<>(trafficSensors);
+    }
+    
+    @Override
+    public List<TrafficSensor> getSensorsByLocation(String location){
+    	if(location == null || location.trim().isEmpty()) {
+    		throw new InvalidInputException("Location cannot be null or empty");
+    	}
+    	
+    	Area area = sensorsByLocation.get(location);
+    	if(area == null) {
+    		return new ArrayList<>();
+    	}
+    	
+    	return new ArrayList<>(area.sensors);
+    }
+    
+    @Override
+    public Optional<AreaStatistics> findAreaStatistics(String location) {
+    	if(location == null || location.trim().isEmpty()) {
+    		throw new InvalidInputException("Location cannot be null or empty");
+    	}
+    	
+    	Area area = sensorsByLocation.get(location);
+    	if (area == null || area.sensors.isEmpty()) {
+    		return Optional.empty();
+    	}
+    	return Optional.of(area.toStatistics(location));
+    }
+    
+    @Override
+    public double getAverageActiveDensity(String location) {
+    	Area area = sensorsByLocation.get(location);
+    	return area == null ? Double.NaN : area.averageActiveDensity();
+    }
+    
+    @Override
+    public List<AreaStatistics> getAllAreaStatistics() {
+    	List<AreaStatistics> areaStatistics = new ArrayList<>();
+    	for (Map.Entry<String, Area> entry : sensorsByLocation.entrySet()) {
+    		if (!entry.getValue().sensors.isEmpty()) {
+    			areaStatistics.add(entry.getValue().toStatistics(entry.getKey()));
+    		}
+    	}
+    	return areaStatistics;
+    }
+    
+    @Override
+    public List<TrafficSensor> getActiveSensors() {
+        List<TrafficSensor> activeSensors = new ArrayList<>();
+        for (TrafficSensor sensor : trafficSensors.values()) {
+            if (sensor.isActive()) {
+                activeSensors.add(sensor);
+            }
+        }
+        return activeSensors;
+    }
+    
+    @Override
+    public List<TrafficSensor> getActiveSensorsWithDensityAtLeast(int minDensity) {
+    	List<TrafficSensor> matchingSensors = new ArrayList<>();
+    	for (Set<TrafficSensor> densitySensors : activeSensorsByDensity.tailMap(minDensity, true).descendingMap().values()) {
+    		matchingSensors.addAll(densitySensors);
+    	}
+    	return matchingSensors;
+    }
+    
+    @Override
+    public List<TrafficSensor> getMostCongestedSensors(int limit) {
+    	if (limit < 0) {
+    		throw new InvalidInputException("Limit cannot be negative");
+    	}
+    	
+    	List<TrafficSensor> congestedSensors = new ArrayList<>();
+    	for (Set<TrafficSensor> densitySensors : activeSensorsByDensity.descendingMap().values()) {
+    		for (TrafficSensor sensor : densitySensors) {
+    			if (congestedSensors.size() == limit) {
+    				return congestedSensors;
+    			}
+    			congestedSensors.add(sensor);
+    		}
+    	}
+    	return congestedSensors;
+    }
+    
+    @Override
+    public List<String> getMostCongestedLocations(int limit) {
+    	if (limit < 0) {
+    		throw new InvalidInputException("Limit cannot be negative");
+    	}
+    	
+    	Set<String> congestedLocations = new LinkedHashSet<>();
+    	for (Set<TrafficSensor> densitySensors : activeSensorsByDensity.descendingMap().values()) {
+    		for (TrafficSensor sensor : densitySensors) {
+    			if (congestedLocations.size() == limit) {
+    				return new ArrayList<>(congestedLocations);
+    			}
+    			congestedLocations.add(sensor.getLocation());
+    		}
+    	}
+    	return new ArrayList<>(congestedLocations);
+    }
+    
+    @Override
+    public List<TrafficSensor> getSensorsWithinRadius(double latitude, double longitude, double radiusMeters) {
+    	GeoGrid.validateRadius(latitude, longitude, radiusMeters);
+    	
+    	double[] box = GeoGrid.boundingBox(latitude, longitude, radiusMeters);
+    	List<TrafficSensor> nearbySensors = new ArrayList<>();
+    	getGeoGrid().forEachCell(box[0], box[1], box[2], box[3], sensorsByCell.keySet(), cell -> {
+    		Set<TrafficSensor> cellSensors = sensorsByCell.get(cell);
+    		if (cellSensors != null) {
+    			for (TrafficSensor sensor : cellSensors) {
+    				if (GeoGrid.distanceMeters(latitude, longitude, sensor.getLatitude(), sensor.getLongitude()) <= radiusMeters) {
+    					nearbySensors.add(sensor);
+    				}
+    			}
+    		}
+    	});
+    	
+    	nearbySensors.sort(Comparator.comparingDouble(
+    			sensor -> GeoGrid.distanceMeters(latitude, longitude, sensor.getLatitude(), sensor.getLongitude())));
+    	return nearbySensors;
+    }
+    
+    @Override
+    public List<TrafficSensor> getSensorsInBoundingBox(double minLatitude, double minLongitude, 
+    		double maxLatitude, double maxLongitude) {
+    	GeoGrid.validateBoundingBox(minLatitude, minLongitude, maxLatitude, maxLongitude);
+    	
+    	List<TrafficSensor> boxSensors = new ArrayList<>();
+    	getGeoGrid().forEachCell(minLatitude, minLongitude, maxLatitude, maxLongitude, sensorsByCell.keySet(), cell -> {
+    		Set<TrafficSensor> cellSensors = sensorsByCell.get(cell);
+    		if (cellSensors != null) {
+    			for (TrafficSensor sensor : cellSensors) {
+    				if (GeoGrid.contains(minLatitude, minLongitude, maxLatitude, maxLongitude, sensor.getLatitude(), sensor.getLongitude())) {
+    					boxSensors.add(sensor);
+    				}
+    			}
+    		}
+    	});
+    	return boxSensors;
+    }
+    
+    @Override
+    public int getSensorCount() {
+        return trafficSensors.size();
+    }
+    
+    @Override
+    public void forEachDensity(DensityVisitor visitor) {
+    	if (visitor == null) {
+    		throw new InvalidInputException("Density visitor cannot be null");
+    	}
+    	
+    	for (TrafficSensor sensor : trafficSensors.values()) {
+    		visitor.visit(sensor.getCurrentTrafficDensity(), sensor.isActive());
+    	}
+    }
+    
+    //Indexing holds the sensor's monitor so that no setter can run between attaching the listener and bucketing
+    private void index(TrafficSensor sensor) {
+    	synchronized (sensor) {
+    		sensor.setListener(indexUpdater);
+    		addToLocation(sensor, sensor.getLocation());
+    		if (sensor.isActive()) {
+    			addToDensity(sensor, sensor.getCurrentTrafficDensity());
+    		}
+    		if (sensor.hasCoordinates()) {
+    			addToCell(sensor, sensor.getLatitude(), sensor.getLongitude());
+    		}
+    	}
+    }
+    
+    private void unindex(TrafficSensor sensor) {
+    	synchronized (sensor) {
+    		sensor.setListener(null);
+    		removeFromLocation(sensor, sensor.getLocation());
+    		if (sensor.isActive()) {
+    			removeFromDensity(sensor, sensor.getCurrentTrafficDensity());
+    		}
+    		if (sensor.hasCoordinates()) {
+    			removeFromCell(sensor, sensor.getLatitude(), sensor.getLongitude());
+    		}
+    	}
+    }
+    
+    private void addToLocation(TrafficSensor sensor, String location) {
+    	sensorsByLocation.computeIfAbsent(location, key -> new Area()).add(sensor);
+    }
+    
+    private void removeFromLocation(TrafficSensor sensor, String location) {
+    	Area area = sensorsByLocation.get(location);
+    	if (area != null) {
+    		area.remove(sensor);
+    	}
+    }
+    
+    private void addToDensity(TrafficSensor sensor, int density) {
+    	synchronized (densityLocks[density & (DENSITY_LOCK_STRIPES - 1)]) {
+    		activeSensorsByDensity.computeIfAbsent(density, key -> ConcurrentHashMap.newKeySet()).add(sensor);
+    	}
+    }
+    
+    private void removeFromDensity(TrafficSensor sensor, int density) {
+    	synchronized (densityLocks[density & (DENSITY_LOCK_STRIPES - 1)]) {
+    		activeSensorsByDensity.computeIfPresent(density, (key, densitySensors) -> 
+    				densitySensors.remove(sensor) && densitySensors.isEmpty() ? null : densitySensors);
+    	}
+    }
+    
+    private void addToCell(TrafficSensor sensor, double latitude, double longitude) {
+    	sensorsByCell.computeIfAbsent(getGeoGrid().cellKey(latitude, longitude), key -> ConcurrentHashMap.newKeySet()).add(sensor);
+    }
+    
+    private void removeFromCell(TrafficSensor sensor, double latitude, double longitude) {
+    	Set<TrafficSensor> cellSensors = sensorsByCell.get(getGeoGrid().cellKey(latitude, longitude));
+    	if (cellSensors != null) {
+    		cellSensors.remove(sensor);
+    	}
+    }
+    
+    //Sensors of one location together with running totals over its active sensors. Membership and
+    //totals change together under the area's monitor, so a snapshot never sees one without the other;
+    //the set itself stays concurrent for lock-free listing.
+    private static class Area {
+    	private Set<TrafficSensor> sensors = ConcurrentHashMap.newKeySet();
+    	private int sensorCount;
+    	private int activeSensorCount;
+    	private long totalActiveDensity;
+    	
+    	private synchronized void add(TrafficSensor sensor) {
+    		if (sensors.add(sensor)) {
+    			sensorCount++;
+    			if (sensor.isActive()) {
+    				activeSensorCount++;
+    				totalActiveDensity += sensor.getCurrentTrafficDensity();
+    			}
+    		}
+    	}
+    	
+    	private synchronized void remove(TrafficSensor sensor) {
+    		if (sensors.remove(sensor)) {
+    			sensorCount--;
+    			if (sensor.isActive()) {
+    				activeSensorCount--;
+    				totalActiveDensity -= sensor.getCurrentTrafficDensity();
+    			}
+    		}
+    	}
+    	
+    	private synchronized void adjustActive(int sensors, long density) {
+    		activeSensorCount += sensors;
+    		totalActiveDensity += density;
+    	}
+    	
+    	private synchronized double averageActiveDensity() {
+    		return activeSensorCount == 0 ? Double.NaN : (double) totalActiveDensity / activeSensorCount;
+    	}
+    	
+    	private synchronized AreaStatistics toStatistics(String location) {
+    		return new AreaStatistics(location, sensorCount, activeSensorCount, totalActiveDensity);
+    	}
+    }
+    
+    //Keeps the indexes in sync with in-place sensor mutations and forwards them to registered listeners
+    private class IndexUpdater implements TrafficSensor.Listener {
+    	
+    	@Override
+    	public void onLocationChanged(TrafficSensor sensor, String oldLocation) {
+    		removeFromLocation(sensor, oldLocation);
+    		addToLocation(sensor, sensor.getLocation());
+    		notifyLocationChanged(sensor, oldLocation);
+    	}
+    	
+    	@Override
+    	public void onDensityChanged(TrafficSensor sensor, int oldDensity) {
+    		Area area = sensorsByLocation.get(sensor.getLocation());
+    		if (area != null && sensor.isActive()) {
+    			area.adjustActive(0, sensor.getCurrentTrafficDensity() - oldDensity);
+    		}
+    		if (sensor.isActive() && sensor.getCurrentTrafficDensity() != oldDensity) {
+    			removeFromDensity(sensor, oldDensity);
+    			addToDensity(sensor, sensor.getCurrentTrafficDensity());
+    		}
+    		notifyDensityChanged(sensor, oldDensity);
+    	}
+    	
+    	@Override
+    	public void onStatusChanged(TrafficSensor sensor, TrafficSensor.Status oldStatus) {
+    		Area area = sensorsByLocation.get(sensor.getLocation());
+    		boolean wasActive = oldStatus == TrafficSensor.Status.ACTIVE;
+    		if (area != null && wasActive != sensor.isActive()) {
+    			int direction = sensor.isActive() ? 1 : -1;
+    			area.adjustActive(direction, direction * sensor.getCurrentTrafficDensity());
+    		}
+    		if (wasActive && !sensor.isActive()) {
+    			removeFromDensity(sensor, sensor.getCurrentTrafficDensity());
+    		}
+    		else if (!wasActive && sensor.isActive()) {
+    			addToDensity(sensor, sensor.getCurrentTrafficDensity());
+    		}
+    		notifyStatusChanged(sensor, oldStatus);
+    	}
+    	
+    	@Override
+    	public void onCoordinatesChanged(TrafficSensor sensor, double oldLatitude, double oldLongitude) {
+    		if (!Double.isNaN(oldLatitude)) {
+    			removeFromCell(sensor, oldLatitude, oldLongitude);
+    		}
+    		addToCell(sensor, sensor.getLatitude(), sensor.getLongitude());
+    		notifyCoordinatesChanged(sensor, oldLatitude, oldLongitude);
+    	}
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.city.repository;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Latest reading and update time of every meter in primitive arrays indexed by a dense int slot.
+//Meter IDs are resolved to slots through an open-addressing table with linear probing, so
+//lookups and updates are O(1) and allocate nothing. Slots are never released.
+class MeterReadingStore {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String[] keys;
+	private int[] keySlots;
+	private double[] readings;
+	private long[] timestamps;
+	private int size;
+
+	MeterReadingStore() {
+		this.keys = new String[2 * INITIAL_CAPACITY];
+		this.keySlots = new int[2 * INITIAL_CAPACITY];
+		this.readings = new double[INITIAL_CAPACITY];
+		this.timestamps = new long[INITIAL_CAPACITY];
+	}
+
+	int slotOf(String meterId) {
+		int mask = keys.length - 1;
+		for (int i = spread(meterId.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask) {
+			if (keys[i].equals(meterId)) {
+				return keySlots[i];
+			}
+		}
+		return -1;
+	}
+
+	//Looks up an ID given as bytes without building a String. For ASCII the byte hash equals
+	//String.hashCode, other IDs are decoded as UTF-8 and looked up normally.
+	int slotOf(ByteBuffer source, int offset, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = source.get(offset + i);
+			if (b < 0) {
+				byte[] bytes = new byte[length];
+				for (int j = 0; j < length; j++) {
+					bytes[j] = source.get(offset + j);
+				}
+				return slotOf(new String(bytes, StandardCharsets.UTF_8));
+			}
+			hash = 31 * hash + b;
+		}
+
+		int mask = keys.length - 1;
+		for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask) {
+			if (matches(keys[i], source, offset, length)) {
+				return keySlots[i];
+			}
+		}
+		return -1;
+	}
+
+	//Returns the meter's existing slot or assigns the next free one
+	int add(String meterId) {
+		int slot = slotOf(meterId);
+		if (slot >= 0) {
+			return slot;
+		}
+
+		slot = size++;
+		if (slot == readings.length) {
+			readings = Arrays.copyOf(readings, 2 * slot);
+			timestamps = Arrays.copyOf(timestamps, 2 * slot);
+		}
+		//The key table stays at most half full so probe runs remain short
+		if (2 * size > keys.length) {
+			rehash(2 * keys.length);
+		}
+		insert(meterId, slot);
+		return slot;
+	}
+
+	double getReading(int slot) {
+		return readings[slot];
+	}
+
+	long getTimestamp(int slot) {
+		return timestamps[slot];
+	}
+
+	void update(int slot, double reading, long timestampMillis) {
+		readings[slot] = reading;
+		timestamps[slot] = timestampMillis;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private static boolean matches(String key, ByteBuffer source, int offset, int length) {
+		if (key.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key.charAt(i) != source.get(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insert(String meterId, int slot) {
+		int mask = keys.length - 1;
+		int i = spread(meterId.hashCode()) & mask;
+		while (keys[i] != null) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = meterId;
+		keySlots[i] = slot;
+	}
+
+	private void rehash(int capacity) {
+		String[] oldKeys = keys;
+		int[] oldSlots = keySlots;
+		keys = new String[capacity];
+		keySlots = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				insert(oldKeys[i], oldSlots[i]);
+			}
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+}
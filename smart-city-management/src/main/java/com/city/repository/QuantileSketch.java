@@ -0,0 +1,172 @@
+package com.city.repository;
+
+import com.city.exception.InvalidInputException;
+
+//Quantile sketch over non-negative values with relative error guarantees (DDSketch). A value v is
+//counted in the logarithmic bucket ceil(log_gamma(v)), so any quantile is returned within
+//relativeAccuracy of the true value. Buckets are plain counters, which makes removing a value and
+//merging sketches exact. At most maxBuckets buckets are kept; beyond that the lowest buckets are
+//collapsed together, trading accuracy of the smallest values for bounded memory.
+public class QuantileSketch {
+
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+	public static final int DEFAULT_MAX_BUCKETS = 2048;
+	//Values below this are counted as zero
+	private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+	private final double relativeAccuracy;
+	private final double gamma;
+	private final double logGamma;
+	private final int maxBuckets;
+	//counts[i] is the count of bucket offset + i
+	private long[] counts;
+	private int offset;
+	private int collapsedBelow;
+	private long zeroCount;
+	private long count;
+
+	public QuantileSketch() {
+		this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+	}
+
+	public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+		if(!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+			throw new InvalidInputException("Relative accuracy must be between 0 and 1");
+		}
+		if(maxBuckets <= 0) {
+			throw new InvalidInputException("Maximum bucket count must be positive");
+		}
+
+		this.relativeAccuracy = relativeAccuracy;
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(gamma);
+		this.maxBuckets = maxBuckets;
+		this.counts = new long[0];
+		this.collapsedBelow = Integer.MIN_VALUE;
+	}
+
+	public void add(double value) {
+		adjust(value, 1);
+	}
+
+	//Removes one occurrence of a value that was added before
+	public void remove(double value) {
+		adjust(value, -1);
+	}
+
+	public void merge(QuantileSketch other) {
+		if(other == null) {
+			throw new InvalidInputException("Sketch to merge cannot be null");
+		}
+		if(other.gamma != gamma) {
+			throw new InvalidInputException("Only sketches with the same relative accuracy can be merged");
+		}
+
+		for(int i = 0; i < other.counts.length; i++) {
+			if(other.counts[i] != 0) {
+				int bucket = bucketIndex(other.offset + i);
+				counts[bucket - offset] += other.counts[i];
+			}
+		}
+		zeroCount += other.zeroCount;
+		count += other.count;
+	}
+
+	//Value at quantile q in [0, 1], or NaN if the sketch is empty
+	public double quantile(double q) {
+		if(!(q >= 0 && q <= 1)) {
+			throw new InvalidInputException("Quantile must be between 0 and 1");
+		}
+		if(count == 0) {
+			return Double.NaN;
+		}
+
+		long rank = (long) (q * (count - 1));
+		long seen = zeroCount;
+		if(rank < seen) {
+			return 0.0;
+		}
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen > rank) {
+				return 2 * Math.pow(gamma, offset + i) / (gamma + 1);
+			}
+		}
+		return 2 * Math.pow(gamma, offset + counts.length - 1) / (gamma + 1);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getRelativeAccuracy() {
+		return relativeAccuracy;
+	}
+
+	public QuantileSketch copy() {
+		QuantileSketch copy = new QuantileSketch(relativeAccuracy, maxBuckets);
+		copy.counts = counts.clone();
+		copy.offset = offset;
+		copy.collapsedBelow = collapsedBelow;
+		copy.zeroCount = zeroCount;
+		copy.count = count;
+		return copy;
+	}
+
+	private void adjust(double value, long delta) {
+		if(!(value >= 0) || Double.isInfinite(value)) {
+			throw new InvalidInputException("Sketched values must be non-negative numbers");
+		}
+
+		if(value < MIN_INDEXABLE_VALUE) {
+			zeroCount += delta;
+		}
+		else {
+			int bucket = bucketIndex((int) Math.ceil(Math.log(value) / logGamma));
+			counts[bucket - offset] += delta;
+		}
+		count += delta;
+	}
+
+	//Maps a raw bucket to the bucket that counts it, growing or collapsing the window as needed
+	private int bucketIndex(int bucket) {
+		bucket = Math.max(bucket, collapsedBelow);
+		if(counts.length == 0) {
+			counts = new long[1];
+			offset = bucket;
+			return bucket;
+		}
+
+		int high = offset + counts.length - 1;
+		if(bucket < offset) {
+			//The window never spans more than maxBuckets, so collapsing below never touches stored counts
+			int low = Math.max(bucket, high - maxBuckets + 1);
+			if(low > bucket) {
+				collapsedBelow = low;
+				bucket = low;
+			}
+			long[] grown = new long[high - low + 1];
+			System.arraycopy(counts, 0, grown, offset - low, counts.length);
+			counts = grown;
+			offset = low;
+		}
+		else if(bucket > high) {
+			int low = Math.max(offset, bucket - maxBuckets + 1);
+			long collapsed = 0;
+			for(int i = 0; i < Math.min(low - offset, counts.length); i++) {
+				collapsed += counts[i];
+			}
+			long[] grown = new long[bucket - low + 1];
+			int kept = Math.max(0, offset + counts.length - low);
+			System.arraycopy(counts, counts.length - kept, grown, 0, kept);
+			grown[0] += collapsed;
+			if(low > offset) {
+				collapsedBelow = low;
+			}
+			counts = grown;
+			offset = low;
+		}
+		return bucket;
+	}
+
+}
@@ -0,0 +1,805 @@
+package com.city.repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.city.exception.InvalidInputException;
+import com.city.exception.ServiceUnavailableException;
+
+//Append-only history of (meterId, timestamp, reading) kept in a directory of segments. New readings
+//go to the active segment, which is appended to active.log and indexed per meter in memory. Once it
+//holds segmentCapacity readings it is sealed: its records are sorted by (meter, timestamp), written
+//to an immutable segment file and memory-mapped, so sealed history never lives on the heap.
+//Each meter keeps the record range and time bounds of its readings in every segment, so a boundary
+//lookup binary searches those bounds and then a single range of one segment. Every MERGE_FACTOR
+//consecutive segments of the same span are merged into one, keeping the number of files and mappings
+//logarithmic in the history. A segment file is named after the sealed sequence numbers it covers.
+//Sealed segments and their ranges are immutable and swapped in as a whole, so merges run on a
+//background thread without holding the lock, and readers share a read lock that only appends exclude.
+public class ReadingHistoryLog implements Closeable {
+
+	public static final int DEFAULT_SEGMENT_CAPACITY = 1 << 16;
+	private static final int RECORD_BYTES = 20;
+	private static final int MERGE_FACTOR = 8;
+	private static final String ACTIVE_FILE = "active.log";
+	private static final String METERS_FILE = "meters.dict";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String MERGE_SUFFIX = ".tmp";
+
+	//Receives a meter's readings in time order
+	public interface ReadingVisitor {
+		void visit(long timestampMillis, double reading);
+	}
+
+	private final Path directory;
+	private final int segmentCapacity;
+	private final ReentrantReadWriteLock lock;
+	private final ExecutorService merger;
+	private Map<String, Integer> meterKeys;
+	private long[] lastTimestamps;
+	private SealedHistory sealed;
+	private long nextSequence;
+	private boolean closed;
+	private volatile IOException mergeFailure;
+	private FileChannel activeChannel;
+	private FileChannel metersChannel;
+	private ByteBuffer recordBuffer;
+	private int[] activeMeters;
+	private long[] activeTimestamps;
+	private double[] activeReadings;
+	private int activeSize;
+	private Map<Integer, int[]> activeByMeter;
+
+	public ReadingHistoryLog(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_CAPACITY);
+	}
+
+	public ReadingHistoryLog(Path directory, int segmentCapacity) throws IOException {
+		if(directory == null) {
+			throw new InvalidInputException("History directory cannot be null");
+		}
+		if(segmentCapacity <= 0) {
+			throw new InvalidInputException("Segment capacity must be positive");
+		}
+
+		Files.createDirectories(directory);
+		this.directory = directory;
+		this.segmentCapacity = segmentCapacity;
+		this.lock = new ReentrantReadWriteLock();
+		this.merger = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "reading-history-merger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.meterKeys = new HashMap<>();
+		this.lastTimestamps = new long[16];
+		this.sealed = new SealedHistory(Collections.emptyList(), new MeterSegments[0]);
+		this.recordBuffer = ByteBuffer.allocate(RECORD_BYTES);
+		this.activeByMeter = new HashMap<>();
+
+		loadMeters();
+		loadSegments();
+		loadActive();
+	}
+
+	public void append(String meterId, long timestampMillis, double reading) {
+		if(meterId == null || meterId.trim().isEmpty()) {
+			throw new InvalidInputException("Meter ID cannot be null or empty");
+		}
+
+		lock.writeLock().lock();
+		try {
+			if(closed) {
+				throw new ServiceUnavailableException("Reading history in " + directory + " is closed");
+			}
+			int meter = meterKey(meterId);
+			//Readings of one meter stay in time order even if the clock steps back during a session
+			timestampMillis = Math.max(timestampMillis, lastTimestamps[meter]);
+
+			recordBuffer.clear();
+			recordBuffer.putInt(meter).putLong(timestampMillis).putDouble(reading).flip();
+			while(recordBuffer.hasRemaining()) {
+				activeChannel.write(recordBuffer);
+			}
+			addActive(meter, timestampMillis, reading);
+
+			if(activeSize == segmentCapacity) {
+				seal();
+			}
+		}
+		catch(IOException e) {
+			throw new ServiceUnavailableException("Could not append to reading history in " + directory, e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	//Latest reading of the meter at or before timestampMillis
+	public OptionalDouble readingAt(String meterId, long timestampMillis) {
+		lock.readLock().lock();
+		try {
+			Integer meter = meterKeys.get(meterId);
+			if(meter == null) {
+				return OptionalDouble.empty();
+			}
+
+			int[] positions = activeByMeter.get(meter);
+			if(positions != null) {
+				int index = upperBound(positions, timestampMillis) - 1;
+				if(index >= 1) {
+					return OptionalDouble.of(activeReadings[positions[index]]);
+				}
+			}
+			MeterSegments ranges = sealed.rangesOf(meter);
+			int range = ranges.lastStartingBy(timestampMillis);
+			if(range < 0) {
+				return OptionalDouble.empty();
+			}
+			MappedByteBuffer records = ranges.segments[range].records;
+			int index = search(records, ranges.starts[range], ranges.ends[range], timestampMillis, true) - 1;
+			return OptionalDouble.of(records.getDouble(index * RECORD_BYTES + 12));
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//Earliest reading of the meter at or after timestampMillis
+	public OptionalDouble firstReadingSince(String meterId, long timestampMillis) {
+		lock.readLock().lock();
+		try {
+			Integer meter = meterKeys.get(meterId);
+			if(meter == null) {
+				return OptionalDouble.empty();
+			}
+
+			MeterSegments ranges = sealed.rangesOf(meter);
+			int range = ranges.firstEndingFrom(timestampMillis);
+			if(range < ranges.size) {
+				MappedByteBuffer records = ranges.segments[range].records;
+				int index = search(records, ranges.starts[range], ranges.ends[range], timestampMillis, false);
+				return OptionalDouble.of(records.getDouble(index * RECORD_BYTES + 12));
+			}
+			int[] positions = activeByMeter.get(meter);
+			if(positions != null) {
+				int index = lowerBound(positions, timestampMillis);
+				if(index <= positions[0]) {
+					return OptionalDouble.of(activeReadings[positions[index]]);
+				}
+			}
+			return OptionalDouble.empty();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//Visits the meter's readings taken after fromMillis and at or before toMillis, oldest first
+	public void forEachReading(String meterId, long fromMillis, long toMillis, ReadingVisitor visitor) {
+		lock.readLock().lock();
+		try {
+			Integer meter = meterKeys.get(meterId);
+			if(meter == null || fromMillis >= toMillis) {
+				return;
+			}
+
+			MeterSegments ranges = sealed.rangesOf(meter);
+			for(int range = ranges.firstEndingFrom(fromMillis + 1); range < ranges.size && ranges.firstTimestamps[range] <= toMillis; range++) {
+				MappedByteBuffer records = ranges.segments[range].records;
+				for(int index = search(records, ranges.starts[range], ranges.ends[range], fromMillis, true); index < ranges.ends[range]; index++) {
+					long timestampMillis = records.getLong(index * RECORD_BYTES + 4);
+					if(timestampMillis > toMillis) {
+						return;
+					}
+					visitor.visit(timestampMillis, records.getDouble(index * RECORD_BYTES + 12));
+				}
+			}
+			int[] positions = activeByMeter.get(meter);
+			if(positions != null) {
+				for(int index = upperBound(positions, fromMillis); index <= positions[0] && activeTimestamps[positions[index]] <= toMillis; index++) {
+					visitor.visit(activeTimestamps[positions[index]], activeReadings[positions[index]]);
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return sealed.segments.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//Blocks until the segments sealed so far have been merged
+	public void awaitMerges() {
+		try {
+			merger.submit(() -> { }).get();
+		}
+		catch(RejectedExecutionException e) {
+			//Closed, and close waits for the merges
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Waiting for merges of " + directory + " was interrupted");
+		}
+		catch(ExecutionException e) {
+			throw new ServiceUnavailableException("Waiting for merges of " + directory + " failed: " + e.getCause());
+		}
+	}
+
+	//Finishes the merge in progress; a merge that failed is reported here, its inputs are still in place
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			closed = true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+
+		merger.shutdown();
+		try {
+			merger.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Closing reading history in " + directory + " was interrupted");
+		}
+
+		lock.writeLock().lock();
+		try {
+			activeChannel.close();
+			metersChannel.close();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		if(mergeFailure != null) {
+			throw mergeFailure;
+		}
+	}
+
+	private int meterKey(String meterId) throws IOException {
+		Integer meter = meterKeys.get(meterId);
+		if(meter != null) {
+			return meter;
+		}
+
+		meter = meterKeys.size();
+		ByteBuffer line = ByteBuffer.wrap((meterId + "\n").getBytes(StandardCharsets.UTF_8));
+		while(line.hasRemaining()) {
+			metersChannel.write(line);
+		}
+		registerMeter(meterId, meter);
+		return meter;
+	}
+
+	private void registerMeter(String meterId, int meter) {
+		meterKeys.put(meterId, meter);
+		if(meter == lastTimestamps.length) {
+			lastTimestamps = Arrays.copyOf(lastTimestamps, 2 * meter);
+		}
+		lastTimestamps[meter] = Long.MIN_VALUE;
+	}
+
+	//Per-meter positions are stored as {count, position...} so appends stay amortised O(1)
+	private void addActive(int meter, long timestampMillis, double reading) {
+		int position = activeSize++;
+		activeMeters[position] = meter;
+		activeTimestamps[position] = timestampMillis;
+		activeReadings[position] = reading;
+		lastTimestamps[meter] = timestampMillis;
+
+		int[] positions = activeByMeter.get(meter);
+		if(positions == null) {
+			positions = new int[4];
+		}
+		else if(positions[0] + 1 == positions.length) {
+			positions = Arrays.copyOf(positions, 2 * positions.length);
+		}
+		positions[++positions[0]] = position;
+		activeByMeter.put(meter, positions);
+	}
+
+	private void seal() throws IOException {
+		Integer[] order = new Integer[activeSize];
+		for(int i = 0; i < activeSize; i++) {
+			order[i] = i;
+		}
+		//Stable, so readings of a meter with equal timestamps keep their append order
+		Arrays.sort(order, (a, b) -> activeMeters[a] != activeMeters[b]
+				? Integer.compare(activeMeters[a], activeMeters[b])
+				: Long.compare(activeTimestamps[a], activeTimestamps[b]));
+
+		long sequence = nextSequence++;
+		Path segmentFile = directory.resolve(segmentName(sequence, sequence));
+		try(FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer records = ByteBuffer.allocate(activeSize * RECORD_BYTES);
+			for(int position : order) {
+				records.putInt(activeMeters[position]).putLong(activeTimestamps[position]).putDouble(activeReadings[position]);
+			}
+			records.flip();
+			while(records.hasRemaining()) {
+				channel.write(records);
+			}
+			channel.force(true);
+			publish(new Segment(segmentFile, sequence, sequence, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())),
+					Collections.emptyList());
+		}
+
+		//A crash before this truncation only replays readings that are already sealed, which lookups tolerate
+		activeChannel.truncate(0);
+		activeSize = 0;
+		activeByMeter.clear();
+		if(activeMeters.length > segmentCapacity) {
+			activeMeters = new int[segmentCapacity];
+			activeTimestamps = new long[segmentCapacity];
+			activeReadings = new double[segmentCapacity];
+		}
+		merger.execute(this::mergeSegments);
+	}
+
+	//Runs on the merge thread. The merged file is written from immutable sealed segments without the
+	//lock, which is only taken to swap the merged segment in for its inputs. The rename makes the merge
+	//durable first; inputs left behind by a crash are dropped on reopen because the merged file's name
+	//covers their sequence numbers.
+	private void mergeSegments() {
+		try {
+			while(mergeFailure == null) {
+				SealedHistory history;
+				lock.readLock().lock();
+				try {
+					history = sealed;
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+				List<Segment> merging = mergeableRun(history.segments);
+				if(merging == null) {
+					return;
+				}
+
+				Segment merged = merge(history, merging);
+				lock.writeLock().lock();
+				try {
+					publish(merged, merging);
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+				//The replaced mappings are released once readers holding them are done and they are collected
+				for(Segment segment : merging) {
+					Files.deleteIfExists(segment.file);
+				}
+			}
+		}
+		catch(IOException e) {
+			mergeFailure = e;
+		}
+	}
+
+	//The earliest MERGE_FACTOR consecutive segments covering equally many sealed segments, null if none.
+	//Merging the earliest run keeps spans non-increasing however far seals run ahead of the merges.
+	//Only this thread removes segments and seals only append, so the run stays in place while merging.
+	private static List<Segment> mergeableRun(List<Segment> segments) {
+		for(int base = 0; base + MERGE_FACTOR <= segments.size(); base++) {
+			List<Segment> run = segments.subList(base, base + MERGE_FACTOR);
+			long span = run.get(0).span();
+			long bytes = 0;
+			boolean mergeable = true;
+			for(Segment segment : run) {
+				bytes += segment.records.capacity();
+				mergeable &= segment.span() == span;
+			}
+			//A mapping and its record offsets are limited to int
+			if(mergeable && bytes <= Integer.MAX_VALUE) {
+				return run;
+			}
+		}
+		return null;
+	}
+
+	//A meter's ranges are in time order across segments, so the merged file is each meter's ranges concatenated
+	private Segment merge(SealedHistory history, List<Segment> merging) throws IOException {
+		Segment first = merging.get(0);
+		Segment last = merging.get(MERGE_FACTOR - 1);
+		Path mergedFile = directory.resolve(segmentName(first.firstSequence, last.lastSequence));
+		Path mergingFile = directory.resolve(mergedFile.getFileName() + MERGE_SUFFIX);
+		try(FileChannel channel = FileChannel.open(mergingFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer staging = ByteBuffer.allocate(1 << 16);
+			for(MeterSegments ranges : history.meters) {
+				for(int range = 0; ranges != null && range < ranges.size; range++) {
+					Segment segment = ranges.segments[range];
+					if(segment.firstSequence >= first.firstSequence && segment.lastSequence <= last.lastSequence) {
+						ByteBuffer records = segment.records.duplicate();
+						records.limit(ranges.ends[range] * RECORD_BYTES).position(ranges.starts[range] * RECORD_BYTES);
+						transfer(records, staging, channel);
+					}
+				}
+			}
+			staging.flip();
+			while(staging.hasRemaining()) {
+				channel.write(staging);
+			}
+			channel.force(true);
+		}
+		catch(IOException e) {
+			Files.deleteIfExists(mergingFile);
+			throw e;
+		}
+		Files.move(mergingFile, mergedFile, StandardCopyOption.ATOMIC_MOVE);
+
+		try(FileChannel channel = FileChannel.open(mergedFile, StandardOpenOption.READ)) {
+			return new Segment(mergedFile, first.firstSequence, last.lastSequence,
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private static void transfer(ByteBuffer records, ByteBuffer staging, FileChannel channel) throws IOException {
+		while(records.hasRemaining()) {
+			if(!staging.hasRemaining()) {
+				staging.flip();
+				while(staging.hasRemaining()) {
+					channel.write(staging);
+				}
+				staging.clear();
+			}
+			ByteBuffer chunk = records.duplicate();
+			chunk.limit(chunk.position() + Math.min(chunk.remaining(), staging.remaining()));
+			staging.put(chunk);
+			records.position(chunk.position());
+		}
+	}
+
+	//Swaps in sealed history with the segment in place of the replaced ones, or after the others when
+	//it replaces none. Callers hold the write lock, or are the constructor.
+	private void publish(Segment segment, List<Segment> replaced) {
+		List<Segment> segments = new ArrayList<>(sealed.segments.size() + 1);
+		for(Segment existing : sealed.segments) {
+			if(!replaced.contains(existing)) {
+				segments.add(existing);
+			}
+			else if(existing == replaced.get(0)) {
+				segments.add(segment);
+			}
+		}
+		if(replaced.isEmpty()) {
+			segments.add(segment);
+		}
+
+		MeterSegments[] meters = Arrays.copyOf(sealed.meters, Math.max(sealed.meters.length, meterKeys.size()));
+		for(int range = 0; range < segment.meters.length; range++) {
+			int meter = segment.meters[range];
+			meters[meter] = sealed.rangesOf(meter).replace(segment, range);
+		}
+		sealed = new SealedHistory(Collections.unmodifiableList(segments), meters);
+	}
+
+	//Index of the first record in [from, to) that belongs to a later meter
+	private static int meterEnd(MappedByteBuffer records, int from, int to, int meter) {
+		int low = from;
+		int high = to;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(records.getInt(mid * RECORD_BYTES) <= meter) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//Index in [from, to) of the first record after timestampMillis when inclusive, else the first at or after it
+	private static int search(MappedByteBuffer records, int from, int to, long timestampMillis, boolean inclusive) {
+		int low = from;
+		int high = to;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			long midTimestamp = records.getLong(mid * RECORD_BYTES + 4);
+			boolean before = inclusive ? midTimestamp <= timestampMillis : midTimestamp < timestampMillis;
+			if(before) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private int upperBound(int[] positions, long timestampMillis) {
+		int low = 1;
+		int high = positions[0] + 1;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(activeTimestamps[positions[mid]] <= timestampMillis) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private int lowerBound(int[] positions, long timestampMillis) {
+		int low = 1;
+		int high = positions[0] + 1;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(activeTimestamps[positions[mid]] < timestampMillis) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void loadMeters() throws IOException {
+		Path metersFile = directory.resolve(METERS_FILE);
+		if(Files.exists(metersFile)) {
+			for(String meterId : Files.readAllLines(metersFile, StandardCharsets.UTF_8)) {
+				if(!meterId.isEmpty()) {
+					registerMeter(meterId, meterKeys.size());
+				}
+			}
+		}
+		metersChannel = FileChannel.open(metersFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	//Segments are loaded in sequence order. A segment whose sequence numbers are covered by a merged
+	//segment outlived an interrupted merge and is deleted, as is an unfinished merge file.
+	private void loadSegments() throws IOException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + MERGE_SUFFIX)) {
+			for(Path file : files) {
+				Files.delete(file);
+			}
+		}
+
+		List<long[]> sequences = new ArrayList<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				String[] bounds = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()).split("-");
+				if(bounds.length != 2) {
+					throw new ServiceUnavailableException("Unrecognised segment file " + file);
+				}
+				sequences.add(new long[] {Long.parseLong(bounds[0]), Long.parseLong(bounds[1])});
+			}
+		}
+		sequences.sort((left, right) -> left[0] != right[0] ? Long.compare(left[0], right[0]) : Long.compare(right[1], left[1]));
+
+		for(long[] sequence : sequences) {
+			Path file = directory.resolve(segmentName(sequence[0], sequence[1]));
+			if(sequence[1] < nextSequence) {
+				Files.delete(file);
+				continue;
+			}
+			Segment segment;
+			try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				segment = new Segment(file, sequence[0], sequence[1], channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			}
+			publish(segment, Collections.emptyList());
+			//Later appends continue from each meter's last sealed timestamp
+			for(int range = 0; range < segment.meters.length; range++) {
+				int meter = segment.meters[range];
+				lastTimestamps[meter] = Math.max(lastTimestamps[meter], segment.lastTimestamps[range]);
+			}
+			nextSequence = sequence[1] + 1;
+		}
+	}
+
+	private static String segmentName(long firstSequence, long lastSequence) {
+		return String.format("%s%08d-%08d%s", SEGMENT_PREFIX, firstSequence, lastSequence, SEGMENT_SUFFIX);
+	}
+
+	//Replays the unsealed readings; a record torn by a crash is dropped. The log may have been written
+	//with a larger segment capacity, so everything is replayed before sealing.
+	private void loadActive() throws IOException {
+		activeChannel = FileChannel.open(directory.resolve(ACTIVE_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		int records = (int) (activeChannel.size() / RECORD_BYTES);
+		activeChannel.truncate((long) records * RECORD_BYTES);
+		activeMeters = new int[Math.max(segmentCapacity, records)];
+		activeTimestamps = new long[activeMeters.length];
+		activeReadings = new double[activeMeters.length];
+
+		ByteBuffer replay = ByteBuffer.allocate(records * RECORD_BYTES);
+		while(replay.hasRemaining() && activeChannel.read(replay, replay.position()) > 0) {
+		}
+		replay.flip();
+		activeChannel.position(activeChannel.size());
+
+		while(replay.remaining() >= RECORD_BYTES) {
+			addActive(replay.getInt(), replay.getLong(), replay.getDouble());
+		}
+		if(activeSize >= segmentCapacity) {
+			seal();
+		}
+	}
+
+	//A sealed segment and the record range and time bounds of every meter in it, found with one binary
+	//search per meter
+	private static class Segment {
+		private final Path file;
+		private final long firstSequence;
+		private final long lastSequence;
+		private final MappedByteBuffer records;
+		private final int[] meters;
+		private final int[] starts;
+		private final int[] ends;
+		private final long[] firstTimestamps;
+		private final long[] lastTimestamps;
+
+		private Segment(Path file, long firstSequence, long lastSequence, MappedByteBuffer records) {
+			this.file = file;
+			this.firstSequence = firstSequence;
+			this.lastSequence = lastSequence;
+			this.records = records;
+
+			int count = records.capacity() / RECORD_BYTES;
+			int[] rangeEnds = new int[Math.min(count, 16)];
+			int ranges = 0;
+			for(int start = 0; start < count; start = rangeEnds[ranges++]) {
+				if(ranges == rangeEnds.length) {
+					rangeEnds = Arrays.copyOf(rangeEnds, 2 * ranges);
+				}
+				rangeEnds[ranges] = meterEnd(records, start, count, records.getInt(start * RECORD_BYTES));
+			}
+			this.meters = new int[ranges];
+			this.starts = new int[ranges];
+			this.ends = Arrays.copyOf(rangeEnds, ranges);
+			this.firstTimestamps = new long[ranges];
+			this.lastTimestamps = new long[ranges];
+			for(int range = 0; range < ranges; range++) {
+				starts[range] = range == 0 ? 0 : ends[range - 1];
+				meters[range] = records.getInt(starts[range] * RECORD_BYTES);
+				firstTimestamps[range] = records.getLong(starts[range] * RECORD_BYTES + 4);
+				lastTimestamps[range] = records.getLong((ends[range] - 1) * RECORD_BYTES + 4);
+			}
+		}
+
+		//Number of sealed segments merged into this one
+		private long span() {
+			return lastSequence - firstSequence + 1;
+		}
+	}
+
+	//Segments in sequence order and the ranges of each meter in them; never changed once published
+	private static class SealedHistory {
+		private final List<Segment> segments;
+		private final MeterSegments[] meters;
+
+		private SealedHistory(List<Segment> segments, MeterSegments[] meters) {
+			this.segments = segments;
+			this.meters = meters;
+		}
+
+		private MeterSegments rangesOf(int meter) {
+			MeterSegments ranges = meter < meters.length ? meters[meter] : null;
+			return ranges != null ? ranges : MeterSegments.EMPTY;
+		}
+	}
+
+	//Record ranges of one meter in the segments that hold its readings, in segment (and so time) order.
+	//Immutable, a change copies the few ranges a meter has.
+	private static class MeterSegments {
+		private static final MeterSegments EMPTY = new MeterSegments(0);
+
+		private final int size;
+		private final Segment[] segments;
+		private final int[] starts;
+		private final int[] ends;
+		private final long[] firstTimestamps;
+		private final long[] lastTimestamps;
+
+		private MeterSegments(int size) {
+			this.size = size;
+			this.segments = new Segment[size];
+			this.starts = new int[size];
+			this.ends = new int[size];
+			this.firstTimestamps = new long[size];
+			this.lastTimestamps = new long[size];
+		}
+
+		//Copy with the given range of segment in place of the ranges in segments it covers, which are
+		//consecutive, or after the others when it covers none
+		private MeterSegments replace(Segment segment, int range) {
+			int from = 0;
+			while(from < size && segments[from].lastSequence < segment.firstSequence) {
+				from++;
+			}
+			int to = from;
+			while(to < size && segments[to].firstSequence <= segment.lastSequence) {
+				to++;
+			}
+
+			MeterSegments replaced = new MeterSegments(size - (to - from) + 1);
+			copy(0, replaced, 0, from);
+			replaced.segments[from] = segment;
+			replaced.starts[from] = segment.starts[range];
+			replaced.ends[from] = segment.ends[range];
+			replaced.firstTimestamps[from] = segment.firstTimestamps[range];
+			replaced.lastTimestamps[from] = segment.lastTimestamps[range];
+			copy(to, replaced, from + 1, size - to);
+			return replaced;
+		}
+
+		private void copy(int from, MeterSegments target, int to, int length) {
+			System.arraycopy(segments, from, target.segments, to, length);
+			System.arraycopy(starts, from, target.starts, to, length);
+			System.arraycopy(ends, from, target.ends, to, length);
+			System.arraycopy(firstTimestamps, from, target.firstTimestamps, to, length);
+			System.arraycopy(lastTimestamps, from, target.lastTimestamps, to, length);
+		}
+		//Last range whose first reading is at or before timestampMillis, -1 if none
+		private int lastStartingBy(long timestampMillis) {
+			int low = 0;
+			int high = size;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(firstTimestamps[mid] <= timestampMillis) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			return low - 1;
+		}
+
+		//First range whose last reading is at or after timestampMillis, size if none
+		private int firstEndingFrom(long timestampMillis) {
+			int low = 0;
+			int high = size;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(lastTimestamps[mid] < timestampMillis) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+}
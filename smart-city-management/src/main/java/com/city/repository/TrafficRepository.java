@@ -1,90 +1,78 @@
 package com.city.repository;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
-import com.city.exception.DuplicateEntityException;
-import com.city.exception.InvalidInputException;
+import com.city.model.AreaStatistics;
 import com.city.model.TrafficSensor;
 
-public class TrafficRepository {
-	
-	private Map<String, TrafficSensor> trafficSensors;
-
-    public TrafficRepository() {
-        this.trafficSensors = new HashMap<>();
-    }
-    
-    public void addSensor(TrafficSensor sensor) {
-        if (sensor == null) {
-            throw new InvalidInputException("Traffic sensor cannot be null");
-        }
-        
-        String sensorId = sensor.getSensorId();
-        if (trafficSensors.containsKey(sensorId)) {
-            throw new DuplicateEntityException("Traffic sensor with ID " + sensorId + " already exists");
-        }
-        
-        trafficSensors.put(sensorId, sensor);
-    }
-    
-    public Optional<TrafficSensor> findSensorById(String sensorId) {
-        if (sensorId == null || sensorId.trim().isEmpty()) {
-            throw new InvalidInputException("Sensor ID cannot be null or empty");
-        }
-        
-        return Optional.ofNullable(trafficSensors.get(sensorId));
-    }
-    
-    public void updateSensor(String sensorId, TrafficSensor updatedSensor) {
-        if (sensorId == null || sensorId.trim().isEmpty()) {
-            throw new InvalidInputException("Sensor ID cannot be null or empty");
-        }
-        
-        if (updatedSensor == null) {
-            throw new InvalidInputException("Updated sensor cannot be null");
-        }
-        
-        if (!trafficSensors.containsKey(sensorId)) {
-            throw new InvalidInputException("Sensor with ID " + sensorId + " not found");
-        }
-        
-        trafficSensors.put(sensorId, updatedSensor);
-    }
-    
-    public Map<String, TrafficSensor> getAllSensors() {
-        return new HashMap<>(trafficSensors);
-    }
-    
-    public List<TrafficSensor> getSensorsByLocation(String location){
-    	if(location == null || location.trim().isEmpty()) {
-    		throw new InvalidInputException("Location cannot be null or empty");
-    	}
-    	
-    	List<TrafficSensor> sensorsByLocation = new ArrayList<>();
-    	for(TrafficSensor sensor : trafficSensors.values()) {
-    		if(sensor.getLocation().equals(location))
-    			sensorsByLocation.add(sensor);
-    	}
-    	
-    	return sensorsByLocation;
-    }
-    
-    public List<TrafficSensor> getActiveSensors() {
-        List<TrafficSensor> activeSensors = new ArrayList<>();
-        for (TrafficSensor sensor : trafficSensors.values()) {
-            if (sensor.isActive()) {
-                activeSensors.add(sensor);
-            }
-        }
-        return activeSensors;
-    }
-    
-    public int getSensorCount() {
-        return trafficSensors.size();
-    }
+//Sensor store behind the traffic services. HeapTrafficRepository keeps TrafficSensor instances,
+//ColumnarTrafficRepository keeps primitive columns for city-scale deployments.
+public interface TrafficRepository {
+
+	enum DensityReadingResult {
+		UPDATED, SENSOR_NOT_FOUND, SENSOR_INACTIVE
+	}
+
+	//Receives the density and activity of every sensor during a full scan
+	interface DensityVisitor {
+		void visit(int density, boolean active);
+	}
+
+	void addSensor(TrafficSensor sensor);
+
+	Optional<TrafficSensor> findSensorById(String sensorId);
+
+	//Unvalidated lookup for bulk ingestion, returns null when the sensor does not exist
+	TrafficSensor getSensor(String sensorId);
+
+	//Monitor that serializes read-modify-write sequences on one sensor across every instance handed out
+	//for it, null when the sensor does not exist
+	Object getSensorLock(String sensorId);
+
+	void updateSensor(String sensorId, TrafficSensor updatedSensor);
+
+	//Unvalidated in-place density update for ingestion. A reading from a STALE sensor is its heartbeat,
+	//so it is active again once the density is in place; INACTIVE sensors are left untouched.
+	DensityReadingResult recordDensityReading(String sensorId, int density);
+
+	Map<String, TrafficSensor> getAllSensors();
+
+	List<TrafficSensor> getSensorsByLocation(String location);
+
+	Optional<AreaStatistics> findAreaStatistics(String location);
+
+	//Average density of the location's active sensors read straight from the running totals, NaN when it
+	//has none; allocation-free for per-update callers
+	double getAverageActiveDensity(String location);
+
+	List<AreaStatistics> getAllAreaStatistics();
+
+	List<TrafficSensor> getActiveSensors();
+
+	//Active sensors whose current density is at least minDensity, densest first
+	List<TrafficSensor> getActiveSensorsWithDensityAtLeast(int minDensity);
+
+	//Up to limit active sensors with the highest current density, densest first
+	List<TrafficSensor> getMostCongestedSensors(int limit);
+
+	//Up to limit distinct locations ordered by the density of their most congested active sensor
+	List<String> getMostCongestedLocations(int limit);
+
+	//Sensors with coordinates within radiusMeters of the point, nearest first
+	List<TrafficSensor> getSensorsWithinRadius(double latitude, double longitude, double radiusMeters);
+
+	//A box with minLongitude above maxLongitude crosses the antimeridian
+	List<TrafficSensor> getSensorsInBoundingBox(double minLatitude, double minLongitude,
+			double maxLatitude, double maxLongitude);
+
+	int getSensorCount();
+
+	//Full scan over primitive sensor state for reports, without copying the sensor map
+	void forEachDensity(DensityVisitor visitor);
+
+	//Registers a listener for in-place changes of every sensor held by this repository
+	void addSensorListener(TrafficSensor.Listener listener);
 
 }
@@ -1,32 +1,76 @@
 package com.city.repository;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalDouble;
 
 import com.city.exception.InvalidInputException;
+import com.city.exception.ServiceUnavailableException;
+import com.city.model.ConsumptionStatistics;
 import com.city.model.UtilityMeter;
 
+//Every method synchronizes on the repository, and callers that need several calls to see one state,
+//such as bulk ingestion and billing, hold the repository's monitor around them. Meters should only be
+//changed through the repository or while holding it, since their listeners update its indexes.
 public class UtilityRepository {
 	
 	private Map<String, UtilityMeter> utilityMeters;
+	//Meters of each property by utility type in indexing order, see billedMeter for which one is billed
+	private Map<String, Map<UtilityMeter.UtilityType, List<UtilityMeter>>> metersByProperty;
+	//Readings are served from the store; meters are bound to their slot and write changes through
+	private MeterReadingStore readingStore;
+	private UtilityMeter[] slotMeters;
+	private Map<UtilityMeter.UtilityType, RunningStatistics> readingStatistics;
+	private Map<UtilityMeter.UtilityType, QuantileSketch> readingSketches;
+	private ReadingHistoryLog historyLog;
+	private UtilityMeter.Listener[] meterListeners;
+	
+	public enum ReadingUpdateResult {
+		UPDATED, METER_NOT_FOUND, READING_DECREASED
+	}
 	
 	public UtilityRepository() {
+		this(null);
+	}
+	
+	//With a history log every stored reading is also appended to it, which enables period queries
+	public UtilityRepository(ReadingHistoryLog historyLog) {
+		this.historyLog = historyLog;
 		this.utilityMeters = new HashMap<>();
+		this.metersByProperty = new HashMap<>();
+		this.readingStore = new MeterReadingStore();
+		this.slotMeters = new UtilityMeter[0];
+		this.readingStatistics = new EnumMap<>(UtilityMeter.UtilityType.class);
+		this.readingSketches = new EnumMap<>(UtilityMeter.UtilityType.class);
+		this.meterListeners = new UtilityMeter.Listener[0];
+		for(UtilityMeter.UtilityType utilityType : UtilityMeter.UtilityType.values()) {
+			readingStatistics.put(utilityType, new RunningStatistics());
+			readingSketches.put(utilityType, new QuantileSketch());
+		}
 	}
 	
-	public void addMeter(UtilityMeter meter) {
+	public synchronized void addMeter(UtilityMeter meter) {
 		if(meter == null) {
 			throw new InvalidInputException("Utility Meter cannot be null");
 		}
 		
 		String meterId = meter.getMeterId();
-		utilityMeters.put(meterId, meter);
+		UtilityMeter previousMeter = utilityMeters.put(meterId, meter);
+		if(previousMeter != meter) {
+			if(previousMeter != null) {
+				unindex(previousMeter);
+			}
+			index(meter, readingStore.add(meterId));
+		}
 	}
 	
-	public Optional<UtilityMeter> findMeterById(String meterId){
+	public synchronized Optional<UtilityMeter> findMeterById(String meterId){
 		if(meterId == null || meterId.trim().isEmpty()) {
 			throw new InvalidInputException("Meter ID cannot be null or empty");
 		}
@@ -34,7 +78,7 @@ public class UtilityRepository {
 		return Optional.ofNullable(utilityMeters.get(meterId));
 	}
 	
-	public void updateMeter(String meterId, UtilityMeter updatedMeter) {
+	public synchronized void updateMeter(String meterId, UtilityMeter updatedMeter) {
 		if(meterId == null || meterId.trim().isEmpty()) {
 			throw new InvalidInputException("Meter ID cannot be null or empty");
 		}
@@ -47,10 +91,14 @@ public class UtilityRepository {
 			throw new InvalidInputException("Meter with ID " + meterId + " not found");
 		}
 		
-		utilityMeters.put(meterId, updatedMeter);
+		UtilityMeter previousMeter = utilityMeters.put(meterId, updatedMeter);
+		if(previousMeter != updatedMeter) {
+			unindex(previousMeter);
+			index(updatedMeter, readingStore.slotOf(meterId));
+		}
 	}
 	
-	public List<UtilityMeter> getMetersByType(UtilityMeter.UtilityType utilityType) {
+	public synchronized List<UtilityMeter> getMetersByType(UtilityMeter.UtilityType utilityType) {
 		if (utilityType == null) {
 			throw new InvalidInputException("Utility type cannot be null");
 		}
@@ -63,38 +111,290 @@ public class UtilityRepository {
 		return typeMeters;
 	}
 	
-	public List<UtilityMeter> getMetersByProperty(String propertyId) {
+	public synchronized List<UtilityMeter> getMetersByProperty(String propertyId) {
 		if (propertyId == null || propertyId.trim().isEmpty()) {
 			throw new InvalidInputException("Property ID cannot be null or empty");
 		}
-		List<UtilityMeter> propertyMeters = new ArrayList<>();
-		for (UtilityMeter meter : utilityMeters.values()) {
-			if (propertyId.equals(meter.getPropertyId())) {
-				propertyMeters.add(meter);
+		List<UtilityMeter> meters = new ArrayList<>();
+		Map<UtilityMeter.UtilityType, List<UtilityMeter>> propertyMeters = metersByProperty.get(propertyId);
+		if (propertyMeters != null) {
+			for (List<UtilityMeter> typeMeters : propertyMeters.values()) {
+				meters.addAll(typeMeters);
 			}
 		}
-		return propertyMeters;
+		return meters;
 	}
 	
-	public double getMeterReading(String meterId) {
+	public synchronized Optional<UtilityMeter> findMeterByProperty(String propertyId, UtilityMeter.UtilityType utilityType) {
+		if (propertyId == null || propertyId.trim().isEmpty()) {
+			throw new InvalidInputException("Property ID cannot be null or empty");
+		}
+		if (utilityType == null) {
+			throw new InvalidInputException("Utility type cannot be null");
+		}
+		
+		Map<UtilityMeter.UtilityType, List<UtilityMeter>> propertyMeters = metersByProperty.get(propertyId);
+		List<UtilityMeter> typeMeters = propertyMeters == null ? null : propertyMeters.get(utilityType);
+		return typeMeters == null ? Optional.empty() : Optional.of(billedMeter(typeMeters));
+	}
+	
+	public synchronized double getMeterReading(String meterId) {
+		if(meterId == null || meterId.trim().isEmpty()) {
+			throw new InvalidInputException("Meter ID cannot be null or empty");
+		}
+		int slot = readingStore.slotOf(meterId);
+		return slot < 0 ? 0.0 : readingStore.getReading(slot);
+	}
+	
+	//Meter readings only move forward; a lower reading leaves the meter unchanged
+	public synchronized ReadingUpdateResult recordMeterReading(String meterId, double reading) {
 		if(meterId == null || meterId.trim().isEmpty()) {
 			throw new InvalidInputException("Meter ID cannot be null or empty");
 		}
-		double currentReading = 0.0;
-		for(UtilityMeter meter : utilityMeters.values()) {
-			if(meter.getMeterId().equals(meterId)) {
-				currentReading = meter.getCurrentReading();
+		
+		//The meter's binding writes the new reading and its timestamp back to the store
+		return recordMeterReading(readingStore.slotOf(meterId), reading);
+	}
+	
+	//Count, mean and standard deviation of the current readings of one utility type, kept up to date on every change
+	public synchronized ConsumptionStatistics getConsumptionStatistics(UtilityMeter.UtilityType utilityType) {
+		if (utilityType == null) {
+			throw new InvalidInputException("Utility type cannot be null");
+		}
+		
+		RunningStatistics statistics = readingStatistics.get(utilityType);
+		return new ConsumptionStatistics(utilityType, statistics.count, statistics.mean, statistics.standardDeviation());
+	}
+	
+	//Current reading at quantile q of one utility type, within the sketch's relative accuracy; empty if there are no meters
+	public synchronized OptionalDouble findConsumptionQuantile(UtilityMeter.UtilityType utilityType, double quantile) {
+		if (utilityType == null) {
+			throw new InvalidInputException("Utility type cannot be null");
+		}
+		if (!(quantile >= 0 && quantile <= 1)) {
+			throw new InvalidInputException("Quantile must be between 0 and 1");
+		}
+		
+		QuantileSketch sketch = readingSketches.get(utilityType);
+		return sketch.getCount() == 0 ? OptionalDouble.empty() : OptionalDouble.of(sketch.quantile(quantile));
+	}
+	
+	//A copy that can be merged with the sketches of other repositories
+	public synchronized QuantileSketch getConsumptionSketch(UtilityMeter.UtilityType utilityType) {
+		if (utilityType == null) {
+			throw new InvalidInputException("Utility type cannot be null");
+		}
+		return readingSketches.get(utilityType).copy();
+	}
+	
+	//Bulk ingestion resolves meter IDs straight from file bytes. A meter keeps its slot for the lifetime
+	//of the repository; -1 means the meter is unknown.
+	public synchronized int findMeterSlot(ByteBuffer source, int offset, int length) {
+		return readingStore.slotOf(source, offset, length);
+	}
+	
+	public synchronized ReadingUpdateResult recordMeterReading(int meterSlot, double reading) {
+		if(meterSlot < 0 || meterSlot >= readingStore.size()) {
+			return ReadingUpdateResult.METER_NOT_FOUND;
+		}
+		if(readingStore.getReading(meterSlot) > reading) {
+			return ReadingUpdateResult.READING_DECREASED;
+		}
+		
+		slotMeters[meterSlot].setCurrentReading(reading);
+		return ReadingUpdateResult.UPDATED;
+	}
+	
+	//Reading of the meter at timestampMillis, or its first reading after it if it was installed later
+	public synchronized OptionalDouble findReadingAt(String meterId, long timestampMillis) {
+		if(meterId == null || meterId.trim().isEmpty()) {
+			throw new InvalidInputException("Meter ID cannot be null or empty");
+		}
+		if(historyLog == null) {
+			throw new ServiceUnavailableException("Reading history is not enabled");
+		}
+		
+		OptionalDouble reading = historyLog.readingAt(meterId, timestampMillis);
+		return reading.isPresent() ? reading : historyLog.firstReadingSince(meterId, timestampMillis);
+	}
+	
+	//Visits the meter's readings taken after fromMillis and at or before toMillis, oldest first. Without a
+	//history log only the meter's current reading is known.
+	public synchronized void forEachReading(String meterId, long fromMillis, long toMillis, ReadingHistoryLog.ReadingVisitor visitor) {
+		if(meterId == null || meterId.trim().isEmpty()) {
+			throw new InvalidInputException("Meter ID cannot be null or empty");
+		}
+		if(visitor == null) {
+			throw new InvalidInputException("Reading visitor cannot be null");
+		}
+		
+		if(historyLog != null) {
+			historyLog.forEachReading(meterId, fromMillis, toMillis, visitor);
+			return;
+		}
+		UtilityMeter meter = utilityMeters.get(meterId);
+		if(meter != null && meter.getLastUpdatedMillis() > fromMillis && meter.getLastUpdatedMillis() <= toMillis) {
+			visitor.visit(meter.getLastUpdatedMillis(), meter.getCurrentReading());
+		}
+	}
+	
+	//One meter per property and utility type, i.e. exactly the meters generateBill can bill
+	public synchronized List<UtilityMeter> getBillableMeters() {
+		List<UtilityMeter> billableMeters = new ArrayList<>(utilityMeters.size());
+		for(Map<UtilityMeter.UtilityType, List<UtilityMeter>> propertyMeters : metersByProperty.values()) {
+			for(List<UtilityMeter> typeMeters : propertyMeters.values()) {
+				billableMeters.add(billedMeter(typeMeters));
 			}
 		}
-		return currentReading;
+		return billableMeters;
 	}
 	
-	public Map<String,UtilityMeter> getAllMeters(){
+	public synchronized Map<String,UtilityMeter> getAllMeters(){
 		return new HashMap<>(utilityMeters);
 	}
 	
-	public int getMeterCount() {
+	public synchronized int getMeterCount() {
         return utilityMeters.size();
     }
+	
+	//Told of in-place changes of the stored meters once the repository's indexes reflect them
+	public synchronized void addMeterListener(UtilityMeter.Listener listener) {
+		if(listener == null) {
+			throw new InvalidInputException("Meter listener cannot be null");
+		}
+		
+		UtilityMeter.Listener[] listeners = Arrays.copyOf(meterListeners, meterListeners.length + 1);
+		listeners[meterListeners.length] = listener;
+		meterListeners = listeners;
+	}
+	
+	private void index(UtilityMeter meter, int slot) {
+		if(slot == slotMeters.length) {
+			slotMeters = Arrays.copyOf(slotMeters, Math.max(16, 2 * slot));
+		}
+		slotMeters[slot] = meter;
+		readingStore.update(slot, meter.getCurrentReading(), meter.getLastUpdatedMillis());
+		appendHistory(meter);
+		meter.setListener(new MeterBinding(slot));
+		addToProperty(meter, meter.getPropertyId(), meter.getUtilityType());
+		addReading(meter.getUtilityType(), meter.getCurrentReading());
+	}
+	
+	private void unindex(UtilityMeter meter) {
+		meter.setListener(null);
+		removeFromProperty(meter, meter.getPropertyId(), meter.getUtilityType());
+		removeReading(meter.getUtilityType(), meter.getCurrentReading());
+	}
+	
+	private void addReading(UtilityMeter.UtilityType utilityType, double reading) {
+		readingStatistics.get(utilityType).add(reading);
+		readingSketches.get(utilityType).add(reading);
+	}
+	
+	private void removeReading(UtilityMeter.UtilityType utilityType, double reading) {
+		readingStatistics.get(utilityType).remove(reading);
+		readingSketches.get(utilityType).remove(reading);
+	}
+	
+	private void appendHistory(UtilityMeter meter) {
+		if(historyLog != null) {
+			historyLog.append(meter.getMeterId(), meter.getLastUpdatedMillis(), meter.getCurrentReading());
+		}
+	}
+	
+	private void addToProperty(UtilityMeter meter, String propertyId, UtilityMeter.UtilityType utilityType) {
+		metersByProperty.computeIfAbsent(propertyId, key -> new EnumMap<>(UtilityMeter.UtilityType.class))
+				.computeIfAbsent(utilityType, key -> new ArrayList<>(1)).add(meter);
+	}
+	
+	//A property may hold several meters of one type, e.g. while a meter is being swapped out. The most
+	//recently indexed one is billed; the others keep their readings and are billed again once it is
+	//removed or moved to another property or type.
+	private static UtilityMeter billedMeter(List<UtilityMeter> typeMeters) {
+		return typeMeters.get(typeMeters.size() - 1);
+	}
+	
+	private void removeFromProperty(UtilityMeter meter, String propertyId, UtilityMeter.UtilityType utilityType) {
+		Map<UtilityMeter.UtilityType, List<UtilityMeter>> propertyMeters = metersByProperty.get(propertyId);
+		List<UtilityMeter> typeMeters = propertyMeters == null ? null : propertyMeters.get(utilityType);
+		if(typeMeters != null && typeMeters.remove(meter) && typeMeters.isEmpty()) {
+			propertyMeters.remove(utilityType);
+			if(propertyMeters.isEmpty()) {
+				metersByProperty.remove(propertyId);
+			}
+		}
+	}
+	
+	//Keeps the property index and the reading store in step with in-place changes of one stored meter
+	private class MeterBinding implements UtilityMeter.Listener {
+		private final int slot;
+		
+		private MeterBinding(int slot) {
+			this.slot = slot;
+		}
+		
+		@Override
+		public void onReadingChanged(UtilityMeter meter) {
+			removeReading(meter.getUtilityType(), readingStore.getReading(slot));
+			addReading(meter.getUtilityType(), meter.getCurrentReading());
+			readingStore.update(slot, meter.getCurrentReading(), meter.getLastUpdatedMillis());
+			appendHistory(meter);
+			for(UtilityMeter.Listener listener : meterListeners) {
+				listener.onReadingChanged(meter);
+			}
+		}
+		
+		@Override
+		public void onPropertyChanged(UtilityMeter meter, String oldPropertyId) {
+			removeFromProperty(meter, oldPropertyId, meter.getUtilityType());
+			addToProperty(meter, meter.getPropertyId(), meter.getUtilityType());
+			for(UtilityMeter.Listener listener : meterListeners) {
+				listener.onPropertyChanged(meter, oldPropertyId);
+			}
+		}
+		
+		@Override
+		public void onUtilityTypeChanged(UtilityMeter meter, UtilityMeter.UtilityType oldUtilityType) {
+			removeFromProperty(meter, meter.getPropertyId(), oldUtilityType);
+			addToProperty(meter, meter.getPropertyId(), meter.getUtilityType());
+			removeReading(oldUtilityType, meter.getCurrentReading());
+			addReading(meter.getUtilityType(), meter.getCurrentReading());
+			for(UtilityMeter.Listener listener : meterListeners) {
+				listener.onUtilityTypeChanged(meter, oldUtilityType);
+			}
+		}
+	}
+	
+	//Welford's running mean and sum of squared deviations, with removal so that a changed reading
+	//can be swapped out in O(1)
+	private static class RunningStatistics {
+		private int count;
+		private double mean;
+		private double squaredDeviations;
+		
+		private void add(double value) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			squaredDeviations += delta * (value - mean);
+		}
+		
+		private void remove(double value) {
+			if(count <= 1) {
+				count = 0;
+				mean = 0;
+				squaredDeviations = 0;
+				return;
+			}
+			double delta = value - mean;
+			count--;
+			mean -= delta / count;
+			squaredDeviations = Math.max(0, squaredDeviations - delta * (value - mean));
+		}
+		
+		private double standardDeviation() {
+			return count == 0 ? 0.0 : Math.sqrt(squaredDeviations / count);
+		}
+	}
 
 }
@@ -6,8 +6,8 @@ import java.util.Map;
 import com.city.exception.InvalidInputException;
 import com.city.model.Complaint;
 import com.city.model.EmergencyAlert;
-import com.city.model.TrafficSensor;
 import com.city.model.UtilityMeter;
+import com.city.repository.ComplaintQuery;
 import com.city.repository.ComplaintRepository;
 import com.city.repository.EmergencyRepository;
 import com.city.repository.TrafficRepository;
@@ -43,53 +43,25 @@ public class AnalyticsService {
 	}
 	
 	public String generateTrafficReport() {
-		Map<String,TrafficSensor> allSensors = trafficRepository.getAllSensors();
+		TrafficTally tally = new TrafficTally();
+		trafficRepository.forEachDensity(tally);
 		
-		if(allSensors.isEmpty()) {
+		if(tally.activeSensors + tally.inactiveSensors == 0) {
 			return "No Traffic Sensors available to generate Report";
 		}
 		
-		int totalSensors = allSensors.size();
-        int activeSensors = 0;
-        int inactiveSensors = 0;
-        int highTrafficSensors = 0;
-        int moderateTrafficSensors = 0;
-        int lowTrafficSensors = 0;
-        double totalDensity = 0.0;
-        
-        for (TrafficSensor sensor : allSensors.values()) {
-        	if (sensor.isActive()) {
-        		activeSensors++;
-        		double density = sensor.getCurrentTrafficDensity();
-        		totalDensity += density;
-
-        		//Categorize Traffic Levels
-        		if (density >= 60) {
-        			highTrafficSensors++;
-        		} 
-        		else if (density >= 20) {
-        			moderateTrafficSensors++;
-        		} 
-        		else {
-        			lowTrafficSensors++;
-        		}
-        	} 
-        	else {
-        		inactiveSensors++;
-        	}
-        }
-
-        double averageDensity = activeSensors > 0 ? totalDensity / activeSensors : 0;
+		int totalSensors = tally.activeSensors + tally.inactiveSensors;
+        double averageDensity = tally.activeSensors > 0 ? tally.totalDensity / tally.activeSensors : 0;
         
         return "\n=== TRAFFIC ANALYSIS REPORT ===" +
         "\nTotal Sensors: " + totalSensors +
-        "\nActive Sensors: " + activeSensors +
-        "\nInactive Sensors: " + inactiveSensors +
+        "\nActive Sensors: " + tally.activeSensors +
+        "\nInactive Sensors: " + tally.inactiveSensors +
         "\nAverage Traffic Density: " + averageDensity +
         "\n=Traffic Distribution=" + 
-        "\n - High Traffic:" + highTrafficSensors +
-        "\n - Moderate Traffic:" + moderateTrafficSensors +
-        "\n - Low Traffic:" + lowTrafficSensors;
+        "\n - High Traffic:" + tally.highTrafficSensors +
+        "\n - Moderate Traffic:" + tally.moderateTrafficSensors +
+        "\n - Low Traffic:" + tally.lowTrafficSensors;
 
 	}
 	
@@ -146,44 +118,23 @@ public class AnalyticsService {
         "\n - Average:" + avgGas + " Kg";
 	}
 	
+	//Every figure is a bitmap count in the complaint repository, no complaint is visited
 	public String getComplaintStatistics() {
-		Map<String, Complaint> allComplaints = complaintRepository.getAllComplaints();
+		int totalComplaints = complaintRepository.getComplaintCount();
 
-		if (allComplaints.isEmpty()) {
+		if (totalComplaints == 0) {
 			return "No Complaints available to generate Report";
 		}
 		
-		int totalComplaints = allComplaints.size();
-        int openComplaints = 0;
-        int inProgressComplaints = 0;
-        int resolvedComplaints = 0;
-        int highPriority = 0;
-        int mediumPriority = 0;
-        int lowPriority = 0;
-        int roadComplaints = 0;
-        int waterComplaints = 0;
-        int electricityComplaints = 0;
-        
-        for (Complaint complaint : allComplaints.values()) {
-          
-            switch (complaint.getStatus()) {
-                case OPEN: openComplaints++; break;
-                case IN_PROGRESS: inProgressComplaints++; break;
-                case RESOLVED: resolvedComplaints++; break;
-            }
-
-            switch (complaint.getPriority()) {
-                case HIGH: highPriority++; break;
-                case MEDIUM: mediumPriority++; break;
-                case LOW: lowPriority++; break;
-            }
-
-            switch (complaint.getCategory()) {
-                case ROAD: roadComplaints++; break;
-                case WATER: waterComplaints++; break;
-                case ELECTRICITY: electricityComplaints++; break;
-            }
-        }
+        int openComplaints = complaintRepository.countComplaints(new ComplaintQuery().status(Complaint.Status.OPEN));
+        int inProgressComplaints = complaintRepository.countComplaints(new ComplaintQuery().status(Complaint.Status.IN_PROGRESS));
+        int resolvedComplaints = complaintRepository.countComplaints(new ComplaintQuery().status(Complaint.Status.RESOLVED));
+        int highPriority = complaintRepository.countComplaints(new ComplaintQuery().priority(Complaint.Priority.HIGH));
+        int mediumPriority = complaintRepository.countComplaints(new ComplaintQuery().priority(Complaint.Priority.MEDIUM));
+        int lowPriority = complaintRepository.countComplaints(new ComplaintQuery().priority(Complaint.Priority.LOW));
+        int roadComplaints = complaintRepository.countComplaints(new ComplaintQuery().category(Complaint.Category.ROAD));
+        int waterComplaints = complaintRepository.countComplaints(new ComplaintQuery().category(Complaint.Category.WATER));
+        int electricityComplaints = complaintRepository.countComplaints(new ComplaintQuery().category(Complaint.Category.ELECTRICITY));
         
         double resolutionRate = totalComplaints > 0 ? (double) resolvedComplaints / totalComplaints * 100 : 0;
         
@@ -259,4 +210,37 @@ public class AnalyticsService {
         "\n - Security:" + securityAlerts;
 	}
 
+	
+	//Accumulates the traffic report counters from a primitive repository scan
+	private static class TrafficTally implements TrafficRepository.DensityVisitor {
+		private int activeSensors;
+		private int inactiveSensors;
+		private int highTrafficSensors;
+		private int moderateTrafficSensors;
+		private int lowTrafficSensors;
+		private double totalDensity;
+		
+		@Override
+		public void visit(int density, boolean active) {
+			if (!active) {
+				inactiveSensors++;
+				return;
+			}
+			
+			activeSensors++;
+			totalDensity += density;
+			
+			//Categorize Traffic Levels
+			if (density >= 60) {
+				highTrafficSensors++;
+			} 
+			else if (density >= 20) {
+				moderateTrafficSensors++;
+			} 
+			else {
+				lowTrafficSensors++;
+			}
+		}
+	}
+
 }
@@ -0,0 +1,175 @@
+package com.city.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.city.exception.InvalidInputException;
+import com.city.model.UtilityMeter;
+
+//Bills every billable meter in one run. The meters and their running charges are copied on the
+//calling thread, which owns the repository, so the fork-join leaves never touch the repository or the
+//reading history. Each leaf renders its bill records into a reusable buffer and writes it at a
+//reserved offset of the output file, so leaves never wait on each other.
+//Records appear in the file in no particular order.
+public class BatchBillingEngine {
+
+	private static final int LEAF_SIZE = 2048;
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	private final String[] propertyIds;
+	private final String[] meterIds;
+	private final UtilityMeter.UtilityType[] utilityTypes;
+	private final double[] readings;
+	private final double[] rates;
+	private final double[] amounts;
+	private final BillRenderer.Format format;
+
+	public static class BillingRunSummary {
+		private final long billCount;
+		private final double totalAmount;
+		private final long bytesWritten;
+		private final long elapsedNanos;
+
+		BillingRunSummary(long billCount, double totalAmount, long bytesWritten, long elapsedNanos) {
+			this.billCount = billCount;
+			this.totalAmount = totalAmount;
+			this.bytesWritten = bytesWritten;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public long getBillCount() { return billCount; }
+		public double getTotalAmount() { return totalAmount; }
+		public long getBytesWritten() { return bytesWritten; }
+		public long getElapsedNanos() { return elapsedNanos; }
+
+		public double getBillsPerSecond() {
+			return elapsedNanos == 0 ? 0.0 : billCount * 1e9 / elapsedNanos;
+		}
+
+		public String toString() {
+			return "BillingRunSummary Details:" +
+					"\nBills: " + billCount +
+					"\nTotal Amount: " + totalAmount +
+					"\nBytes Written: " + bytesWritten +
+					"\nElapsed Millis: " + elapsedNanos / 1_000_000 +
+					"\nBills Per Second: " + getBillsPerSecond();
+		}
+	}
+
+	BatchBillingEngine(UtilityMonitoringService billingService, List<UtilityMeter> meters, BillRenderer.Format format) {
+		int count = meters.size();
+		this.propertyIds = new String[count];
+		this.meterIds = new String[count];
+		this.utilityTypes = new UtilityMeter.UtilityType[count];
+		this.readings = new double[count];
+		this.rates = new double[count];
+		this.amounts = new double[count];
+		this.format = format;
+
+		for(int i = 0; i < count; i++) {
+			UtilityMeter meter = meters.get(i);
+			MeterCharge charge = billingService.chargeLifetime(meter);
+			propertyIds[i] = meter.getPropertyId();
+			meterIds[i] = meter.getMeterId();
+			utilityTypes[i] = meter.getUtilityType();
+			readings[i] = meter.getCurrentReading();
+			rates[i] = charge.getRate();
+			amounts[i] = charge.getAmount();
+		}
+	}
+
+	BillingRunSummary run(Path outputFile, ForkJoinPool pool) throws IOException {
+		long started = System.nanoTime();
+		try(FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.wrap(new BillRenderer(format).header().getBytes(StandardCharsets.UTF_8));
+			AtomicLong nextOffset = new AtomicLong(header.remaining());
+			writeFully(channel, header, 0);
+
+			double[] totals;
+			try {
+				totals = pool.invoke(new BillingTask(channel, nextOffset, 0, meterIds.length));
+			}
+			catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			channel.force(false);
+			return new BillingRunSummary((long) totals[0], totals[1], nextOffset.get(), System.nanoTime() - started);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer bytes, long offset) throws IOException {
+		while(bytes.hasRemaining()) {
+			offset += channel.write(bytes, offset);
+		}
+	}
+
+	//Returns {bills, total amount} for the meters in [from, to)
+	@SuppressWarnings("serial")
+	private class BillingTask extends RecursiveTask<double[]> {
+		private final FileChannel channel;
+		private final AtomicLong nextOffset;
+		private final int from;
+		private final int to;
+
+		private BillingTask(FileChannel channel, AtomicLong nextOffset, int from, int to) {
+			this.channel = channel;
+			this.nextOffset = nextOffset;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected double[] compute() {
+			if(to - from > LEAF_SIZE) {
+				int mid = (from + to) >>> 1;
+				BillingTask left = new BillingTask(channel, nextOffset, from, mid);
+				left.fork();
+				double[] right = new BillingTask(channel, nextOffset, mid, to).compute();
+				double[] leftTotals = left.join();
+				return new double[] {leftTotals[0] + right[0], leftTotals[1] + right[1]};
+			}
+
+			try {
+				return billRange();
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private double[] billRange() throws IOException {
+			BillRenderer renderer = new BillRenderer(format);
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+			double total = 0;
+
+			for(int i = from; i < to; i++) {
+				total += amounts[i];
+				if(!renderer.render(buffer, propertyIds[i], meterIds[i], utilityTypes[i], readings[i], rates[i], amounts[i])) {
+					flush(buffer);
+					if(!renderer.render(buffer, propertyIds[i], meterIds[i], utilityTypes[i], readings[i], rates[i], amounts[i])) {
+						throw new InvalidInputException("Bill for meter " + meterIds[i] + " does not fit in " + BUFFER_BYTES + " bytes");
+					}
+				}
+			}
+			flush(buffer);
+			return new double[] {to - from, total};
+		}
+
+		private void flush(ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			writeFully(channel, buffer, nextOffset.getAndAdd(buffer.remaining()));
+			buffer.clear();
+		}
+	}
+
+}
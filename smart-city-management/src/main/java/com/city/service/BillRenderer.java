@@ -0,0 +1,179 @@
+package com.city.service;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import com.city.exception.InvalidInputException;
+import com.city.model.UtilityMeter;
+
+//Writes bills straight into a caller's StringBuilder or ByteBuffer. Doubles are appended with
+//StringBuilder.append(double), which writes the digits into the builder without an intermediate
+//String, and the text scratch space is reused, so rendering a stream of bills allocates nothing per
+//bill. A renderer keeps that scratch space and must not be shared between threads.
+public class BillRenderer {
+
+	public enum Format {
+		TEXT, CSV, BINARY
+	}
+
+	//Binary records are fixed-width: zero-padded UTF-8 property and meter IDs, the utility type
+	//ordinal, then reading, rate and amount as big-endian doubles
+	public static final int BINARY_ID_BYTES = 32;
+	public static final int BINARY_RECORD_BYTES = 2 * BINARY_ID_BYTES + 1 + 3 * Double.BYTES;
+	private static final String CSV_HEADER = "propertyId,utilityType,meterId,reading,rate,amount\n";
+
+	private final Format format;
+	private StringBuilder scratch;
+	private char[] chars;
+	private CharBuffer charBuffer;
+	private CharsetEncoder encoder;
+
+	public BillRenderer(Format format) {
+		if(format == null) {
+			throw new InvalidInputException("Bill format cannot be null");
+		}
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	//Written once at the start of a file of records
+	public String header() {
+		return format == Format.CSV ? CSV_HEADER : "";
+	}
+
+	//Appends one bill without a trailing separator; binary bills cannot be rendered as text
+	public void render(StringBuilder out, String propertyId, String meterId, UtilityMeter.UtilityType utilityType,
+			double reading, double rate, double amount) {
+		switch(format) {
+		case TEXT:
+			out.append("Utility Bill for Property ").append(propertyId)
+				.append("\nUtility Type: ").append(utilityType.name())
+				.append("\nCurrent Reading: ").append(reading)
+				.append("\nRate: ").append(rate)
+				.append("\nTotal Amount: ").append(amount);
+			break;
+		case CSV:
+			out.append(propertyId).append(',')
+				.append(utilityType.name()).append(',')
+				.append(meterId).append(',')
+				.append(reading).append(',')
+				.append(rate).append(',')
+				.append(amount);
+			break;
+		default:
+			throw new InvalidInputException("Binary bills cannot be rendered as text");
+		}
+	}
+
+	//Appends one bill for the consumption of a billing period, which text bills show on their own line
+	//and CSV bills as from and to columns after the meter ID
+	public void render(StringBuilder out, String propertyId, String meterId, UtilityMeter.UtilityType utilityType,
+			LocalDateTime from, LocalDateTime to, double consumption, double rate, double amount) {
+		switch(format) {
+		case TEXT:
+			out.append("Utility Bill for Property ").append(propertyId)
+				.append("\nUtility Type: ").append(utilityType.name())
+				.append("\nBilling Period: ").append(from).append(" to ").append(to)
+				.append("\nConsumption: ").append(consumption)
+				.append("\nRate: ").append(rate)
+				.append("\nTotal Amount: ").append(amount);
+			break;
+		case CSV:
+			out.append(propertyId).append(',')
+				.append(utilityType.name()).append(',')
+				.append(meterId).append(',')
+				.append(from).append(',')
+				.append(to).append(',')
+				.append(consumption).append(',')
+				.append(rate).append(',')
+				.append(amount);
+			break;
+		default:
+			throw new InvalidInputException("Binary bills cannot be rendered as text");
+		}
+	}
+
+	//Appends one bill record to a stream of records, text records followed by their separator.
+	//Returns false and leaves the buffer unchanged if the record does not fit.
+	public boolean render(ByteBuffer out, String propertyId, String meterId, UtilityMeter.UtilityType utilityType,
+			double reading, double rate, double amount) {
+		if(format == Format.BINARY) {
+			if(out.remaining() < BINARY_RECORD_BYTES) {
+				return false;
+			}
+			int start = out.position();
+			try {
+				putId(out, propertyId);
+				putId(out, meterId);
+			}
+			catch(InvalidInputException e) {
+				out.position(start);
+				throw e;
+			}
+			out.put((byte) utilityType.ordinal()).putDouble(reading).putDouble(rate).putDouble(amount);
+			return true;
+		}
+
+		if(scratch == null) {
+			scratch = new StringBuilder(256);
+			chars = new char[256];
+			charBuffer = CharBuffer.wrap(chars);
+			encoder = StandardCharsets.UTF_8.newEncoder();
+		}
+		scratch.setLength(0);
+		render(scratch, propertyId, meterId, utilityType, reading, rate, amount);
+		scratch.append(format == Format.TEXT ? "\n\n" : "\n");
+		if(scratch.length() > chars.length) {
+			chars = new char[2 * scratch.length()];
+			charBuffer = CharBuffer.wrap(chars);
+		}
+		scratch.getChars(0, scratch.length(), chars, 0);
+		charBuffer.clear().limit(scratch.length());
+
+		int start = out.position();
+		encoder.reset();
+		CoderResult result = encoder.encode(charBuffer, out, true);
+		if(result.isOverflow() || encoder.flush(out).isOverflow()) {
+			out.position(start);
+			return false;
+		}
+		return true;
+	}
+
+	private static void putId(ByteBuffer out, String id) {
+		for(int i = 0; i < id.length(); i++) {
+			if(id.charAt(i) >= 0x80) {
+				putEncodedId(out, id);
+				return;
+			}
+		}
+		if(id.length() > BINARY_ID_BYTES) {
+			throw new InvalidInputException("ID " + id + " is longer than " + BINARY_ID_BYTES + " bytes");
+		}
+		for(int i = 0; i < id.length(); i++) {
+			out.put((byte) id.charAt(i));
+		}
+		for(int i = id.length(); i < BINARY_ID_BYTES; i++) {
+			out.put((byte) 0);
+		}
+	}
+
+	private static void putEncodedId(ByteBuffer out, String id) {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length > BINARY_ID_BYTES) {
+			throw new InvalidInputException("ID " + id + " is longer than " + BINARY_ID_BYTES + " bytes");
+		}
+		out.put(bytes);
+		for(int i = bytes.length; i < BINARY_ID_BYTES; i++) {
+			out.put((byte) 0);
+		}
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.city.service;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -8,6 +9,7 @@ import com.city.exception.ServiceUnavailableException;
 import com.city.model.Citizen;
 import com.city.model.Complaint;
 import com.city.repository.CitizenRepository;
+import com.city.repository.ComplaintCursor;
 import com.city.repository.ComplaintRepository;
 
 public class ComplaintService {
@@ -99,10 +101,37 @@ public class ComplaintService {
 		return complaintRepository.getComplaintsByCategory(category);
 	}
 	
+	public List<Complaint> getComplaintsByCitizen(String citizenId, int offset, int limit){
+		return complaintRepository.getComplaintsByCitizen(citizenId, offset, limit);
+	}
+	
+	public int getComplaintCountByCitizen(String citizenId){
+		return complaintRepository.getComplaintCountByCitizen(citizenId);
+	}
+	
+	//Incremental sync: complaints changed after the cursor, in update order
+	public List<Complaint> getComplaintsUpdatedAfter(ComplaintCursor cursor, int limit){
+		return complaintRepository.getComplaintsUpdatedAfter(cursor, limit);
+	}
+	
+	public List<Complaint> getComplaintsUpdatedSince(LocalDateTime since){
+		return complaintRepository.getComplaintsUpdatedBetween(since, LocalDateTime.MAX);
+	}
+	
+	//Ranked full-text search over descriptions, e.g. "pothole Main Street"
+	public List<Complaint> searchComplaints(String query, ComplaintRepository.SearchMode mode, int limit){
+		return complaintRepository.searchComplaints(query, mode, limit);
+	}
+	
 	public Optional<Complaint> findComplaintById(String complaintId){
 		return complaintRepository.findComplaintById(complaintId);
 	}
 	
+	//Where a sync that last received this complaint resumes
+	public Optional<ComplaintCursor> findComplaintCursor(String complaintId){
+		return complaintRepository.findCursor(complaintId);
+	}
+	
 	public void resolveComplaint(String complaintId) {
 		updateComplaintStatus(complaintId, Complaint.Status.RESOLVED);
 	}
@@ -0,0 +1,132 @@
+package com.city.service;
+
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.city.exception.InvalidInputException;
+
+//Short-horizon density forecasts per area using Holt's linear smoothing: an exponentially weighted
+//level plus a trend in density per minute. Readings are averaged over fixed time buckets and each
+//closed bucket is one smoothing step, so bursts of readings milliseconds apart cannot inflate the
+//trend; the trend is further clamped to maxTrendPerMinute. Each reading updates the area's state in O(1).
+public class CongestionForecaster {
+
+	private static final double MILLIS_PER_MINUTE = 60_000;
+
+	private final double levelSmoothing;
+	private final double trendSmoothing;
+	private final long bucketMillis;
+	private final double maxTrendPerMinute;
+	private Map<String, AreaState> areaStates;
+
+	public CongestionForecaster(double levelSmoothing, double trendSmoothing, long bucketMillis, double maxTrendPerMinute) {
+		if(!(levelSmoothing > 0 && levelSmoothing <= 1) || !(trendSmoothing > 0 && trendSmoothing <= 1)) {
+			throw new InvalidInputException("Smoothing factors must be in (0, 1]");
+		}
+		if(bucketMillis <= 0) {
+			throw new InvalidInputException("Bucket length must be positive");
+		}
+		if(!(maxTrendPerMinute >= 0)) {
+			throw new InvalidInputException("Maximum trend cannot be negative");
+		}
+
+		this.levelSmoothing = levelSmoothing;
+		this.trendSmoothing = trendSmoothing;
+		this.bucketMillis = bucketMillis;
+		this.maxTrendPerMinute = maxTrendPerMinute;
+		this.areaStates = new ConcurrentHashMap<>();
+	}
+
+	public void record(String area, double density, long timestampMillis) {
+		AreaState state = areaStates.get(area);
+		if(state == null) {
+			state = areaStates.computeIfAbsent(area, key -> new AreaState());
+		}
+		state.update(density, timestampMillis);
+	}
+
+	//Expected density of the area at targetMillis, empty if the area has no readings
+	public OptionalDouble forecast(String area, long targetMillis) {
+		AreaState state = areaStates.get(area);
+		return state == null ? OptionalDouble.empty() : OptionalDouble.of(state.forecast(targetMillis));
+	}
+
+	private class AreaState {
+		//Smoothed state as of the start of lastBucket, the most recent closed bucket
+		private double level;
+		private double trendPerMinute;
+		private long lastBucket;
+		private boolean initialised;
+		//Readings of the bucket still filling up
+		private long openBucket;
+		private double openSum;
+		private int openCount;
+
+		//Late readings are folded into the open bucket instead of reopening a closed one
+		private synchronized void update(double density, long timestampMillis) {
+			long bucket = Math.floorDiv(timestampMillis, bucketMillis);
+			if(openCount > 0 && bucket > openBucket) {
+				close();
+			}
+			if(openCount == 0) {
+				openBucket = bucket;
+			}
+			openSum += density;
+			openCount++;
+		}
+
+		private synchronized double forecast(long targetMillis) {
+			//The open bucket counts as if it closed now, without committing it
+			double forecastLevel = level;
+			double forecastTrend = trendPerMinute;
+			long baseBucket = lastBucket;
+			if(openCount > 0) {
+				double average = openSum / openCount;
+				if(!initialised) {
+					forecastLevel = average;
+					forecastTrend = 0;
+				}
+				else {
+					double minutes = minutesBetween(lastBucket, openBucket);
+					forecastLevel = smoothLevel(average, minutes);
+					forecastTrend = smoothTrend(forecastLevel, minutes);
+				}
+				baseBucket = openBucket;
+			}
+			double horizonMinutes = Math.max(0, targetMillis - baseBucket * bucketMillis) / MILLIS_PER_MINUTE;
+			return Math.max(0, forecastLevel + forecastTrend * horizonMinutes);
+		}
+
+		private void close() {
+			double average = openSum / openCount;
+			if(!initialised) {
+				level = average;
+				initialised = true;
+			}
+			else {
+				double minutes = minutesBetween(lastBucket, openBucket);
+				double smoothedLevel = smoothLevel(average, minutes);
+				trendPerMinute = smoothTrend(smoothedLevel, minutes);
+				level = smoothedLevel;
+			}
+			lastBucket = openBucket;
+			openSum = 0;
+			openCount = 0;
+		}
+
+		private double smoothLevel(double average, double minutes) {
+			return levelSmoothing * average + (1 - levelSmoothing) * (level + trendPerMinute * minutes);
+		}
+
+		private double smoothTrend(double smoothedLevel, double minutes) {
+			double trend = trendSmoothing * (smoothedLevel - level) / minutes + (1 - trendSmoothing) * trendPerMinute;
+			return Math.max(-maxTrendPerMinute, Math.min(maxTrendPerMinute, trend));
+		}
+
+		private double minutesBetween(long fromBucket, long toBucket) {
+			return (toBucket - fromBucket) * bucketMillis / MILLIS_PER_MINUTE;
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.city.service;
+
+import java.util.Arrays;
+
+import com.city.exception.InvalidInputException;
+
+//Fixed-capacity ring buffer of density readings for one sensor. Readings are kept in primitive
+//arrays with running sums and min/max segment trees, so recording is allocation-free and windowed
+//queries cost a binary search plus O(log capacity). Access is synchronized on the history; it is
+//normally written by the single thread that owns the sensor's setter.
+public class DensityHistory {
+
+	private final int capacity;
+	private final long[] timestamps;
+	private final long[] totalBefore;
+	private final int[] minTree;
+	private final int[] maxTree;
+	private long recorded;
+	private long total;
+
+	public DensityHistory(int capacity) {
+		if(capacity <= 0) {
+			throw new InvalidInputException("History capacity must be positive");
+		}
+
+		this.capacity = capacity;
+		this.timestamps = new long[capacity];
+		this.totalBefore = new long[capacity];
+		this.minTree = new int[2 * capacity];
+		this.maxTree = new int[2 * capacity];
+		Arrays.fill(minTree, Integer.MAX_VALUE);
+		Arrays.fill(maxTree, Integer.MIN_VALUE);
+	}
+
+	public synchronized void record(int density, long timestampMillis) {
+		int slot = (int) (recorded % capacity);
+
+		//Clock adjustments must not break the time ordering the window search relies on
+		if(recorded > 0) {
+			timestampMillis = Math.max(timestampMillis, timestamps[(int) ((recorded - 1) % capacity)]);
+		}
+
+		timestamps[slot] = timestampMillis;
+		totalBefore[slot] = total;
+		total += density;
+		recorded++;
+
+		int node = slot + capacity;
+		minTree[node] = density;
+		maxTree[node] = density;
+		for(node >>= 1; node >= 1; node >>= 1) {
+			minTree[node] = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+			maxTree[node] = Math.max(maxTree[2 * node], maxTree[2 * node + 1]);
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return (int) Math.min(recorded, capacity);
+	}
+
+	public synchronized int countSince(long sinceMillis) {
+		return (int) (recorded - firstSequenceSince(sinceMillis));
+	}
+
+	public synchronized double averageSince(long sinceMillis) {
+		long first = firstSequenceSince(sinceMillis);
+		if(first == recorded) {
+			return 0.0;
+		}
+
+		long sum = total - totalBefore[(int) (first % capacity)];
+		return (double) sum / (recorded - first);
+	}
+
+	public synchronized int minSince(long sinceMillis) {
+		long first = firstSequenceSince(sinceMillis);
+		if(first == recorded) {
+			return 0;
+		}
+		return queryTree(minTree, first, true);
+	}
+
+	public synchronized int maxSince(long sinceMillis) {
+		long first = firstSequenceSince(sinceMillis);
+		if(first == recorded) {
+			return 0;
+		}
+		return queryTree(maxTree, first, false);
+	}
+
+	//Binary search over the retained sequence numbers for the oldest reading at or after sinceMillis
+	private long firstSequenceSince(long sinceMillis) {
+		long low = recorded - size();
+		long high = recorded;
+		while(low < high) {
+			long mid = (low + high) >>> 1;
+			if(timestamps[(int) (mid % capacity)] < sinceMillis) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//The retained readings from first to the newest occupy one or two contiguous slot ranges
+	private int queryTree(int[] tree, long first, boolean min) {
+		int from = (int) (first % capacity);
+		int to = (int) ((recorded - 1) % capacity);
+		if(from <= to) {
+			return queryRange(tree, from, to + 1, min);
+		}
+
+		int head = queryRange(tree, from, capacity, min);
+		int tail = queryRange(tree, 0, to + 1, min);
+		return min ? Math.min(head, tail) : Math.max(head, tail);
+	}
+
+	private int queryRange(int[] tree, int from, int to, boolean min) {
+		int result = min ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+		for(int left = from + capacity, right = to + capacity; left < right; left >>= 1, right >>= 1) {
+			if((left & 1) == 1) {
+				result = min ? Math.min(result, tree[left]) : Math.max(result, tree[left]);
+				left++;
+			}
+			if((right & 1) == 1) {
+				right--;
+				result = min ? Math.min(result, tree[right]) : Math.max(result, tree[right]);
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.city.service;
+
+import com.city.model.UtilityMeter;
+import com.city.repository.ReadingHistoryLog;
+
+//Charges a meter's consumption interval by interval: the increase of each reading over the previous
+//one is billed at the rate of the hour the reading was taken, and the intervals fill the tiers in the
+//order they were consumed. A bill quotes the first-tier rate of the hour of the last charged reading.
+class MeterCharge implements ReadingHistoryLog.ReadingVisitor {
+
+	private final TariffEngine tariffEngine;
+	private final UtilityMeter meter;
+	private final UtilityMeter.UtilityType utilityType;
+	private final UtilityMeter.PropertyClass propertyClass;
+	private double previousReading;
+	private double consumption;
+	private double amount;
+	private long quotedMillis;
+
+	//quotedMillis is the time whose rate is quoted if no reading increases the consumption
+	MeterCharge(TariffEngine tariffEngine, UtilityMeter meter, double startReading, long quotedMillis) {
+		this.tariffEngine = tariffEngine;
+		this.meter = meter;
+		this.utilityType = meter.getUtilityType();
+		this.propertyClass = meter.getPropertyClass();
+		this.previousReading = startReading;
+		this.quotedMillis = quotedMillis;
+	}
+
+	@Override
+	public void visit(long timestampMillis, double reading) {
+		if(reading <= previousReading) {
+			return;
+		}
+		double increase = reading - previousReading;
+		amount += tariffEngine.charge(utilityType, propertyClass, tariffEngine.hourOf(timestampMillis), consumption, increase);
+		consumption += increase;
+		previousReading = reading;
+		quotedMillis = timestampMillis;
+	}
+
+	//False once the meter has been replaced or moved to another tariff, which the charge does not follow
+	boolean charges(UtilityMeter meter) {
+		return this.meter == meter && utilityType == meter.getUtilityType() && propertyClass == meter.getPropertyClass();
+	}
+
+	double getConsumption() {
+		return consumption;
+	}
+
+	double getAmount() {
+		return amount;
+	}
+
+	double getRate() {
+		return tariffEngine.getRate(utilityType, propertyClass, tariffEngine.hourOf(quotedMillis));
+	}
+
+}
@@ -0,0 +1,408 @@
+package com.city.service;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.city.exception.InvalidInputException;
+import com.city.exception.ServiceUnavailableException;
+import com.city.repository.UtilityRepository;
+
+//Ingests meter reading files of "meterId,reading[,...]" lines dropped into a watched directory.
+//Each file is memory-mapped in byte ranges that are parsed in parallel straight from the mapping.
+//Parsers only touch the mapping; each batch of parsed lines is resolved to meters from their ID bytes
+//and applied with the same monotonic check as recordUtilityConsumption while holding the repository's
+//monitor, so ingestion is atomic per batch with respect to every other caller of the repository.
+//Because a lower reading is rejected, the final reading of a meter does not depend on the order in
+//which ranges are applied, and re-ingesting a file is harmless.
+//A watched file is moved into the "ingested" subdirectory once it succeeds, so a later file dropped
+//under the same name is ingested again; a failed file stays where it is and is retried by the next
+//directory scan or when it is replaced.
+public class MeterReadingIngestor {
+
+	private static final int DEFAULT_BATCH_SIZE = 4096;
+	private static final long DEFAULT_MIN_RANGE_BYTES = 1 << 20;
+	//A range may finish the line it started past its end; lines longer than this are malformed
+	private static final int MAX_LINE_BYTES = 4096;
+	private static final long MAX_RANGE_BYTES = (1L << 30) - MAX_LINE_BYTES - 1;
+	private static final String FILE_SUFFIX = ".csv";
+	private static final String INGESTED_DIRECTORY = "ingested";
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private UtilityRepository utilityRepository;
+	private ExecutorService parsers;
+	private final int parallelism;
+	private final int batchSize;
+	private final long minRangeBytes;
+	//Files currently being ingested, so that a scan and a watch event do not both pick one up
+	private Set<Path> inFlightFiles;
+	private volatile WatchService watchService;
+
+	//Notified from the watcher thread after each file
+	public interface IngestionListener {
+		void onFileIngested(Path file, IngestionResult result);
+		default void onFileFailed(Path file, Exception cause) {}
+	}
+
+	public static class IngestionResult {
+		private final long applied;
+		private final long unknownMeters;
+		private final long decreasedReadings;
+		private final long malformedLines;
+
+		IngestionResult(long applied, long unknownMeters, long decreasedReadings, long malformedLines) {
+			this.applied = applied;
+			this.unknownMeters = unknownMeters;
+			this.decreasedReadings = decreasedReadings;
+			this.malformedLines = malformedLines;
+		}
+
+		public long getApplied() { return applied; }
+		public long getUnknownMeters() { return unknownMeters; }
+		public long getDecreasedReadings() { return decreasedReadings; }
+		public long getMalformedLines() { return malformedLines; }
+
+		public String toString() {
+			return "IngestionResult Details:" +
+					"\nApplied: " + applied +
+					"\nUnknown Meters: " + unknownMeters +
+					"\nDecreased Readings: " + decreasedReadings +
+					"\nMalformed Lines: " + malformedLines;
+		}
+	}
+
+	public MeterReadingIngestor(UtilityRepository utilityRepository, int parallelism) {
+		this(utilityRepository, parallelism, DEFAULT_BATCH_SIZE, DEFAULT_MIN_RANGE_BYTES);
+	}
+
+	MeterReadingIngestor(UtilityRepository utilityRepository, int parallelism, int batchSize, long minRangeBytes) {
+		if(utilityRepository == null) {
+			throw new InvalidInputException("Utility Repository cannot be null");
+		}
+		if(parallelism <= 0 || batchSize <= 0 || minRangeBytes <= 0) {
+			throw new InvalidInputException("Parallelism, batch size and range size must be positive");
+		}
+
+		this.utilityRepository = utilityRepository;
+		this.parallelism = parallelism;
+		this.batchSize = batchSize;
+		this.minRangeBytes = minRangeBytes;
+		this.inFlightFiles = ConcurrentHashMap.newKeySet();
+		this.parsers = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "meter-reading-parser");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public IngestionResult ingest(Path file) throws IOException {
+		if(file == null) {
+			throw new InvalidInputException("File cannot be null");
+		}
+
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long rangeBytes = Math.min(MAX_RANGE_BYTES, Math.max(minRangeBytes, (size + parallelism - 1) / parallelism));
+
+			List<Future<long[]>> ranges = new ArrayList<>();
+			for(long start = 0; start < size; start += rangeBytes) {
+				long rangeStart = start;
+				long rangeEnd = Math.min(size, start + rangeBytes);
+				ranges.add(parsers.submit(() -> parseRange(channel, size, rangeStart, rangeEnd)));
+			}
+
+			long[] totals = new long[4];
+			for(Future<long[]> range : ranges) {
+				long[] counts = range.get();
+				for(int i = 0; i < totals.length; i++) {
+					totals[i] += counts[i];
+				}
+			}
+			return new IngestionResult(totals[0], totals[1], totals[2], totals[3]);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Ingestion of " + file + " was interrupted");
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new ServiceUnavailableException("Ingestion of " + file + " failed: " + e.getCause());
+		}
+	}
+
+	//Ingests the directory's existing files, then every file created in it, on a daemon thread.
+	//Producers should write elsewhere and move finished files in so that no partial file is read.
+	public synchronized void watch(Path directory, IngestionListener listener) throws IOException {
+		if(directory == null || listener == null) {
+			throw new InvalidInputException("Directory and listener cannot be null");
+		}
+		if(watchService != null) {
+			throw new InvalidInputException("Ingestor is already watching a directory");
+		}
+
+		Path ingestedDirectory = Files.createDirectories(directory.resolve(INGESTED_DIRECTORY));
+		WatchService service = FileSystems.getDefault().newWatchService();
+		directory.register(service, StandardWatchEventKinds.ENTRY_CREATE);
+		watchService = service;
+
+		Thread watcher = new Thread(() -> watchLoop(service, directory, ingestedDirectory, listener), "meter-reading-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	public synchronized void stop() {
+		if(watchService != null) {
+			try {
+				watchService.close();
+			}
+			catch(IOException e) {
+				//The watcher thread exits either way
+			}
+			watchService = null;
+		}
+		parsers.shutdownNow();
+	}
+
+	private void watchLoop(WatchService service, Path directory, Path ingestedDirectory, IngestionListener listener) {
+		ingestPending(directory, ingestedDirectory, listener);
+		try {
+			while(true) {
+				WatchKey key = service.take();
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						ingestPending(directory, ingestedDirectory, listener);
+					}
+					else {
+						ingestOnce(directory.resolve((Path) event.context()), ingestedDirectory, listener);
+					}
+				}
+				if(!key.reset()) {
+					return;
+				}
+			}
+		}
+		catch(InterruptedException | ClosedWatchServiceException e) {
+			//Stopped
+		}
+	}
+
+	private void ingestPending(Path directory, Path ingestedDirectory, IngestionListener listener) {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+			for(Path file : files) {
+				ingestOnce(file, ingestedDirectory, listener);
+			}
+		}
+		catch(IOException e) {
+			listener.onFileFailed(directory, e);
+		}
+	}
+
+	private void ingestOnce(Path file, Path ingestedDirectory, IngestionListener listener) {
+		if(!file.getFileName().toString().endsWith(FILE_SUFFIX) || !inFlightFiles.add(file)) {
+			return;
+		}
+		try {
+			//A file moved away by an earlier scan may still have a pending event
+			if(Files.isRegularFile(file)) {
+				IngestionResult result = ingest(file);
+				archive(file, ingestedDirectory);
+				listener.onFileIngested(file, result);
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			listener.onFileFailed(file, e);
+		}
+		finally {
+			inFlightFiles.remove(file);
+		}
+	}
+
+	//Earlier files of the same name are kept, the new one gets a numbered suffix
+	private static void archive(Path file, Path ingestedDirectory) throws IOException {
+		Path target = ingestedDirectory.resolve(file.getFileName());
+		for(int copy = 1; Files.exists(target); copy++) {
+			target = ingestedDirectory.resolve(file.getFileName() + "." + copy);
+		}
+		Files.move(file, target);
+	}
+
+	//Parses the lines that start in [start, end) and returns {applied, unknown, decreased, malformed}
+	private long[] parseRange(FileChannel channel, long size, long start, long end) throws IOException {
+		long mapStart = start == 0 ? 0 : start - 1;
+		long mapEnd = Math.min(size, end + MAX_LINE_BYTES);
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+		int limit = (int) (mapEnd - mapStart);
+		int rangeEnd = (int) (end - mapStart);
+
+		//The line under the range start belongs to the previous range unless a newline precedes it
+		int position = 0;
+		if(start > 0) {
+			while(position < limit && bytes.get(position) != '\n') {
+				position++;
+			}
+			position++;
+		}
+
+		long[] counts = new long[4];
+		int[] idStarts = new int[batchSize];
+		int[] idLengths = new int[batchSize];
+		double[] readings = new double[batchSize];
+		int pending = 0;
+
+		while(position < rangeEnd) {
+			int lineEnd = position;
+			while(lineEnd < limit && bytes.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			if(lineEnd == limit && mapEnd < size) {
+				//Runs past the overlap, so it is longer than MAX_LINE_BYTES and no later line starts in this range
+				counts[3]++;
+				break;
+			}
+
+			int comma = position;
+			while(comma < lineEnd && bytes.get(comma) != ',') {
+				comma++;
+			}
+			int idEnd = trimEnd(bytes, position, comma);
+			int idStart = trimStart(bytes, position, idEnd);
+			int readingEnd = comma + 1;
+			while(readingEnd < lineEnd && bytes.get(readingEnd) != ',') {
+				readingEnd++;
+			}
+
+			double reading = comma < lineEnd ? parseReading(bytes, comma + 1, readingEnd) : Double.NaN;
+			if(idStart == idEnd || !(reading >= 0)) {
+				if(lineEnd > position && trimEnd(bytes, position, lineEnd) > position) {
+					counts[3]++;
+				}
+			}
+			else {
+				idStarts[pending] = idStart;
+				idLengths[pending] = idEnd - idStart;
+				readings[pending++] = reading;
+				if(pending == batchSize) {
+					apply(bytes, idStarts, idLengths, readings, pending, counts);
+					pending = 0;
+				}
+			}
+			position = lineEnd + 1;
+		}
+
+		apply(bytes, idStarts, idLengths, readings, pending, counts);
+		return counts;
+	}
+
+	//One acquisition of the repository's monitor per batch, which both resolves and applies the readings
+	private void apply(MappedByteBuffer bytes, int[] idStarts, int[] idLengths, double[] readings, int count, long[] counts) {
+		synchronized(utilityRepository) {
+			for(int i = 0; i < count; i++) {
+				int slot = utilityRepository.findMeterSlot(bytes, idStarts[i], idLengths[i]);
+				if(slot < 0) {
+					counts[1]++;
+				}
+				else if(utilityRepository.recordMeterReading(slot, readings[i]) == UtilityRepository.ReadingUpdateResult.UPDATED) {
+					counts[0]++;
+				}
+				else {
+					counts[2]++;
+				}
+			}
+		}
+	}
+
+	//Plain decimals are parsed exactly from the bytes; anything else falls back to Double.parseDouble
+	private static double parseReading(MappedByteBuffer bytes, int from, int to) {
+		to = trimEnd(bytes, from, to);
+		from = trimStart(bytes, from, to);
+		if(from == to) {
+			return Double.NaN;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int scale = -1;
+		for(int i = from; i < to; i++) {
+			byte b = bytes.get(i);
+			if(b >= '0' && b <= '9' && digits < 18) {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if(scale >= 0) {
+					scale++;
+				}
+			}
+			else if(b == '.' && scale < 0) {
+				scale = 0;
+			}
+			else {
+				return parseSlow(bytes, from, to);
+			}
+		}
+		if(digits == 0) {
+			return Double.NaN;
+		}
+		if(scale <= 0) {
+			return mantissa;
+		}
+		if(scale >= POWERS_OF_TEN.length || mantissa >= (1L << 53)) {
+			return parseSlow(bytes, from, to);
+		}
+		return mantissa / POWERS_OF_TEN[scale];
+	}
+
+	private static double parseSlow(MappedByteBuffer bytes, int from, int to) {
+		byte[] text = new byte[to - from];
+		for(int i = from; i < to; i++) {
+			text[i - from] = bytes.get(i);
+		}
+		try {
+			return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+		}
+		catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static int trimStart(MappedByteBuffer bytes, int from, int to) {
+		while(from < to && isBlank(bytes.get(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	private static int trimEnd(MappedByteBuffer bytes, int from, int to) {
+		while(to > from && isBlank(bytes.get(to - 1))) {
+			to--;
+		}
+		return to;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+}
@@ -0,0 +1,188 @@
+package com.city.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.city.model.TrafficSensor;
+import com.city.repository.TrafficRepository;
+
+//Marks ACTIVE sensors STALE when no density reading arrives within the heartbeat timeout. Sensors sit
+//in a hashed timing wheel keyed by their deadline; a heartbeat only stores the new reading time, and
+//the sensor is lazily rescheduled when its slot comes round. Advancing the wheel therefore visits the
+//sensors whose slots are due instead of every sensor, and deadlines beyond one revolution simply
+//come round again. Sensors present at construction are scheduled then, later ones when the repository
+//reports them added.
+class SensorHeartbeatMonitor implements TrafficSensor.Listener {
+
+	private static final int WHEEL_SIZE = 512;
+
+	private TrafficRepository trafficRepository;
+	private Map<String, Heartbeat> heartbeats;
+	private List<List<Heartbeat>> wheel;
+	private List<Heartbeat> overdue;
+	private final long tickMillis;
+	private volatile long timeoutMillis;
+	private long currentTick;
+
+	SensorHeartbeatMonitor(TrafficRepository trafficRepository, long timeoutMillis, long tickMillis, long nowMillis) {
+		this.trafficRepository = trafficRepository;
+		this.heartbeats = new ConcurrentHashMap<>();
+		this.wheel = new ArrayList<>(WHEEL_SIZE);
+		for(int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new ArrayList<>());
+		}
+		this.overdue = new ArrayList<>();
+		this.tickMillis = tickMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.currentTick = nowMillis / tickMillis;
+
+		trafficRepository.addSensorListener(this);
+	}
+
+	//Deadlines were computed with the old timeout, so every scheduled sensor is placed again
+	synchronized void setTimeout(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+		List<Heartbeat> scheduled = drain(overdue);
+		for(List<Heartbeat> slot : wheel) {
+			scheduled.addAll(drain(slot));
+		}
+		for(Heartbeat heartbeat : scheduled) {
+			schedule(heartbeat);
+		}
+	}
+
+	//Lock-free once the sensor is scheduled, which is the case for every steady feed
+	void heartbeat(String sensorId, long timestampMillis) {
+		Heartbeat heartbeat = heartbeats.get(sensorId);
+		if(heartbeat == null) {
+			heartbeat = heartbeats.computeIfAbsent(sensorId, Heartbeat::new);
+		}
+		if(timestampMillis > heartbeat.lastMillis) {
+			heartbeat.lastMillis = timestampMillis;
+		}
+		if(!heartbeat.scheduled) {
+			synchronized(this) {
+				if(!heartbeat.scheduled) {
+					schedule(heartbeat);
+				}
+			}
+		}
+	}
+
+	//Processes every slot due by nowMillis and returns the number of sensors marked STALE
+	int advance(long nowMillis) {
+		List<Heartbeat> expired = new ArrayList<>();
+		synchronized(this) {
+			long targetTick = nowMillis / tickMillis;
+			for(Heartbeat heartbeat : drain(overdue)) {
+				expireOrReschedule(heartbeat, nowMillis, expired);
+			}
+			//A long pause only needs one revolution, later deadlines are rescheduled as they are met
+			currentTick = Math.max(currentTick, targetTick - WHEEL_SIZE);
+			while(currentTick < targetTick) {
+				currentTick++;
+				for(Heartbeat heartbeat : drain(wheel.get((int) (currentTick & (WHEEL_SIZE - 1))))) {
+					if(heartbeat.deadlineTick > currentTick) {
+						wheel.get((int) (heartbeat.deadlineTick & (WHEEL_SIZE - 1))).add(heartbeat);
+					}
+					else {
+						expireOrReschedule(heartbeat, nowMillis, expired);
+					}
+				}
+			}
+		}
+
+		//Status changes run index listeners under the sensor's monitor, so they happen outside the wheel lock
+		int marked = 0;
+		for(Heartbeat heartbeat : expired) {
+			if(markStale(heartbeat, nowMillis)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	@Override
+	public void onAdded(TrafficSensor sensor) {
+		if(sensor.isActive()) {
+			heartbeat(sensor.getSensorId(), sensor.getTimestampMillis());
+		}
+	}
+
+	@Override
+	public void onDensityChanged(TrafficSensor sensor, int oldDensity) {
+		heartbeat(sensor.getSensorId(), sensor.getTimestampMillis());
+	}
+
+	@Override
+	public void onStatusChanged(TrafficSensor sensor, TrafficSensor.Status oldStatus) {
+		if(sensor.isActive()) {
+			heartbeat(sensor.getSensorId(), System.currentTimeMillis());
+		}
+	}
+
+	private void expireOrReschedule(Heartbeat heartbeat, long nowMillis, List<Heartbeat> expired) {
+		if(heartbeat.lastMillis + timeoutMillis > nowMillis) {
+			schedule(heartbeat);
+		}
+		else {
+			heartbeat.scheduled = false;
+			expired.add(heartbeat);
+		}
+	}
+
+	private void schedule(Heartbeat heartbeat) {
+		long deadline = heartbeat.lastMillis + timeoutMillis;
+		long deadlineTick = (deadline + tickMillis - 1) / tickMillis;
+		heartbeat.scheduled = true;
+		if(deadlineTick <= currentTick) {
+			overdue.add(heartbeat);
+			return;
+		}
+		heartbeat.deadlineTick = deadlineTick;
+		wheel.get((int) (deadlineTick & (WHEEL_SIZE - 1))).add(heartbeat);
+	}
+
+	//Re-checks the sensor itself, a reading may have landed after the wheel looked at the heartbeat.
+	//Sensors that are not ACTIVE leave the wheel until a status change or reading brings them back.
+	private boolean markStale(Heartbeat heartbeat, long nowMillis) {
+		Object sensorLock = trafficRepository.getSensorLock(heartbeat.sensorId);
+		if(sensorLock == null) {
+			heartbeats.remove(heartbeat.sensorId);
+			return false;
+		}
+
+		synchronized(sensorLock) {
+			TrafficSensor sensor = trafficRepository.getSensor(heartbeat.sensorId);
+			if(sensor.getTimestampMillis() + timeoutMillis > nowMillis) {
+				heartbeat(heartbeat.sensorId, sensor.getTimestampMillis());
+				return false;
+			}
+			if(!sensor.isActive()) {
+				return false;
+			}
+			sensor.setStatus(TrafficSensor.Status.STALE);
+			return true;
+		}
+	}
+
+	private static List<Heartbeat> drain(List<Heartbeat> slot) {
+		List<Heartbeat> drained = new ArrayList<>(slot);
+		slot.clear();
+		return drained;
+	}
+
+	private static class Heartbeat {
+		private final String sensorId;
+		private volatile long lastMillis = Long.MIN_VALUE;
+		private volatile boolean scheduled;
+		private long deadlineTick;
+
+		private Heartbeat(String sensorId) {
+			this.sensorId = sensorId;
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.city.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.city.model.AreaStatistics;
+import com.city.model.TrafficSensor;
+import com.city.repository.TrafficRepository;
+import com.city.service.TrafficManagementService.SignalStrategy;
+import com.city.service.TrafficManagementService.SignalStrategyListener;
+
+//Tracks the signal strategy of every area with hysteresis and notifies subscribers when it changes.
+//An area is re-evaluated from the repository's running area totals whenever one of its sensors
+//changes, and only while at least one listener is subscribed.
+class SignalStrategyMonitor implements TrafficSensor.Listener {
+
+	private TrafficRepository trafficRepository;
+	private Map<String, SignalStrategy> areaStrategies;
+	private List<SignalStrategyListener> listeners;
+	private volatile int hysteresis;
+
+	SignalStrategyMonitor(TrafficRepository trafficRepository, int hysteresis) {
+		this.trafficRepository = trafficRepository;
+		this.areaStrategies = new ConcurrentHashMap<>();
+		this.listeners = new CopyOnWriteArrayList<>();
+		this.hysteresis = hysteresis;
+
+		trafficRepository.addSensorListener(this);
+	}
+
+	//The first subscriber takes a baseline of every area so that only later crossings are reported
+	synchronized void addListener(SignalStrategyListener listener) {
+		if(listeners.isEmpty()) {
+			for(AreaStatistics statistics : trafficRepository.getAllAreaStatistics()) {
+				if(statistics.getActiveSensorCount() > 0) {
+					areaStrategies.put(statistics.getLocation(), SignalStrategy.forDensity(statistics.getAverageDensity()));
+				}
+			}
+		}
+		listeners.add(listener);
+	}
+
+	synchronized boolean removeListener(SignalStrategyListener listener) {
+		boolean removed = listeners.remove(listener);
+		if(listeners.isEmpty()) {
+			areaStrategies.clear();
+		}
+		return removed;
+	}
+
+	void setHysteresis(int hysteresis) {
+		this.hysteresis = hysteresis;
+	}
+
+	@Override
+	public void onLocationChanged(TrafficSensor sensor, String oldLocation) {
+		evaluate(oldLocation);
+		evaluate(sensor.getLocation());
+	}
+
+	@Override
+	public void onDensityChanged(TrafficSensor sensor, int oldDensity) {
+		evaluate(sensor.getLocation());
+	}
+
+	@Override
+	public void onStatusChanged(TrafficSensor sensor, TrafficSensor.Status oldStatus) {
+		evaluate(sensor.getLocation());
+	}
+
+	private void evaluate(String area) {
+		if(listeners.isEmpty()) {
+			return;
+		}
+
+		Optional<AreaStatistics> statisticsOpt = trafficRepository.findAreaStatistics(area);
+		boolean hasActiveSensors = statisticsOpt.isPresent() && statisticsOpt.get().getActiveSensorCount() > 0;
+		int averageDensity = hasActiveSensors ? statisticsOpt.get().getAverageDensity() : 0;
+
+		SignalStrategy[] previous = new SignalStrategy[1];
+		SignalStrategy current = areaStrategies.compute(area, (key, strategy) -> {
+			previous[0] = strategy;
+			return hasActiveSensors ? nextStrategy(strategy, averageDensity) : null;
+		});
+
+		if(previous[0] != current) {
+			String previousName = previous[0] == null ? null : previous[0].name();
+			String currentName = current == null ? null : current.name();
+			for(SignalStrategyListener listener : listeners) {
+				listener.onSignalStrategyChanged(area, previousName, currentName, averageDensity);
+			}
+		}
+	}
+
+	//Leaves the current strategy only once the average is past its band by more than the hysteresis margin
+	private SignalStrategy nextStrategy(SignalStrategy current, int averageDensity) {
+		if(current == null) {
+			return SignalStrategy.forDensity(averageDensity);
+		}
+
+		long margin = hysteresis;
+		if(averageDensity >= current.getUpperBound() + margin || averageDensity < current.getLowerBound() - margin) {
+			return SignalStrategy.forDensity(averageDensity);
+		}
+		return current;
+	}
+
+}
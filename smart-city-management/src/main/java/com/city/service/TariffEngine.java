@@ -0,0 +1,236 @@
+package com.city.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.city.exception.InvalidInputException;
+import com.city.model.UtilityMeter;
+
+//Tiered, time-of-use rates per utility type and property class. Schedules are loaded once and compiled
+//into flat arrays: tierStarts[schedule * maxTiers + tier] holds the consumption at which a tier begins
+//and rates[(schedule * maxTiers + tier) * 24 + hour] its rate, so charging a bill is a few array reads.
+public class TariffEngine {
+
+	public static final int HOURS_PER_DAY = 24;
+	private static final int TYPES = UtilityMeter.UtilityType.values().length;
+	private static final int CLASSES = UtilityMeter.PropertyClass.values().length;
+
+	private final int maxTiers;
+	private final int[] tierCounts;
+	private final double[] tierStarts;
+	private final double[] rates;
+	private final ZoneRules zoneRules;
+
+	private TariffEngine(int maxTiers, int[] tierCounts, double[] tierStarts, double[] rates, ZoneId zone) {
+		this.maxTiers = maxTiers;
+		this.tierCounts = tierCounts;
+		this.tierStarts = tierStarts;
+		this.rates = rates;
+		this.zoneRules = zone.getRules();
+	}
+
+	//Flat rates for every property class and hour
+	public static TariffEngine defaults() {
+		return new Builder()
+				.flatRate(UtilityMeter.UtilityType.ELECTRICITY, 7)	// Rs 7 per kWh
+				.flatRate(UtilityMeter.UtilityType.WATER, 0.1)		// Rs 0.1 per liter
+				.flatRate(UtilityMeter.UtilityType.GAS, 90)			// Rs 90 per kg
+				.build();
+	}
+
+	//Reads a schedule file with one rate band per line: utilityType,propertyClass,tierStart,fromHour,toHour,rate.
+	//A propertyClass of * applies the band to every class; blank lines and lines starting with # are ignored.
+	public static TariffEngine load(Path scheduleFile) throws IOException {
+		if(scheduleFile == null) {
+			throw new InvalidInputException("Schedule file cannot be null");
+		}
+
+		Builder builder = new Builder();
+		List<String> lines = Files.readAllLines(scheduleFile, StandardCharsets.UTF_8);
+		for(int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split(",");
+			if(fields.length != 6) {
+				throw new InvalidInputException("Line " + (i + 1) + " of " + scheduleFile + " must have 6 fields");
+			}
+			try {
+				UtilityMeter.UtilityType utilityType = UtilityMeter.UtilityType.valueOf(fields[0].trim());
+				double tierStart = Double.parseDouble(fields[2].trim());
+				int fromHour = Integer.parseInt(fields[3].trim());
+				int toHour = Integer.parseInt(fields[4].trim());
+				double rate = Double.parseDouble(fields[5].trim());
+				if(fields[1].trim().equals("*")) {
+					for(UtilityMeter.PropertyClass propertyClass : UtilityMeter.PropertyClass.values()) {
+						builder.rate(utilityType, propertyClass, tierStart, fromHour, toHour, rate);
+					}
+				}
+				else {
+					builder.rate(utilityType, UtilityMeter.PropertyClass.valueOf(fields[1].trim()), tierStart, fromHour, toHour, rate);
+				}
+			}
+			catch(IllegalArgumentException e) {
+				throw new InvalidInputException("Line " + (i + 1) + " of " + scheduleFile + " is not a valid rate band: " + e.getMessage());
+			}
+		}
+		return builder.build();
+	}
+
+	//Charge for a consumption billed at the given hour; each tier bills the part of the consumption that falls in it
+	public double charge(UtilityMeter.UtilityType utilityType, UtilityMeter.PropertyClass propertyClass, int hour, double consumption) {
+		return charge(utilityType, propertyClass, hour, 0, consumption);
+	}
+
+	//Charge for a consumption billed at the given hour on top of consumedBefore already billed in the same
+	//bill, so that consecutive intervals fill the tiers in order
+	public double charge(UtilityMeter.UtilityType utilityType, UtilityMeter.PropertyClass propertyClass, int hour,
+			double consumedBefore, double consumption) {
+		int first = scheduleOf(utilityType, propertyClass) * maxTiers;
+		int last = first + tierCounts[first / maxTiers] - 1;
+		double consumedAfter = consumedBefore + consumption;
+		double amount = 0;
+		for(int tier = first; tier <= last && consumedAfter > tierStarts[tier]; tier++) {
+			double tierStart = Math.max(consumedBefore, tierStarts[tier]);
+			double tierEnd = tier == last ? consumedAfter : Math.min(consumedAfter, tierStarts[tier + 1]);
+			if(tierEnd > tierStart) {
+				amount += (tierEnd - tierStart) * rates[tier * HOURS_PER_DAY + hour];
+			}
+		}
+		return amount;
+	}
+
+	//Rate of the first tier, which is what a bill quotes
+	public double getRate(UtilityMeter.UtilityType utilityType, UtilityMeter.PropertyClass propertyClass, int hour) {
+		return rates[scheduleOf(utilityType, propertyClass) * maxTiers * HOURS_PER_DAY + hour];
+	}
+
+	//Local hour of day a reading taken at timestampMillis is billed in
+	public int hourOf(long timestampMillis) {
+		int offsetSeconds = zoneRules.getOffset(Instant.ofEpochMilli(timestampMillis)).getTotalSeconds();
+		return (int) Math.floorMod(Math.floorDiv(timestampMillis, 1000L) + offsetSeconds, 86_400L) / 3600;
+	}
+
+	private static int scheduleOf(UtilityMeter.UtilityType utilityType, UtilityMeter.PropertyClass propertyClass) {
+		return utilityType.ordinal() * CLASSES + propertyClass.ordinal();
+	}
+
+	public static class Builder {
+		//{schedule, tierStart, fromHour, toHour, rate}; later bands override earlier ones
+		private final List<double[]> bands = new ArrayList<>();
+		private final double[] flatRates = new double[TYPES];
+		private ZoneId zone = ZoneId.systemDefault();
+
+		public Builder() {
+			Arrays.fill(flatRates, Double.NaN);
+		}
+
+		//Fallback for every property class of the type that has no bands of its own
+		public Builder flatRate(UtilityMeter.UtilityType utilityType, double rate) {
+			if(utilityType == null) {
+				throw new InvalidInputException("Utility type cannot be null");
+			}
+			validateRate(rate);
+			flatRates[utilityType.ordinal()] = rate;
+			return this;
+		}
+
+		//Rate for consumption from tierStart up to the next tier, during hours [fromHour, toHour)
+		public Builder rate(UtilityMeter.UtilityType utilityType, UtilityMeter.PropertyClass propertyClass,
+				double tierStart, int fromHour, int toHour, double rate) {
+			if(utilityType == null) {
+				throw new InvalidInputException("Utility type cannot be null");
+			}
+			if(propertyClass == null) {
+				throw new InvalidInputException("Property class cannot be null");
+			}
+			if(!(tierStart >= 0) || Double.isInfinite(tierStart)) {
+				throw new InvalidInputException("Tier start must be a non-negative number");
+			}
+			if(fromHour < 0 || toHour > HOURS_PER_DAY || fromHour >= toHour) {
+				throw new InvalidInputException("Hours must satisfy 0 <= fromHour < toHour <= 24");
+			}
+			validateRate(rate);
+			bands.add(new double[] {scheduleOf(utilityType, propertyClass), tierStart, fromHour, toHour, rate});
+			return this;
+		}
+
+		public Builder zone(ZoneId zone) {
+			if(zone == null) {
+				throw new InvalidInputException("Zone cannot be null");
+			}
+			this.zone = zone;
+			return this;
+		}
+
+		public TariffEngine build() {
+			int schedules = TYPES * CLASSES;
+			double[][] scheduleTiers = new double[schedules][];
+			int maxTiers = 1;
+			for(int schedule = 0; schedule < schedules; schedule++) {
+				scheduleTiers[schedule] = tierStartsOf(schedule);
+				maxTiers = Math.max(maxTiers, scheduleTiers[schedule].length);
+			}
+
+			int[] tierCounts = new int[schedules];
+			double[] tierStarts = new double[schedules * maxTiers];
+			double[] rates = new double[schedules * maxTiers * HOURS_PER_DAY];
+			Arrays.fill(rates, Double.NaN);
+			for(int schedule = 0; schedule < schedules; schedule++) {
+				double[] starts = scheduleTiers[schedule];
+				tierCounts[schedule] = starts.length;
+				System.arraycopy(starts, 0, tierStarts, schedule * maxTiers, starts.length);
+			}
+
+			for(double[] band : bands) {
+				int schedule = (int) band[0];
+				int tier = schedule * maxTiers + Arrays.binarySearch(scheduleTiers[schedule], band[1]);
+				Arrays.fill(rates, tier * HOURS_PER_DAY + (int) band[2], tier * HOURS_PER_DAY + (int) band[3], band[4]);
+			}
+
+			for(int schedule = 0; schedule < schedules; schedule++) {
+				UtilityMeter.UtilityType utilityType = UtilityMeter.UtilityType.values()[schedule / CLASSES];
+				UtilityMeter.PropertyClass propertyClass = UtilityMeter.PropertyClass.values()[schedule % CLASSES];
+				int first = schedule * maxTiers;
+				if(scheduleTiers[schedule].length == 0) {
+					if(Double.isNaN(flatRates[utilityType.ordinal()])) {
+						throw new InvalidInputException("No tariff defined for " + utilityType + " " + propertyClass);
+					}
+					tierCounts[schedule] = 1;
+					Arrays.fill(rates, first * HOURS_PER_DAY, (first + 1) * HOURS_PER_DAY, flatRates[utilityType.ordinal()]);
+					continue;
+				}
+				if(tierStarts[first] != 0) {
+					throw new InvalidInputException("Tariff for " + utilityType + " " + propertyClass + " must have a tier starting at 0");
+				}
+				for(int i = first * HOURS_PER_DAY; i < (first + tierCounts[schedule]) * HOURS_PER_DAY; i++) {
+					if(Double.isNaN(rates[i])) {
+						throw new InvalidInputException("Tariff for " + utilityType + " " + propertyClass + " has no rate for tier " +
+								tierStarts[i / HOURS_PER_DAY] + " at hour " + i % HOURS_PER_DAY);
+					}
+				}
+			}
+			return new TariffEngine(maxTiers, tierCounts, tierStarts, rates, zone);
+		}
+
+		private double[] tierStartsOf(int schedule) {
+			return bands.stream().filter(band -> band[0] == schedule).mapToDouble(band -> band[1]).distinct().sorted().toArray();
+		}
+
+		private static void validateRate(double rate) {
+			if(!(rate >= 0) || Double.isInfinite(rate)) {
+				throw new InvalidInputException("Rate must be a non-negative number");
+			}
+		}
+	}
+
+}
@@ -1,23 +1,106 @@
 package com.city.service;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.city.exception.InvalidInputException;
 import com.city.exception.ServiceUnavailableException;
+import com.city.model.AreaStatistics;
 import com.city.model.TrafficSensor;
 import com.city.repository.TrafficRepository;
 
 public class TrafficManagementService {
 	
+	private static final int DEFAULT_HISTORY_CAPACITY = 128;
+	private static final int DEFAULT_STRATEGY_HYSTERESIS = 5;
+	private static final double FORECAST_LEVEL_SMOOTHING = 0.3;
+	private static final double FORECAST_TREND_SMOOTHING = 0.1;
+	private static final long FORECAST_BUCKET_MILLIS = 60 * 1000;
+	private static final double FORECAST_MAX_TREND_PER_MINUTE = 5;
+	private static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+	private static final long HEARTBEAT_TICK_MILLIS = 1000;
+	
 	private TrafficRepository trafficRepository;
+	private Map<String, DensityHistory> densityHistories;
+	private int historyCapacity;
+	private SignalStrategyMonitor strategyMonitor;
+	private CongestionForecaster congestionForecaster;
+	private SensorHeartbeatMonitor heartbeatMonitor;
+	
+	public enum DensityUpdateResult {
+		UPDATED, INVALID_SENSOR_ID, NEGATIVE_DENSITY, SENSOR_NOT_FOUND, SENSOR_INACTIVE
+	}
+	
+	//Signal strategies with the lowest average density at which each one applies
+	public enum SignalStrategy {
+		NORMAL_FLOW(0), MODERATE_ADJUSTMENT(20), HEAVY_CONGESTION_PROTOCOL(60), EMERGENCY_TRAFFIC_MANAGEMENT(90);
+		
+		private final int lowerBound;
+		
+		SignalStrategy(int lowerBound) {
+			this.lowerBound = lowerBound;
+		}
+		
+		public int getLowerBound() { return lowerBound; }
+		
+		//Exclusive upper bound, Integer.MAX_VALUE for the last strategy
+		public int getUpperBound() { 
+			return ordinal() + 1 < values().length ? values()[ordinal() + 1].lowerBound : Integer.MAX_VALUE; 
+		}
+		
+		public static SignalStrategy forDensity(int averageDensity) {
+			SignalStrategy[] strategies = values();
+			for(int i = strategies.length - 1; i > 0; i--) {
+				if(averageDensity >= strategies[i].lowerBound) {
+					return strategies[i];
+				}
+			}
+			return strategies[0];
+		}
+	}
+	
+	//Notified when an area crosses a strategy threshold. previousStrategy is null when the area gains
+	//its first active sensor and newStrategy is null when it loses its last one.
+	public interface SignalStrategyListener {
+		void onSignalStrategyChanged(String area, String previousStrategy, String newStrategy, int averageDensity);
+	}
 	
 	public TrafficManagementService(TrafficRepository trafficRepository) {
+		this(trafficRepository, DEFAULT_HISTORY_CAPACITY);
+	}
+	
+	public TrafficManagementService(TrafficRepository trafficRepository, int historyCapacity) {
 		if(trafficRepository == null) {
 			throw new InvalidInputException("Traffic Repository cannot be null");
 		}
+		if(historyCapacity <= 0) {
+			throw new InvalidInputException("History capacity must be positive");
+		}
 		this.trafficRepository = trafficRepository;
+		this.densityHistories = new ConcurrentHashMap<>();
+		this.historyCapacity = historyCapacity;
+		this.strategyMonitor = new SignalStrategyMonitor(trafficRepository, DEFAULT_STRATEGY_HYSTERESIS);
+		this.congestionForecaster = new CongestionForecaster(FORECAST_LEVEL_SMOOTHING, FORECAST_TREND_SMOOTHING, 
+				FORECAST_BUCKET_MILLIS, FORECAST_MAX_TREND_PER_MINUTE);
+		this.heartbeatMonitor = new SensorHeartbeatMonitor(trafficRepository, DEFAULT_HEARTBEAT_TIMEOUT_MILLIS, 
+				HEARTBEAT_TICK_MILLIS, System.currentTimeMillis());
+		for(TrafficSensor sensor : trafficRepository.getActiveSensors()) {
+			heartbeatMonitor.heartbeat(sensor.getSensorId(), sensor.getTimestampMillis());
+		}
+		
+		trafficRepository.addSensorListener(new TrafficSensor.Listener() {
+			@Override
+			public void onDensityChanged(TrafficSensor sensor, int oldDensity) {
+				recordDensity(sensor);
+				recordAreaDensity(sensor);
+			}
+		});
 	}
 	
 	public void updateTrafficDensity(String sensorId, int density) {
@@ -28,82 +111,251 @@ public class TrafficManagementService {
 			throw new InvalidInputException("Traffic Density cannot be negative");
 		}
 		
-		Optional<TrafficSensor> sensorOpt = trafficRepository.findSensorById(sensorId);
-		if(!sensorOpt.isPresent()) {
+		//The sensor is updated in place, so one lookup is enough and no follow-up updateSensor is needed
+		DensityUpdateResult result = applyTrafficDensity(sensorId, density);
+		if(result == DensityUpdateResult.SENSOR_NOT_FOUND) {
 			throw new ServiceUnavailableException("Sensor with ID " + sensorId + " not found");
 		}
-		
-		TrafficSensor sensor = sensorOpt.get();
-		if(!sensor.isActive()) {
+		if(result == DensityUpdateResult.SENSOR_INACTIVE) {
 			throw new ServiceUnavailableException("Sensor with ID " + sensorId + " is not active");
 		}
+	}
+	
+	public DensityUpdateResult[] updateTrafficDensities(String[] sensorIds, int[] densities) {
+		if(sensorIds == null || densities == null) {
+			throw new InvalidInputException("Sensor IDs and densities cannot be null");
+		}
 		
-		sensor.setCurrentTrafficDensity(density);
-		trafficRepository.updateSensor(sensorId, sensor);
+		DensityUpdateResult[] results = new DensityUpdateResult[sensorIds.length];
+		updateTrafficDensities(sensorIds, densities, sensorIds.length, results);
+		return results;
+	}
+	
+	//Applies the first count (sensorId, density) pairs in one pass and writes one result per pair,
+	//so gateways can reuse their batch and result arrays. Returns the number of updated sensors.
+	public int updateTrafficDensities(String[] sensorIds, int[] densities, int count, DensityUpdateResult[] results) {
+		if(sensorIds == null || densities == null || results == null) {
+			throw new InvalidInputException("Sensor IDs, densities and results cannot be null");
+		}
+		if(count < 0 || count > sensorIds.length || count > densities.length || count > results.length) {
+			throw new InvalidInputException("Batch count " + count + " exceeds the batch arrays");
+		}
+		
+		int updated = 0;
+		for(int i = 0; i < count; i++) {
+			DensityUpdateResult result = applyTrafficDensity(sensorIds[i], densities[i]);
+			if(result == DensityUpdateResult.UPDATED) {
+				updated++;
+			}
+			results[i] = result;
+		}
+		
+		return updated;
+	}
+	
+	private DensityUpdateResult applyTrafficDensity(String sensorId, int density) {
+		if(sensorId == null || sensorId.trim().isEmpty()) {
+			return DensityUpdateResult.INVALID_SENSOR_ID;
+		}
+		if(density < 0) {
+			return DensityUpdateResult.NEGATIVE_DENSITY;
+		}
+		
+		//The repository updates the sensor in place, so no instance is looked up or materialised per reading
+		switch(trafficRepository.recordDensityReading(sensorId, density)) {
+			case SENSOR_NOT_FOUND:
+				return DensityUpdateResult.SENSOR_NOT_FOUND;
+			case SENSOR_INACTIVE:
+				return DensityUpdateResult.SENSOR_INACTIVE;
+			default:
+				return DensityUpdateResult.UPDATED;
+		}
 	}
 	
 	public Optional<TrafficSensor> findSensorById(String sensorId) {
         return trafficRepository.findSensorById(sensorId);
     }
 	
+	public double getAverageDensity(String sensorId, Duration window) {
+		DensityHistory history = getDensityHistory(sensorId, window);
+		return history.averageSince(windowStart(window));
+	}
+	
+	public int getMinDensity(String sensorId, Duration window) {
+		DensityHistory history = getDensityHistory(sensorId, window);
+		return history.minSince(windowStart(window));
+	}
+	
+	public int getMaxDensity(String sensorId, Duration window) {
+		DensityHistory history = getDensityHistory(sensorId, window);
+		return history.maxSince(windowStart(window));
+	}
+	
+	public int getDensityReadingCount(String sensorId, Duration window) {
+		if(sensorId == null || sensorId.trim().isEmpty()) {
+			throw new InvalidInputException("Sensor ID cannot be null or empty");
+		}
+		if(window == null || window.isNegative()) {
+			throw new InvalidInputException("Window cannot be null or negative");
+		}
+		
+		DensityHistory history = densityHistories.get(sensorId);
+		return history == null ? 0 : history.countSince(windowStart(window));
+	}
+	
+	//Forecast average density of the area's active sensors horizon from now
+	public double getForecastDensity(String area, Duration horizon) {
+		if(area == null || area.trim().isEmpty()) {
+			throw new InvalidInputException("Area cannot be null or empty");
+		}
+		if(horizon == null || horizon.isNegative()) {
+			throw new InvalidInputException("Horizon cannot be null or negative");
+		}
+		
+		OptionalDouble forecast = congestionForecaster.forecast(area, System.currentTimeMillis() + horizon.toMillis());
+		if(!forecast.isPresent()) {
+			throw new ServiceUnavailableException("No density readings for area " + area);
+		}
+		return forecast.getAsDouble();
+	}
+	
+	public String getForecastSignalStrategy(String area, Duration horizon) {
+		return SignalStrategy.forDensity((int) Math.round(getForecastDensity(area, horizon))).name();
+	}
+	
 	public List<String> getHighTrafficAreas(double threshold){
 		if(threshold<0) {
 			throw new InvalidInputException("Threshold cannot be negative");
 		}
 		
 		List<String> highTrafficAreas = new ArrayList<>();
-		List<TrafficSensor> allActiveSensors = trafficRepository.getActiveSensors();
-		for(TrafficSensor sensor : allActiveSensors) {
-			if(sensor.getCurrentTrafficDensity()>=threshold) {
-				highTrafficAreas.add(sensor.getLocation());
-			}
+		if(threshold > Integer.MAX_VALUE) {
+			return highTrafficAreas;
+		}
+		
+		List<TrafficSensor> highTrafficSensors = trafficRepository.getActiveSensorsWithDensityAtLeast((int) Math.ceil(threshold));
+		for(TrafficSensor sensor : highTrafficSensors) {
+			highTrafficAreas.add(sensor.getLocation());
 		}
 		
 		return highTrafficAreas;
 	}
 	
+	//Up to limit distinct areas ordered by the density of their most congested active sensor
+	public List<String> getMostCongestedAreas(int limit) {
+		if(limit < 0) {
+			throw new InvalidInputException("Limit cannot be negative");
+		}
+		
+		return trafficRepository.getMostCongestedLocations(limit);
+	}
+	
+	//Sensors with coordinates within radiusMeters of the point, nearest first
+	public List<TrafficSensor> getSensorsNear(double latitude, double longitude, double radiusMeters) {
+		return trafficRepository.getSensorsWithinRadius(latitude, longitude, radiusMeters);
+	}
+	
+	public List<TrafficSensor> getSensorsInArea(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+		return trafficRepository.getSensorsInBoundingBox(minLatitude, minLongitude, maxLatitude, maxLongitude);
+	}
+	
 	public String optimizeTrafficSignals(String area) {
 		if(area == null || area.trim().isEmpty()) {
 			throw new InvalidInputException("Area cannot be null or empty");
 		}
 		
-		List<TrafficSensor> areaSensors = trafficRepository.getSensorsByLocation(area);
-		if(areaSensors.isEmpty()){
+		Optional<AreaStatistics> statisticsOpt = trafficRepository.findAreaStatistics(area);
+		if(!statisticsOpt.isPresent()){
 			throw new ServiceUnavailableException("No Sensor found in area: " + area);
 		}
 		
-		int activeSensors = 0;
-		int totalDensity = 0;
+		AreaStatistics statistics = statisticsOpt.get();
+		if(statistics.getActiveSensorCount() == 0) {
+			throw new ServiceUnavailableException("No Active Sensors in area: " + area);
+		}
 		
-		for(TrafficSensor sensor : areaSensors) {
-			if(sensor.isActive()) {
-				activeSensors++;
-				totalDensity+=sensor.getCurrentTrafficDensity();
+		return getSignalStrategy(statistics.getAverageDensity());
+	}
+	
+	//Signal strategy of every area that has at least one active sensor, keyed by area
+	public Map<String, String> getSignalStrategies() {
+		Map<String, String> strategies = new HashMap<>();
+		for(AreaStatistics statistics : trafficRepository.getAllAreaStatistics()) {
+			if(statistics.getActiveSensorCount() > 0) {
+				strategies.put(statistics.getLocation(), getSignalStrategy(statistics.getAverageDensity()));
 			}
 		}
-		
-		if(activeSensors == 0) {
-			throw new ServiceUnavailableException("No Active Sensors in area: " + area);
+		return strategies;
+	}
+	
+	//Subscribes to strategy changes instead of polling optimizeTrafficSignals. Events are only emitted when
+	//an area's average density moves past a threshold by more than the hysteresis margin.
+	public void addSignalStrategyListener(SignalStrategyListener listener) {
+		if(listener == null) {
+			throw new InvalidInputException("Signal strategy listener cannot be null");
 		}
-		
-		int averageDensity=totalDensity/activeSensors;
-		
-		String optimizationStrategy;
-		if (averageDensity < 20) {
-			optimizationStrategy = "NORMAL_FLOW";
-		} else if (averageDensity < 60) {
-			optimizationStrategy = "MODERATE_ADJUSTMENT";
-		} else if (averageDensity < 90) {
-			optimizationStrategy = "HEAVY_CONGESTION_PROTOCOL";
-		} else {
-			optimizationStrategy = "EMERGENCY_TRAFFIC_MANAGEMENT";
+		strategyMonitor.addListener(listener);
+	}
+	
+	public boolean removeSignalStrategyListener(SignalStrategyListener listener) {
+		return strategyMonitor.removeListener(listener);
+	}
+	
+	public void setSignalStrategyHysteresis(int hysteresis) {
+		if(hysteresis < 0) {
+			throw new InvalidInputException("Hysteresis cannot be negative");
 		}
-		
-		return optimizationStrategy;
+		strategyMonitor.setHysteresis(hysteresis);
+	}
+	
+	//Sensors that send no density reading within the timeout are marked STALE by expireStaleSensors
+	public void setHeartbeatTimeout(Duration timeout) {
+		if(timeout == null || timeout.isNegative() || timeout.isZero()) {
+			throw new InvalidInputException("Heartbeat timeout must be positive");
+		}
+		heartbeatMonitor.setTimeout(timeout.toMillis());
+	}
+	
+	//Meant to be called from a scheduler every few seconds; only sensors whose deadline has come round
+	//are examined. Returns the number of sensors marked STALE.
+	public int expireStaleSensors() {
+		return heartbeatMonitor.advance(System.currentTimeMillis());
+	}
+	
+	private String getSignalStrategy(int averageDensity) {
+		return SignalStrategy.forDensity(averageDensity).name();
 	}
 	
 	public void addSensor(TrafficSensor sensor) {
 		trafficRepository.addSensor(sensor);
 	}
+	
+	private void recordDensity(TrafficSensor sensor) {
+		DensityHistory history = densityHistories.get(sensor.getSensorId());
+		if(history == null) {
+			history = densityHistories.computeIfAbsent(sensor.getSensorId(), key -> new DensityHistory(historyCapacity));
+		}
+		history.record(sensor.getCurrentTrafficDensity(), sensor.getTimestampMillis());
+	}
+	
+	//Feeds the forecaster the area's running average, read from the repository's totals without allocating
+	private void recordAreaDensity(TrafficSensor sensor) {
+		String location = sensor.getLocation();
+		double averageDensity = trafficRepository.getAverageActiveDensity(location);
+		if(!Double.isNaN(averageDensity)) {
+			congestionForecaster.record(location, averageDensity, sensor.getTimestampMillis());
+		}
+	}
+	
+	private DensityHistory getDensityHistory(String sensorId, Duration window) {
+		if(getDensityReadingCount(sensorId, window) == 0) {
+			throw new ServiceUnavailableException("No density readings for sensor " + sensorId + " in the last " + window);
+		}
+		return densityHistories.get(sensorId);
+	}
+	
+	private long windowStart(Duration window) {
+		return System.currentTimeMillis() - window.toMillis();
+	}
 
 }
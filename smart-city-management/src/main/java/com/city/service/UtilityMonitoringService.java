@@ -1,25 +1,60 @@
 package com.city.service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import com.city.exception.InvalidInputException;
 import com.city.exception.ServiceUnavailableException;
+import com.city.model.ConsumptionStatistics;
 import com.city.model.UtilityMeter;
+import com.city.repository.QuantileSketch;
 import com.city.repository.UtilityRepository;
 
 public class UtilityMonitoringService {
 	
+	//Rendering into a caller's StringBuilder keeps no state, so the text renderer can be shared
+	private static final BillRenderer TEXT_RENDERER = new BillRenderer(BillRenderer.Format.TEXT);
+	
 	private UtilityRepository utilityRepository;
+	private TariffEngine tariffEngine;
+	//Lifetime charge of each billed meter by meter ID, advanced by every reading stored after it was started
+	private Map<String, MeterCharge> lifetimeCharges;
 	
 	public UtilityMonitoringService(UtilityRepository utilityRepository) {
+		this(utilityRepository, TariffEngine.defaults());
+	}
+	
+	public UtilityMonitoringService(UtilityRepository utilityRepository, TariffEngine tariffEngine) {
 		if(utilityRepository == null) {
 			throw new InvalidInputException("Utility Repository cannot be null");
 		}
 		
+		if(tariffEngine == null) {
+			throw new InvalidInputException("Tariff Engine cannot be null");
+		}
+		
 		this.utilityRepository = utilityRepository;
+		this.tariffEngine = tariffEngine;
+		this.lifetimeCharges = new ConcurrentHashMap<>();
+		utilityRepository.addMeterListener(new UtilityMeter.Listener() {
+			@Override
+			public void onReadingChanged(UtilityMeter meter) {
+				MeterCharge charge = lifetimeCharges.get(meter.getMeterId());
+				if(charge != null && charge.charges(meter)) {
+					charge.visit(meter.getLastUpdatedMillis(), meter.getCurrentReading());
+				}
+			}
+		});
 	}
 	
 	public void recordUtilityConsumption(String meterId, double reading) {
@@ -31,18 +66,14 @@ public class UtilityMonitoringService {
 			throw new InvalidInputException("Meter Reading cannot be negative");
 		}
 		
-		Optional<UtilityMeter> meterOpt = utilityRepository.findMeterById(meterId);
-		if(!meterOpt.isPresent()) {
+		//The stored meter is updated in place, so no follow-up updateMeter is needed
+		UtilityRepository.ReadingUpdateResult result = utilityRepository.recordMeterReading(meterId, reading);
+		if(result == UtilityRepository.ReadingUpdateResult.METER_NOT_FOUND) {
 			throw new ServiceUnavailableException("Meter with ID " + meterId + " not found");
 		}
-		UtilityMeter meter = meterOpt.get();
-		
-		if(meter.getCurrentReading() > reading) {
+		if(result == UtilityRepository.ReadingUpdateResult.READING_DECREASED) {
 			throw new InvalidInputException("New reading cannot be less than current reading");
 		}
-		
-		meter.setCurrentReading(reading);
-		utilityRepository.updateMeter(meterId, meter);
 	}
 	
 	public String generateBill(String propertyId, UtilityMeter.UtilityType utilityType) {
@@ -54,32 +85,121 @@ public class UtilityMonitoringService {
 			throw new InvalidInputException("Utility type cannot be null");
 		}
 		
-		List<UtilityMeter> propertyMeters = utilityRepository.getMetersByProperty(propertyId);
-		if (propertyMeters.isEmpty()) {
-            throw new ServiceUnavailableException("No utility meters found for property: " + propertyId);
-        }
+		Optional<UtilityMeter> meterOpt = utilityRepository.findMeterByProperty(propertyId, utilityType);
+		if(!meterOpt.isPresent()) {
+			if (utilityRepository.getMetersByProperty(propertyId).isEmpty()) {
+	            throw new ServiceUnavailableException("No utility meters found for property: " + propertyId);
+	        }
+			throw new ServiceUnavailableException("Utility meter for " + utilityType.toString() + 
+					" not found for property " + propertyId);
+		}
+		UtilityMeter targetMeter = meterOpt.get();
 		
-		UtilityMeter targetMeter = null;
-		for(UtilityMeter meter : propertyMeters) {
-			if(utilityType == meter.getUtilityType()) {
-				targetMeter = meter;
-			}
+		//Each reading's increase is billed at the time-of-use rate of the hour it was taken. Readings may be
+		//stored from an ingestion thread, so the meter and its charge are read under the repository's monitor.
+		StringBuilder bill = new StringBuilder(128);
+		synchronized(utilityRepository) {
+			MeterCharge charge = chargeLifetime(targetMeter);
+			TEXT_RENDERER.render(bill, propertyId, targetMeter.getMeterId(), utilityType, targetMeter.getCurrentReading(),
+					charge.getRate(), charge.getAmount());
+		}
+		return bill.toString();
+	}
+	
+	//Bills the consumption between two dates from the reading history instead of the lifetime reading
+	public String generateBill(String propertyId, UtilityMeter.UtilityType utilityType, LocalDateTime from, LocalDateTime to) {
+		if(propertyId == null || propertyId.trim().isEmpty()) {
+			throw new InvalidInputException("Property ID cannot be null or empty");
 		}
 		
-		if(targetMeter == null) {
+		if(utilityType == null) {
+			throw new InvalidInputException("Utility type cannot be null");
+		}
+		
+		Optional<UtilityMeter> meterOpt = utilityRepository.findMeterByProperty(propertyId, utilityType);
+		if(!meterOpt.isPresent()) {
 			throw new ServiceUnavailableException("Utility meter for " + utilityType.toString() + 
 					" not found for property " + propertyId);
 		}
 		
-		double consumption = targetMeter.getCurrentReading();
-		double rate = getUtilityRate(utilityType);
+		UtilityMeter targetMeter = meterOpt.get();
+		
+		//Each reading's increase within the period is billed at the time-of-use rate of the hour it was taken
+		double consumption;
+		MeterCharge charge;
+		synchronized(utilityRepository) {
+			consumption = getConsumption(targetMeter.getMeterId(), from, to);
+			double startReading = utilityRepository.findReadingAt(targetMeter.getMeterId(), toMillis(from)).getAsDouble();
+			charge = new MeterCharge(tariffEngine, targetMeter, startReading, toMillis(to));
+			utilityRepository.forEachReading(targetMeter.getMeterId(), toMillis(from), toMillis(to), charge);
+		}
+		
+		StringBuilder bill = new StringBuilder(192);
+		TEXT_RENDERER.render(bill, propertyId, targetMeter.getMeterId(), utilityType, from, to, consumption,
+				charge.getRate(), charge.getAmount());
+		return bill.toString();
+	}
+	
+	public BatchBillingEngine.BillingRunSummary runBatchBilling(Path outputFile, int parallelism) throws IOException {
+		return runBatchBilling(outputFile, parallelism, BillRenderer.Format.CSV);
+	}
+	
+	//Bills every property and utility type in one pass and writes one record per bill to outputFile.
+	//Amounts match generateBill; the summary reports the run's throughput.
+	public BatchBillingEngine.BillingRunSummary runBatchBilling(Path outputFile, int parallelism, BillRenderer.Format format) throws IOException {
+		if(outputFile == null) {
+			throw new InvalidInputException("Output file cannot be null");
+		}
+		if(parallelism <= 0) {
+			throw new InvalidInputException("Parallelism must be positive");
+		}
+		if(format == null) {
+			throw new InvalidInputException("Bill format cannot be null");
+		}
 		
-		String bill = "Utility Bill for Property " + propertyId + 
-				"\nUtility Type: " + utilityType.toString() +
-				"\nCurrent Reading: " + consumption +
-				"\nRate: " + rate +
-				"\nTotal Amount: " + rate*consumption;
-		return bill;
+		//The snapshot is taken under the repository's monitor; rendering and writing run without it
+		BatchBillingEngine engine;
+		synchronized(utilityRepository) {
+			engine = new BatchBillingEngine(this, utilityRepository.getBillableMeters(), format);
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return engine.run(outputFile, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+	
+	//Charge for every reading of the meter, starting from zero. The reading history is walked only to
+	//start the running charge, when the meter is first billed or was replaced or moved to another tariff.
+	//Callers hold the repository's monitor, under which the charges are also advanced.
+	MeterCharge chargeLifetime(UtilityMeter meter) {
+		MeterCharge charge = lifetimeCharges.get(meter.getMeterId());
+		if(charge == null || !charge.charges(meter)) {
+			charge = new MeterCharge(tariffEngine, meter, 0, meter.getLastUpdatedMillis());
+			utilityRepository.forEachReading(meter.getMeterId(), Long.MIN_VALUE, Long.MAX_VALUE, charge);
+			lifetimeCharges.put(meter.getMeterId(), charge);
+		}
+		return charge;
+	}
+	
+	public double getConsumption(String meterId, LocalDateTime from, LocalDateTime to) {
+		if(meterId == null || meterId.trim().isEmpty()) {
+			throw new InvalidInputException("Meter ID cannot be null or empty");
+		}
+		if(from == null || to == null || from.isAfter(to)) {
+			throw new InvalidInputException("Billing period must have a start that is not after its end");
+		}
+		
+		OptionalDouble endReading = utilityRepository.findReadingAt(meterId, toMillis(to));
+		if(!endReading.isPresent()) {
+			throw new ServiceUnavailableException("No readings recorded for meter " + meterId);
+		}
+		OptionalDouble startReading = utilityRepository.findReadingAt(meterId, toMillis(from));
+		
+		//A meter installed after the end of the period has not consumed anything in it
+		return Math.max(0, endReading.getAsDouble() - startReading.orElse(endReading.getAsDouble()));
 	}
 	
 	public List<UtilityMeter> detectAnomalies(double threshold){
@@ -104,29 +224,65 @@ public class UtilityMonitoringService {
         return anomalousMeters;
 	}
 	
-	public Map<UtilityMeter.UtilityType,Double> calculateAverageConsumption(){
-		Map<UtilityMeter.UtilityType, Double> averages = new java.util.HashMap<>();
-		Map<UtilityMeter.UtilityType, Double> totals = new java.util.HashMap<>();
-		Map<UtilityMeter.UtilityType, Integer> counts = new java.util.HashMap<>();
+	//Meters whose reading lies more than zThreshold standard deviations above the mean of their utility type
+	public List<UtilityMeter> detectAnomaliesByZScore(double zThreshold){
+		if(zThreshold<0) {
+			throw new InvalidInputException("Z-score threshold cannot be negative");
+		}
 		
-		for (UtilityMeter.UtilityType type : UtilityMeter.UtilityType.values()) {
-            totals.put(type, 0.0);
-            counts.put(type, 0);
-        }
+		Map<UtilityMeter.UtilityType, ConsumptionStatistics> statistics = getConsumptionStatistics();
+		List<UtilityMeter> anomalousMeters= new ArrayList<>();
+		for (UtilityMeter meter : utilityRepository.getAllMeters().values()) {
+			if (statistics.get(meter.getUtilityType()).zScore(meter.getCurrentReading()) > zThreshold) {
+				anomalousMeters.add(meter);
+			}
+		}
+		return anomalousMeters;
+	}
+	
+	//Meters whose reading lies above the given percentile (0-100) of their utility type, taken from the
+	//repository's quantile sketches instead of sorting every meter. Readings within the sketch's relative
+	//accuracy of the percentile are not flagged.
+	public List<UtilityMeter> detectAnomaliesByPercentile(double percentile){
+		if(!(percentile >= 0 && percentile <= 100)) {
+			throw new InvalidInputException("Percentile must be between 0 and 100");
+		}
 		
-		Map<String,UtilityMeter> allMeters= utilityRepository.getAllMeters();
-		for(UtilityMeter meter : allMeters.values()) {
-			UtilityMeter.UtilityType type = meter.getUtilityType();
-			totals.put(type,totals.get(type) + meter.getCurrentReading());
-			counts.put(type, counts.get(type)+1);
+		Map<UtilityMeter.UtilityType, Double> thresholds = new EnumMap<>(UtilityMeter.UtilityType.class);
+		for (UtilityMeter.UtilityType type : UtilityMeter.UtilityType.values()) {
+			OptionalDouble quantile = utilityRepository.findConsumptionQuantile(type, percentile / 100);
+			thresholds.put(type, quantile.isPresent()
+					? quantile.getAsDouble() * (1 + QuantileSketch.DEFAULT_RELATIVE_ACCURACY) : Double.MAX_VALUE);
 		}
 		
+		List<UtilityMeter> anomalousMeters= new ArrayList<>();
+		for (UtilityMeter meter : utilityRepository.getAllMeters().values()) {
+			if (meter.getCurrentReading() > thresholds.get(meter.getUtilityType())) {
+				anomalousMeters.add(meter);
+			}
+		}
+		return anomalousMeters;
+	}
+	
+	public OptionalDouble getConsumptionQuantile(UtilityMeter.UtilityType utilityType, double quantile) {
+		return utilityRepository.findConsumptionQuantile(utilityType, quantile);
+	}
+	
+	//Averages come from the repository's running per-type statistics, no meter is visited
+	public Map<UtilityMeter.UtilityType,Double> calculateAverageConsumption(){
+		Map<UtilityMeter.UtilityType, Double> averages = new EnumMap<>(UtilityMeter.UtilityType.class);
 		for (UtilityMeter.UtilityType type : UtilityMeter.UtilityType.values()) {
-            int count = counts.get(type);
-            averages.put(type, count > 0 ? totals.get(type) / count : 0.0);
-        }
-
-        return averages;
+			averages.put(type, utilityRepository.getConsumptionStatistics(type).getAverageReading());
+		}
+		return averages;
+	}
+	
+	public Map<UtilityMeter.UtilityType, ConsumptionStatistics> getConsumptionStatistics(){
+		Map<UtilityMeter.UtilityType, ConsumptionStatistics> statistics = new EnumMap<>(UtilityMeter.UtilityType.class);
+		for (UtilityMeter.UtilityType type : UtilityMeter.UtilityType.values()) {
+			statistics.put(type, utilityRepository.getConsumptionStatistics(type));
+		}
+		return statistics;
 	}
 	
 	public Optional<UtilityMeter> findMeterById(String meterId){
@@ -137,14 +293,9 @@ public class UtilityMonitoringService {
 		return utilityRepository.getMeterReading(meterId);
 	}
 	
-	private double getUtilityRate(UtilityMeter.UtilityType utilityType) {
-        switch (utilityType) {
-            case ELECTRICITY: return 7; 	// Rs 7 per kWh
-            case WATER: return 0.1;       	// Rs 0.1 per liter
-            case GAS: return 90;         	// Rs 90 per kg
-            default: return 0.0;
-        }
-    }
+	private long toMillis(LocalDateTime dateTime) {
+		return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
 	
 	public void addMeter(UtilityMeter meter) {
 		utilityRepository.addMeter(meter);
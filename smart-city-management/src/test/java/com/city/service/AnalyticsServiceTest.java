@@ -24,7 +24,7 @@ public class AnalyticsServiceTest {
 
     @BeforeMethod
     public void setUp() {
-        trafficRepository = new TrafficRepository();
+        trafficRepository = new HeapTrafficRepository();
         utilityRepository = new UtilityRepository();
         complaintRepository = new ComplaintRepository();
         emergencyRepository = new EmergencyRepository();
@@ -97,7 +97,7 @@ public class AnalyticsServiceTest {
     
     @Test
     public void testGenerateTrafficReportWithNoData() {
-        TrafficRepository emptyRepository = new TrafficRepository();
+        TrafficRepository emptyRepository = new HeapTrafficRepository();
         AnalyticsService emptyAnalytics = new AnalyticsService(emptyRepository, utilityRepository, complaintRepository, emergencyRepository);
         
         String report = emptyAnalytics.generateTrafficReport();
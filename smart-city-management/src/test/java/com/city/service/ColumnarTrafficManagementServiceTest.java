@@ -0,0 +1,84 @@
+package com.city.service;
+
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.city.model.TrafficSensor;
+import com.city.repository.ColumnarTrafficRepository;
+import com.city.repository.TrafficRepository;
+
+//Runs the traffic service tests against the off-heap columnar backend
+public class ColumnarTrafficManagementServiceTest extends TrafficManagementServiceTest {
+	
+	@Override
+	protected TrafficRepository createRepository() {
+		return new ColumnarTrafficRepository();
+	}
+	
+	@Test
+	public void testMaterialisedSensorsWriteThrough() {
+		TrafficSensor first = trafficRepository.getSensor("TS003");
+		TrafficSensor second = trafficRepository.getSensor("TS003");
+		assertNotSame(first, second);
+		
+		first.setCurrentTrafficDensity(70);
+		second.setStatus(TrafficSensor.Status.INACTIVE);
+		
+		TrafficSensor stored = trafficRepository.getSensor("TS003");
+		assertEquals(stored.getCurrentTrafficDensity(), 70);
+		assertEquals(stored.getStatus(), TrafficSensor.Status.INACTIVE);
+		assertEquals(stored.getTimestampMillis(), first.getTimestampMillis());
+		assertEquals(trafficRepository.findAreaStatistics("North Highway").get().getActiveSensorCount(), 0);
+	}
+	
+	@Test
+	public void testSensorLockIsSharedByMaterialisedInstances() {
+		assertNotSame(trafficRepository.getSensor("TS003"), trafficRepository.getSensor("TS003"));
+		assertSame(trafficRepository.getSensorLock("TS003"), trafficRepository.getSensorLock("TS003"));
+		assertNull(trafficRepository.getSensorLock("TS999"));
+	}
+	
+	@Test
+	public void testDensityBucketsFollowUpdates() {
+		trafficService.updateTrafficDensity("TS012", 99);
+		trafficService.updateTrafficDensity("TS009", 40);
+		trafficRepository.getSensor("TS005").setStatus(TrafficSensor.Status.INACTIVE);
+		trafficRepository.getSensor("TS011").setStatus(TrafficSensor.Status.ACTIVE);
+		
+		List<TrafficSensor> congested = trafficRepository.getMostCongestedSensors(3);
+		assertEquals(congested.size(), 3);
+		assertEquals(congested.get(0).getSensorId(), "TS012");
+		assertEquals(congested.get(1).getSensorId(), "TS002");
+		assertEquals(congested.get(2).getSensorId(), "TS011");
+		assertEquals(trafficRepository.getActiveSensorsWithDensityAtLeast(70).size(), 3);
+		assertEquals(trafficRepository.getMostCongestedLocations(2), Arrays.asList("Park Entrance", "City Center Circle"));
+		
+		//Many sensors sharing one density still leave their bucket individually
+		for(int i = 0; i < 100; i++) {
+			trafficRepository.addSensor(new TrafficSensor("SAME" + i, "Same Lane", 50, TrafficSensor.Status.ACTIVE));
+		}
+		for(int i = 0; i < 100; i += 2) {
+			trafficService.updateTrafficDensity("SAME" + i, 51);
+		}
+		assertEquals(trafficRepository.getActiveSensorsWithDensityAtLeast(51).size() - trafficRepository.getActiveSensorsWithDensityAtLeast(52).size(), 50);
+		assertEquals(trafficRepository.getActiveSensorsWithDensityAtLeast(50).size() - trafficRepository.getActiveSensorsWithDensityAtLeast(51).size(), 50);
+	}
+	
+	@Test
+	public void testColumnsGrowAcrossChunks() {
+		int sensors = 20000;
+		for(int i = 0; i < sensors; i++) {
+			trafficRepository.addSensor(new TrafficSensor("GRID" + i, "Grid " + (i % 50), i % 100, TrafficSensor.Status.ACTIVE));
+		}
+		
+		assertEquals(trafficRepository.getSensorCount(), sensors + 12);
+		assertEquals(trafficRepository.getSensor("GRID19999").getCurrentTrafficDensity(), 99);
+		assertEquals(trafficRepository.getSensorsByLocation("Grid 7").size(), sensors / 50);
+		assertEquals(trafficService.getHighTrafficAreas(99).size(), sensors / 100);
+	}
+
+}
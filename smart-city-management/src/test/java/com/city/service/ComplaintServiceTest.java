@@ -2,6 +2,10 @@ package com.city.service;
 
 import static org.testng.Assert.*;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,6 +18,8 @@ import com.city.exception.ServiceUnavailableException;
 import com.city.model.Citizen;
 import com.city.model.Complaint;
 import com.city.repository.CitizenRepository;
+import com.city.repository.ComplaintCursor;
+import com.city.repository.ComplaintQuery;
 import com.city.repository.ComplaintRepository;
 
 public class ComplaintServiceTest {
@@ -212,6 +218,292 @@ public class ComplaintServiceTest {
         complaintService.getComplaintsByPriority(null);
     }
     
+    @Test
+    public void testStatusIndexFollowsInPlaceUpdates() {
+    	int open = complaintService.getComplaintByStatus(Complaint.Status.OPEN).size();
+    	Complaint complaint = complaintService.getComplaintByStatus(Complaint.Status.OPEN).get(0);
+    	
+    	complaintService.updateComplaintStatus(complaint.getComplaintId(), Complaint.Status.IN_PROGRESS);
+    	assertEquals(complaintService.getComplaintByStatus(Complaint.Status.OPEN).size(), open - 1);
+    	assertTrue(complaintService.getComplaintByStatus(Complaint.Status.IN_PROGRESS).contains(complaint));
+    	
+    	complaintService.resolveComplaint(complaint.getComplaintId());
+    	assertFalse(complaintService.getComplaintByStatus(Complaint.Status.IN_PROGRESS).contains(complaint));
+    	assertTrue(complaintService.getComplaintByStatus(Complaint.Status.RESOLVED).contains(complaint));
+    }
+    
+    @Test
+    public void testPriorityAndCategoryIndexes() {
+    	Complaint complaint = complaintService.registerComplaint("C001", Complaint.Category.WATER, "Burst pipe", Complaint.Priority.LOW);
+    	assertTrue(complaintService.getComplaintByCategory(Complaint.Category.WATER).contains(complaint));
+    	
+    	complaint.setPriority(Complaint.Priority.HIGH);
+    	assertFalse(complaintService.getComplaintsByPriority(Complaint.Priority.LOW).contains(complaint));
+    	assertTrue(complaintService.getComplaintsByPriority(Complaint.Priority.HIGH).contains(complaint));
+    	
+    	assertTrue(complaintRepository.removeComplaint(complaint.getComplaintId()));
+    	assertFalse(complaintService.getComplaintsByPriority(Complaint.Priority.HIGH).contains(complaint));
+    	assertFalse(complaintService.getComplaintByCategory(Complaint.Category.WATER).contains(complaint));
+    	
+    	//A removed complaint no longer moves between index sets
+    	complaint.setStatus(Complaint.Status.RESOLVED);
+    	assertFalse(complaintService.getComplaintByStatus(Complaint.Status.RESOLVED).contains(complaint));
+    }
+    
+    @Test
+    public void testUpdateComplaintReplacesIndexedComplaint() {
+    	Complaint original = complaintService.registerComplaint("C002", Complaint.Category.ROAD, "Cracked pavement", Complaint.Priority.MEDIUM);
+    	Complaint replacement = new Complaint(original.getComplaintId(), "C002", Complaint.Category.ELECTRICITY, "Fallen cable", Complaint.Priority.HIGH);
+    	
+    	complaintRepository.updateComplaint(original.getComplaintId(), replacement);
+    	assertFalse(complaintService.getComplaintByCategory(Complaint.Category.ROAD).contains(original));
+    	assertTrue(complaintService.getComplaintByCategory(Complaint.Category.ELECTRICITY).contains(replacement));
+    	assertFalse(complaintService.getComplaintsByPriority(Complaint.Priority.MEDIUM).contains(original));
+    	
+    	original.setPriority(Complaint.Priority.LOW);
+    	assertFalse(complaintService.getComplaintsByPriority(Complaint.Priority.LOW).contains(original));
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testUpdateComplaintWithMismatchedId() {
+    	Complaint original = complaintService.registerComplaint("C002", Complaint.Category.ROAD, "Cracked pavement", Complaint.Priority.MEDIUM);
+    	complaintRepository.updateComplaint(original.getComplaintId(),
+    			new Complaint("OTHER-ID", "C002", Complaint.Category.ROAD, "Cracked pavement", Complaint.Priority.MEDIUM));
+    }
+    
+    @Test
+    public void testGetComplaintsByCitizenPaged() {
+    	int existing = complaintService.getComplaintCountByCitizen("C007");
+    	for (int i = 0; i < 5; i++) {
+    		complaintService.registerComplaint("C007", Complaint.Category.ROAD, "Report " + i, Complaint.Priority.LOW);
+    	}
+    	assertEquals(complaintService.getComplaintCountByCitizen("C007"), existing + 5);
+    	
+    	List<Complaint> page = complaintService.getComplaintsByCitizen("C007", existing + 1, 2);
+    	assertEquals(page.size(), 2);
+    	assertEquals(page.get(0).getDescription(), "Report 1");
+    	assertEquals(page.get(1).getDescription(), "Report 2");
+    	assertEquals(complaintService.getComplaintsByCitizen("C007", existing + 4, 10).size(), 1);
+    	assertTrue(complaintService.getComplaintsByCitizen("C999", 0, 10).isEmpty());
+    	
+    	complaintRepository.removeComplaint(page.get(0).getComplaintId());
+    	assertEquals(complaintService.getComplaintCountByCitizen("C007"), existing + 4);
+    	assertEquals(complaintService.getComplaintsByCitizen("C007", existing + 1, 1).get(0).getDescription(), "Report 2");
+    	assertEquals(complaintRepository.getComplaintsByCitizen("C007").size(), existing + 4);
+    }
+    
+    @Test
+    public void testReplacedComplaintKeepsCitizenPosition() {
+    	int existing = complaintService.getComplaintCountByCitizen("C007");
+    	for (int i = 0; i < 3; i++) {
+    		complaintService.registerComplaint("C007", Complaint.Category.ROAD, "Report " + i, Complaint.Priority.LOW);
+    	}
+    	String complaintId = complaintService.getComplaintsByCitizen("C007", existing, 1).get(0).getComplaintId();
+    	
+    	complaintRepository.updateComplaint(complaintId,
+    			new Complaint(complaintId, "C007", Complaint.Category.ROAD, "Report 0 revised", Complaint.Priority.HIGH));
+    	
+    	List<Complaint> page = complaintService.getComplaintsByCitizen("C007", existing, 3);
+    	assertEquals(page.get(0).getDescription(), "Report 0 revised");
+    	assertEquals(page.get(1).getDescription(), "Report 1");
+    	assertEquals(page.get(2).getDescription(), "Report 2");
+    	
+    	complaintRepository.updateComplaint(complaintId,
+    			new Complaint(complaintId, "C999", Complaint.Category.ROAD, "Report 0 reassigned", Complaint.Priority.HIGH));
+    	
+    	assertEquals(complaintService.getComplaintCountByCitizen("C007"), existing + 2);
+    	assertEquals(complaintService.getComplaintsByCitizen("C999", 0, 10).get(0).getDescription(), "Report 0 reassigned");
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testGetComplaintsByCitizenWithInvalidLimit() {
+    	complaintService.getComplaintsByCitizen("C001", 0, 0);
+    }
+    
+    @Test
+    public void testCompoundComplaintQuery() {
+    	ComplaintRepository repository = new ComplaintRepository();
+    	for (int i = 0; i < 10_000; i++) {
+    		Complaint complaint = new Complaint("Q" + i, "C001", Complaint.Category.values()[i % 3], "Bulk " + i, Complaint.Priority.values()[i % 2]);
+    		repository.addComplaint(complaint);
+    		if (i % 5 == 0) {
+    			complaint.setStatus(Complaint.Status.RESOLVED);
+    		}
+    	}
+    	
+    	ComplaintQuery openMediumRoad = new ComplaintQuery().status(Complaint.Status.OPEN).priority(Complaint.Priority.MEDIUM).category(Complaint.Category.ROAD);
+    	int expected = 0;
+    	for (int i = 0; i < 10_000; i++) {
+    		if (i % 5 != 0 && i % 2 == 1 && i % 3 == 0) {
+    			expected++;
+    		}
+    	}
+    	assertEquals(repository.countComplaints(openMediumRoad), expected);
+    	for (Complaint complaint : repository.findComplaints(openMediumRoad)) {
+    		assertEquals(complaint.getStatus(), Complaint.Status.OPEN);
+    		assertEquals(complaint.getPriority(), Complaint.Priority.MEDIUM);
+    		assertEquals(complaint.getCategory(), Complaint.Category.ROAD);
+    	}
+    	assertEquals(repository.countComplaints(new ComplaintQuery().category(Complaint.Category.ROAD, Complaint.Category.WATER)), 6667);
+    	assertEquals(repository.countComplaints(new ComplaintQuery().status(Complaint.Status.RESOLVED)), 2000);
+    	assertEquals(repository.countComplaints(new ComplaintQuery()), 10_000);
+    	
+    	for (int i = 0; i < 10_000; i += 2) {
+    		repository.removeComplaint("Q" + i);
+    	}
+    	assertEquals(repository.countComplaints(new ComplaintQuery().priority(Complaint.Priority.LOW)), 0);
+    	assertEquals(repository.countComplaints(new ComplaintQuery().status(Complaint.Status.RESOLVED)), 1000);
+    	assertEquals(repository.getComplaintsByPriority(Complaint.Priority.MEDIUM).size(), 5000);
+    }
+    
+    @Test
+    public void testComplaintQueryByCreationDate() {
+    	LocalDateTime now = LocalDateTime.now();
+    	int total = complaintRepository.getComplaintCount();
+    	ComplaintQuery wholeDays = new ComplaintQuery().createdBetween(now.toLocalDate().minusDays(1).atStartOfDay(), now.toLocalDate().plusDays(1).atStartOfDay());
+    	ComplaintQuery lastHour = new ComplaintQuery().createdBetween(now.minusHours(1), now.plusSeconds(1));
+    	ComplaintQuery tomorrow = new ComplaintQuery().createdBetween(now.plusDays(1), now.plusDays(2));
+    	
+    	assertEquals(complaintRepository.countComplaints(wholeDays), total);
+    	assertEquals(complaintRepository.countComplaints(lastHour), total);
+    	assertEquals(complaintRepository.countComplaints(tomorrow), 0);
+    	assertEquals(complaintRepository.countComplaints(lastHour.status(Complaint.Status.OPEN)),
+    			complaintService.getComplaintByStatus(Complaint.Status.OPEN).size());
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testComplaintQueryWithInvertedRange() {
+    	new ComplaintQuery().createdBetween(LocalDateTime.now(), LocalDateTime.now().minusDays(1));
+    }
+    
+    @Test
+    public void testComplaintsUpdatedAfterCursor() {
+    	List<Complaint> firstPage = complaintService.getComplaintsUpdatedAfter(ComplaintCursor.beginning(), 3);
+    	assertEquals(firstPage.size(), 3);
+    	ComplaintCursor cursor = complaintService.findComplaintCursor(firstPage.get(2).getComplaintId()).get();
+    	
+    	int remaining = complaintRepository.getComplaintCount() - 3;
+    	assertEquals(complaintService.getComplaintsUpdatedAfter(cursor, 1000).size(), remaining);
+    	
+    	//A complaint changed after the cursor moves behind it and is synced again
+    	Complaint changed = firstPage.get(0);
+    	complaintService.updateComplaintStatus(changed.getComplaintId(), Complaint.Status.IN_PROGRESS);
+    	List<Complaint> sinceCursor = complaintService.getComplaintsUpdatedAfter(cursor, 1000);
+    	assertEquals(sinceCursor.size(), remaining + 1);
+    	assertTrue(sinceCursor.contains(changed));
+    	
+    	changed.setDescription("Updated description");
+    	assertEquals(complaintService.getComplaintsUpdatedAfter(cursor, 1000).size(), remaining + 1);
+    	assertTrue(complaintService.getComplaintsUpdatedSince(changed.getUpdatedAt()).contains(changed));
+    	assertFalse(complaintService.getComplaintsUpdatedAfter(complaintService.findComplaintCursor(changed.getComplaintId()).get(), 10).contains(changed));
+    }
+    
+    @Test
+    public void testComplaintsUpdatedAfterCursorIgnoreWallClock() {
+    	Complaint original = complaintService.registerComplaint("C003", Complaint.Category.WATER, "Leaking main", Complaint.Priority.HIGH);
+    	//Built before the cursor is taken, so its update time lies behind the cursor
+    	Complaint replacement = new Complaint(original.getComplaintId(), "C003", Complaint.Category.WATER, "Burst main", Complaint.Priority.HIGH);
+    	ComplaintCursor cursor = complaintService.findComplaintCursor(original.getComplaintId()).get();
+    	assertTrue(complaintService.getComplaintsUpdatedAfter(cursor, 10).isEmpty());
+    	
+    	complaintRepository.updateComplaint(original.getComplaintId(), replacement);
+    	assertEquals(complaintService.getComplaintsUpdatedAfter(cursor, 10), Collections.singletonList(replacement));
+    	
+    	//Updates within the same clock tick are still returned once each, in update order
+    	ComplaintCursor afterReplacement = complaintService.findComplaintCursor(replacement.getComplaintId()).get();
+    	Complaint other = complaintService.getComplaintsUpdatedAfter(ComplaintCursor.beginning(), 1).get(0);
+    	other.setPriority(Complaint.Priority.LOW);
+    	replacement.setPriority(Complaint.Priority.LOW);
+    	assertEquals(complaintService.getComplaintsUpdatedAfter(afterReplacement, 10), Arrays.asList(other, replacement));
+    	assertFalse(complaintService.findComplaintCursor("NON_EXISTENT").isPresent());
+    }
+    
+    @Test
+    public void testComplaintsCreatedAndUpdatedBetween() {
+    	LocalDateTime now = LocalDateTime.now();
+    	int total = complaintRepository.getComplaintCount();
+    	
+    	assertEquals(complaintRepository.getComplaintsCreatedBetween(now.minusHours(1), now.plusSeconds(1)).size(), total);
+    	assertTrue(complaintRepository.getComplaintsCreatedBetween(now.plusSeconds(1), now.plusHours(1)).isEmpty());
+    	
+    	Complaint complaint = complaintRepository.getComplaintsCreatedBetween(now.minusHours(1), now.plusSeconds(1)).get(0);
+    	complaintRepository.removeComplaint(complaint.getComplaintId());
+    	assertEquals(complaintRepository.getComplaintsUpdatedBetween(now.minusHours(1), now.plusSeconds(1)).size(), total - 1);
+    }
+    
+    @Test
+    public void testSearchComplaints() {
+    	List<Complaint> pothole = complaintService.searchComplaints("pothole Main Street", ComplaintRepository.SearchMode.ALL, 10);
+    	assertEquals(pothole.size(), 1);
+    	assertEquals(pothole.get(0).getDescription(), "Large pothole on Main Street");
+    	assertEquals(complaintService.searchComplaints("POTHOLE, main", ComplaintRepository.SearchMode.ALL, 10), pothole);
+    	assertTrue(complaintService.searchComplaints("pothole sinkhole", ComplaintRepository.SearchMode.ALL, 10).isEmpty());
+    	
+    	//Both words outrank either one alone
+    	List<Complaint> water = complaintService.searchComplaints("water supply", ComplaintRepository.SearchMode.ANY, 10);
+    	assertEquals(water.size(), 4);
+    	for (Complaint complaint : water.subList(0, 2)) {
+    		assertTrue(complaint.getDescription().contains("water supply"));
+    	}
+    	assertEquals(complaintService.searchComplaints("water supply", ComplaintRepository.SearchMode.ANY, 2), water.subList(0, 2));
+    	assertEquals(complaintService.searchComplaints("water supply", ComplaintRepository.SearchMode.ALL, 10).size(), 2);
+    }
+    
+    @Test
+    public void testSearchFollowsDescriptionChanges() {
+    	Complaint complaint = complaintService.searchComplaints("pothole", ComplaintRepository.SearchMode.ALL, 1).get(0);
+    	for (int i = 0; i < 100; i++) {
+    		complaint.setDescription("Sinkhole number " + i + " on Main Street");
+    	}
+    	assertTrue(complaintService.searchComplaints("pothole", ComplaintRepository.SearchMode.ANY, 10).isEmpty());
+    	assertTrue(complaintService.searchComplaints("sinkhole 98", ComplaintRepository.SearchMode.ALL, 10).isEmpty());
+    	assertEquals(complaintService.searchComplaints("sinkhole 99 street", ComplaintRepository.SearchMode.ALL, 10), Collections.singletonList(complaint));
+    	assertEquals(complaintService.searchComplaints("sinkhole", ComplaintRepository.SearchMode.ANY, 10), Collections.singletonList(complaint));
+    	
+    	complaintRepository.removeComplaint(complaint.getComplaintId());
+    	assertTrue(complaintService.searchComplaints("sinkhole", ComplaintRepository.SearchMode.ANY, 10).isEmpty());
+    	assertEquals(complaintService.searchComplaints("street", ComplaintRepository.SearchMode.ANY, 10).size(), 1);
+    }
+    
+    @Test
+    public void testSearchRankingSurvivesManyEdits() {
+    	List<Complaint> water = complaintService.searchComplaints("water supply", ComplaintRepository.SearchMode.ANY, 10);
+    	Complaint edited = complaintService.registerComplaint("C004", Complaint.Category.ROAD, "Faded markings", Complaint.Priority.LOW);
+    	//Retired descriptions are renumbered away many times over
+    	for (int i = 0; i < 5000; i++) {
+    		edited.setDescription("Faded markings report " + i);
+    	}
+    	
+    	assertEquals(complaintService.searchComplaints("water supply", ComplaintRepository.SearchMode.ANY, 10), water);
+    	assertEquals(complaintService.searchComplaints("markings 4999", ComplaintRepository.SearchMode.ALL, 10), Collections.singletonList(edited));
+    	assertTrue(complaintService.searchComplaints("markings 4998", ComplaintRepository.SearchMode.ALL, 10).isEmpty());
+    }
+    
+    @Test
+    public void testSearchTiesKeepAgeOrderAcrossRenumbering() {
+    	List<Complaint> tied = new ArrayList<>();
+    	for (int i = 0; i < 4; i++) {
+    		tied.add(complaintService.registerComplaint("C00" + (i + 1), Complaint.Category.ROAD, "Barking dog at night", Complaint.Priority.LOW));
+    	}
+    	assertEquals(complaintService.searchComplaints("barking dog", ComplaintRepository.SearchMode.ALL, 10), tied);
+    	
+    	Complaint edited = complaintService.registerComplaint("C005", Complaint.Category.ROAD, "Faded markings", Complaint.Priority.LOW);
+    	complaintRepository.removeComplaint(tied.remove(1).getComplaintId());
+    	for (int i = 0; i < 1000; i++) {
+    		edited.setDescription("Faded markings report " + i);
+    	}
+    	
+    	assertEquals(complaintService.searchComplaints("barking dog", ComplaintRepository.SearchMode.ALL, 10), tied);
+    	assertEquals(complaintService.searchComplaints("barking dog", ComplaintRepository.SearchMode.ANY, 2), tied.subList(0, 2));
+    }
+    
+    @Test
+    public void testSearchComplaintsInvalidInput() {
+    	assertThrows(InvalidInputException.class, () -> complaintService.searchComplaints(" ", ComplaintRepository.SearchMode.ANY, 10));
+    	assertThrows(InvalidInputException.class, () -> complaintService.searchComplaints("water", null, 10));
+    	assertThrows(InvalidInputException.class, () -> complaintService.searchComplaints("water", ComplaintRepository.SearchMode.ANY, 0));
+    }
+    
     @Test
     public void testComplaintIdAutoGeneration() {
         Complaint complaint1 = complaintService.registerComplaint("C001", Complaint.Category.ROAD, "Test 1", Complaint.Priority.HIGH);
@@ -0,0 +1,166 @@
+package com.city.service;
+
+import static org.testng.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.city.exception.InvalidInputException;
+import com.city.model.UtilityMeter;
+import com.city.repository.UtilityRepository;
+
+public class MeterReadingIngestorTest {
+	
+	private UtilityRepository utilityRepository;
+	private MeterReadingIngestor ingestor;
+	private Path workDirectory;
+	
+	@BeforeMethod
+	public void setup() throws IOException {
+		utilityRepository = new UtilityRepository();
+		utilityRepository.addMeter(new UtilityMeter("UM001", "PROP001", UtilityMeter.UtilityType.ELECTRICITY, 1000.0));
+		utilityRepository.addMeter(new UtilityMeter("UM002", "PROP001", UtilityMeter.UtilityType.WATER, 500.0));
+		utilityRepository.addMeter(new UtilityMeter("UM003", "PROP002", UtilityMeter.UtilityType.GAS, 300.0));
+		
+		//Tiny ranges so that even small files are split across several parsers
+		ingestor = new MeterReadingIngestor(utilityRepository, 4, 2, 16);
+		workDirectory = Files.createTempDirectory("meter-readings");
+	}
+	
+	@Test
+	public void testIngestAppliesMonotonicReadings() throws IOException {
+		Path file = write("readings.csv",
+				"meterId,reading\n" +
+				"UM001,1100.5\r\n" +
+				"UM002, 450\n" +
+				"\n" +
+				"UNKNOWN,10\n" +
+				"UM003,320.25,2024-01-01T00:00\n" +
+				"UM001,not-a-number\n" +
+				//Counted the same whichever range of UM002 is applied first
+				"UM002,600\n");
+		
+		MeterReadingIngestor.IngestionResult result = ingestor.ingest(file);
+		
+		assertEquals(result.getApplied(), 3);
+		assertEquals(result.getDecreasedReadings(), 1);
+		assertEquals(result.getUnknownMeters(), 1);
+		assertEquals(result.getMalformedLines(), 2);
+		assertEquals(utilityRepository.getMeterReading("UM001"), 1100.5);
+		assertEquals(utilityRepository.getMeterReading("UM002"), 600.0);
+		assertEquals(utilityRepository.getMeterReading("UM003"), 320.25);
+	}
+	
+	@Test
+	public void testIngestKeepsHighestReadingAcrossRanges() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for(int i = 2000; i >= 1; i--) {
+			lines.append("UM00").append(1 + i % 3).append(',').append(1000 + i).append(".5\n");
+		}
+		
+		MeterReadingIngestor.IngestionResult result = ingestor.ingest(write("bulk.csv", lines.toString()));
+		
+		assertEquals(result.getApplied() + result.getDecreasedReadings(), 2000);
+		assertEquals(result.getMalformedLines(), 0);
+		assertEquals(utilityRepository.getMeterReading("UM001"), 2998.5);
+		assertEquals(utilityRepository.getMeterReading("UM002"), 2999.5);
+		assertEquals(utilityRepository.getMeterReading("UM003"), 3000.5);
+	}
+	
+	@Test
+	public void testIngestWhileMetersAreAdded() throws Exception {
+		StringBuilder lines = new StringBuilder();
+		for(int i = 1; i <= 3000; i++) {
+			lines.append("UM00").append(1 + i % 3).append(',').append(1000 + i).append('\n');
+		}
+		Path file = write("bulk.csv", lines.toString());
+		
+		//The repository grows and rehashes while the parsers resolve meters
+		Thread adder = new Thread(() -> {
+			for(int i = 0; i < 5000; i++) {
+				utilityRepository.addMeter(new UtilityMeter("NEW" + i, "PROP" + i, UtilityMeter.UtilityType.WATER, i));
+				utilityRepository.recordMeterReading("NEW" + i, i + 1);
+			}
+		});
+		adder.start();
+		MeterReadingIngestor.IngestionResult result = ingestor.ingest(file);
+		adder.join();
+		
+		assertEquals(result.getApplied() + result.getDecreasedReadings(), 3000);
+		assertEquals(result.getUnknownMeters(), 0);
+		assertEquals(utilityRepository.getMeterReading("UM001"), 4000.0);
+		assertEquals(utilityRepository.getMeterReading("UM002"), 3998.0);
+		assertEquals(utilityRepository.getMeterReading("UM003"), 3999.0);
+		assertEquals(utilityRepository.getMeterCount(), 5003);
+		assertEquals(utilityRepository.getMeterReading("NEW4999"), 5000.0);
+	}
+	
+	@Test
+	public void testWatchIngestsDroppedFiles() throws Exception {
+		Path dropDirectory = Files.createDirectory(workDirectory.resolve("drop"));
+		CountDownLatch ingested = new CountDownLatch(1);
+		AtomicReference<MeterReadingIngestor.IngestionResult> lastResult = new AtomicReference<>();
+		ingestor.watch(dropDirectory, (file, result) -> {
+			lastResult.set(result);
+			ingested.countDown();
+		});
+		
+		Path file = write("drop.csv", "UM002,650\nUM003,700\n");
+		Files.move(file, dropDirectory.resolve("drop.csv"), StandardCopyOption.ATOMIC_MOVE);
+		
+		assertTrue(ingested.await(10, TimeUnit.SECONDS));
+		assertEquals(lastResult.get().getApplied(), 2);
+		assertEquals(utilityRepository.getMeterReading("UM002"), 650.0);
+	}
+	
+	@Test
+	public void testWatchIngestsReusedFileNames() throws Exception {
+		Path dropDirectory = Files.createDirectory(workDirectory.resolve("drop"));
+		BlockingQueue<MeterReadingIngestor.IngestionResult> results = new LinkedBlockingQueue<>();
+		ingestor.watch(dropDirectory, (file, result) -> results.add(result));
+		
+		Files.move(write("drop.csv", "UM002,650\n"), dropDirectory.resolve("drop.csv"), StandardCopyOption.ATOMIC_MOVE);
+		assertNotNull(results.poll(10, TimeUnit.SECONDS));
+		assertFalse(Files.exists(dropDirectory.resolve("drop.csv")));
+		assertTrue(Files.exists(dropDirectory.resolve("ingested").resolve("drop.csv")));
+		
+		//A new file under the same name is not mistaken for the one already ingested
+		Files.move(write("drop.csv", "UM002,700\n"), dropDirectory.resolve("drop.csv"), StandardCopyOption.ATOMIC_MOVE);
+		MeterReadingIngestor.IngestionResult second = results.poll(10, TimeUnit.SECONDS);
+		assertNotNull(second);
+		assertEquals(second.getApplied(), 1);
+		assertEquals(utilityRepository.getMeterReading("UM002"), 700.0);
+		assertTrue(Files.exists(dropDirectory.resolve("ingested").resolve("drop.csv.1")));
+	}
+	
+	@Test(expectedExceptions = InvalidInputException.class)
+	public void testIngestorWithoutRepository() {
+		new MeterReadingIngestor(null, 2);
+	}
+	
+	private Path write(String name, String content) throws IOException {
+		return Files.write(workDirectory.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@AfterMethod
+	public void cleanUp() throws IOException {
+		ingestor.stop();
+		try(Stream<Path> paths = Files.walk(workDirectory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
@@ -2,8 +2,15 @@ package com.city.service;
 
 import static org.testng.Assert.*;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -12,22 +19,28 @@ import org.testng.annotations.Test;
 
 import com.city.exception.InvalidInputException;
 import com.city.exception.ServiceUnavailableException;
+import com.city.model.AreaStatistics;
 import com.city.model.TrafficSensor;
+import com.city.repository.HeapTrafficRepository;
 import com.city.repository.TrafficRepository;
 
 public class TrafficManagementServiceTest {
 	
-	private TrafficRepository trafficRepository;
-	private TrafficManagementService trafficService;
+	protected TrafficRepository trafficRepository;
+	protected TrafficManagementService trafficService;
 	
 	@BeforeMethod
 	public void setUp() {
-		trafficRepository = new TrafficRepository();
+		trafficRepository = createRepository();
 		trafficService = new TrafficManagementService(trafficRepository);
 		
 		populateTestData();
 	}
 	
+	protected TrafficRepository createRepository() {
+		return new HeapTrafficRepository();
+	}
+	
 	public void populateTestData() {
 		
 		TrafficSensor[] sensors = {
@@ -102,6 +115,224 @@ public class TrafficManagementServiceTest {
 		trafficService.updateTrafficDensity("TS006", 60);
 	}
 	
+	@Test
+	public void testUpdateTrafficDensityReactivatesStaleSensor() {
+		trafficService.findSensorById("TS001").get().setStatus(TrafficSensor.Status.STALE);
+		assertEquals(trafficRepository.findAreaStatistics("Downtown Main St").get().getActiveSensorCount(), 0);
+		
+		trafficService.updateTrafficDensity("TS001", 120);
+		
+		TrafficSensor sensor = trafficService.findSensorById("TS001").get();
+		assertEquals(sensor.getStatus(), TrafficSensor.Status.ACTIVE);
+		assertEquals(sensor.getCurrentTrafficDensity(), 120);
+		assertEquals(trafficRepository.getMostCongestedSensors(1).get(0).getSensorId(), "TS001");
+		assertEquals(trafficRepository.findAreaStatistics("Downtown Main St").get().getTotalActiveDensity(), 120);
+		assertEquals(trafficRepository.findAreaStatistics("Downtown Main St").get().getActiveSensorCount(), 1);
+	}
+	
+	@Test
+	public void testUpdateTrafficDensities() {
+		String[] sensorIds = {"TS001", "TS002", "", "TS003", "WRONG_SENSOR", "TS006"};
+		int[] densities = {50, 10, 30, -5, 40, 20};
+		
+		TrafficManagementService.DensityUpdateResult[] results = trafficService.updateTrafficDensities(sensorIds, densities);
+		
+		assertEquals(results, new TrafficManagementService.DensityUpdateResult[] {
+				TrafficManagementService.DensityUpdateResult.UPDATED,
+				TrafficManagementService.DensityUpdateResult.UPDATED,
+				TrafficManagementService.DensityUpdateResult.INVALID_SENSOR_ID,
+				TrafficManagementService.DensityUpdateResult.NEGATIVE_DENSITY,
+				TrafficManagementService.DensityUpdateResult.SENSOR_NOT_FOUND,
+				TrafficManagementService.DensityUpdateResult.SENSOR_INACTIVE});
+		assertEquals(trafficService.findSensorById("TS001").get().getCurrentTrafficDensity(), 50);
+		assertEquals(trafficService.findSensorById("TS002").get().getCurrentTrafficDensity(), 10);
+		assertEquals(trafficService.findSensorById("TS003").get().getCurrentTrafficDensity(), 25);
+		assertEquals(trafficService.findSensorById("TS006").get().getCurrentTrafficDensity(), 65);
+	}
+	
+	@Test
+	public void testUpdateTrafficDensitiesWithReusedArrays() {
+		String[] sensorIds = {"TS004", "TS005", "TS007"};
+		int[] densities = {70, 20, 90};
+		TrafficManagementService.DensityUpdateResult[] results = new TrafficManagementService.DensityUpdateResult[3];
+		
+		int updated = trafficService.updateTrafficDensities(sensorIds, densities, 2, results);
+		
+		assertEquals(updated, 2);
+		assertNull(results[2]);
+		assertEquals(trafficService.findSensorById("TS004").get().getCurrentTrafficDensity(), 70);
+		assertEquals(trafficService.findSensorById("TS007").get().getCurrentTrafficDensity(), 35);
+	}
+	
+	@Test
+	public void testConcurrentTrafficDensityUpdates() throws Exception {
+		int threads = 4;
+		int rounds = 500;
+		String[] sensorIds = {"TS001", "TS002", "TS003", "TS005", "TS007", "TS008", "TS009", "TS012"};
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(int t = 0; t < threads; t++) {
+				final int offset = t;
+				futures.add(executor.submit(() -> {
+					int[] densities = new int[sensorIds.length];
+					for(int round = 0; round < rounds; round++) {
+						for(int i = 0; i < densities.length; i++) {
+							densities[i] = (round * 7 + i * 13 + offset) % 100;
+						}
+						trafficService.updateTrafficDensities(sensorIds, densities);
+					}
+				}));
+			}
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		for(String sensorId : sensorIds) {
+			TrafficSensor sensor = trafficService.findSensorById(sensorId).get();
+			int expected = sensor.getCurrentTrafficDensity();
+			assertEquals(trafficRepository.findAreaStatistics(sensor.getLocation()).get().getAverageDensity(), expected);
+			assertTrue(sensorIds(trafficRepository.getActiveSensorsWithDensityAtLeast(expected)).contains(sensorId));
+			assertFalse(sensorIds(trafficRepository.getActiveSensorsWithDensityAtLeast(expected + 1)).contains(sensorId));
+		}
+	}
+	
+	@Test
+	public void testConcurrentAreaStatisticsStayConsistent() throws Exception {
+		int rounds = 2000;
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			//Sensors hop between two areas and toggle activity while a reader takes snapshots; an active
+			//count out of step with membership would fail AreaStatistics validation
+			List<Future<?>> futures = new ArrayList<>();
+			for(String sensorId : new String[] {"TS003", "TS004"}) {
+				futures.add(executor.submit(() -> {
+					TrafficSensor sensor = trafficRepository.getSensor(sensorId);
+					for(int round = 0; round < rounds; round++) {
+						sensor.setLocation(round % 2 == 0 ? "Harbour Road" : "Dock Street");
+						sensor.setStatus(round % 3 == 0 ? TrafficSensor.Status.INACTIVE : TrafficSensor.Status.ACTIVE);
+						sensor.setCurrentTrafficDensity(round % 100);
+					}
+				}));
+			}
+			futures.add(executor.submit(() -> {
+				for(int round = 0; round < rounds; round++) {
+					trafficRepository.getAllAreaStatistics();
+					trafficRepository.findAreaStatistics("Harbour Road");
+				}
+			}));
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		int sensors = 0;
+		long totalDensity = 0;
+		for(String location : new String[] {"Harbour Road", "Dock Street"}) {
+			Optional<AreaStatistics> statistics = trafficRepository.findAreaStatistics(location);
+			if(statistics.isPresent()) {
+				sensors += statistics.get().getSensorCount();
+				totalDensity += statistics.get().getTotalActiveDensity();
+			}
+		}
+		assertEquals(sensors, 2);
+		assertEquals(totalDensity, 2 * ((rounds - 1) % 100));
+	}
+	
+	@Test
+	public void testConcurrentSensorReplacementsKeepIndexesConsistent() throws Exception {
+		int threads = 4;
+		int rounds = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(int t = 0; t < threads; t++) {
+				final int offset = t;
+				futures.add(executor.submit(() -> {
+					for(int round = 0; round < rounds; round++) {
+						boolean harbour = (round + offset) % 2 == 0;
+						TrafficSensor replacement = new TrafficSensor("TS003", harbour ? "Harbour Road" : "Dock Street",
+								(round * 7 + offset) % 100, (round + offset) % 3 == 0 ? TrafficSensor.Status.INACTIVE : TrafficSensor.Status.ACTIVE);
+						replacement.setCoordinates(harbour ? 51.5000 : 51.6000, -0.1000);
+						trafficRepository.updateSensor("TS003", replacement);
+					}
+				}));
+			}
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		TrafficSensor sensor = trafficService.findSensorById("TS003").get();
+		String otherLocation = sensor.getLocation().equals("Harbour Road") ? "Dock Street" : "Harbour Road";
+		assertEquals(sensorIds(trafficRepository.getSensorsByLocation(sensor.getLocation())), Arrays.asList("TS003"));
+		assertTrue(trafficRepository.getSensorsByLocation(otherLocation).isEmpty());
+		AreaStatistics statistics = trafficRepository.findAreaStatistics(sensor.getLocation()).get();
+		assertEquals(statistics.getSensorCount(), 1);
+		assertEquals(statistics.getTotalActiveDensity(), sensor.isActive() ? sensor.getCurrentTrafficDensity() : 0);
+		
+		long indexedByDensity = sensorIds(trafficRepository.getActiveSensorsWithDensityAtLeast(0)).stream()
+				.filter("TS003"::equals).count();
+		assertEquals(indexedByDensity, sensor.isActive() ? 1 : 0);
+		if(sensor.isActive()) {
+			assertFalse(sensorIds(trafficRepository.getActiveSensorsWithDensityAtLeast(sensor.getCurrentTrafficDensity() + 1)).contains("TS003"));
+		}
+		assertEquals(sensorIds(trafficService.getSensorsNear(sensor.getLatitude(), sensor.getLongitude(), 100)), Arrays.asList("TS003"));
+		assertTrue(trafficService.getSensorsNear(sensor.getLatitude() == 51.5 ? 51.6 : 51.5, -0.1000, 100).isEmpty());
+	}
+	
+	@Test(expectedExceptions = InvalidInputException.class)
+	public void testUpdateTrafficDensitiesWithOversizedCount() {
+		trafficService.updateTrafficDensities(new String[] {"TS001"}, new int[] {10}, 2, 
+				new TrafficManagementService.DensityUpdateResult[2]);
+	}
+	
+	@Test
+	public void testDensityHistoryWindow() {
+		trafficService.updateTrafficDensity("TS001", 30);
+		trafficService.updateTrafficDensity("TS001", 90);
+		trafficService.updateTrafficDensities(new String[] {"TS001"}, new int[] {60});
+		
+		Duration window = Duration.ofMinutes(15);
+		assertEquals(trafficService.getDensityReadingCount("TS001", window), 3);
+		assertEquals(trafficService.getAverageDensity("TS001", window), 60.0, 0.001);
+		assertEquals(trafficService.getMinDensity("TS001", window), 30);
+		assertEquals(trafficService.getMaxDensity("TS001", window), 90);
+		assertEquals(trafficService.getDensityReadingCount("TS002", window), 0);
+	}
+	
+	@Test(expectedExceptions = ServiceUnavailableException.class)
+	public void testDensityHistoryWithoutReadings() {
+		trafficService.getAverageDensity("TS002", Duration.ofMinutes(15));
+	}
+	
+	@Test
+	public void testDensityHistoryRingBufferWrapsAround() {
+		DensityHistory history = new DensityHistory(4);
+		int[] densities = {80, 10, 50, 20, 40, 70};
+		for(int i = 0; i < densities.length; i++) {
+			history.record(densities[i], 1000L * (i + 1));
+		}
+		
+		assertEquals(history.size(), 4);
+		assertEquals(history.countSince(0), 4);
+		assertEquals(history.minSince(0), 20);
+		assertEquals(history.maxSince(0), 70);
+		assertEquals(history.averageSince(0), 45.0, 0.001);
+		assertEquals(history.countSince(5000), 2);
+		assertEquals(history.minSince(5000), 40);
+		assertEquals(history.averageSince(5000), 55.0, 0.001);
+		assertEquals(history.countSince(7000), 0);
+	}
+	
+	
 	@Test
 	public void testHighTrafficAreas() {
 		int threshold = 60;
@@ -112,6 +343,30 @@ public class TrafficManagementServiceTest {
 		assertTrue(highTrafficAreas.contains("Industrial Zone"));
 	}
 	
+	@Test
+	public void testHighTrafficAreasFollowDensityAndStatusChanges() {
+		trafficService.updateTrafficDensity("TS001", 65);
+		trafficService.updateTrafficDensity("TS009", 30);
+		trafficService.findSensorById("TS006").get().setStatus(TrafficSensor.Status.ACTIVE);
+		trafficService.findSensorById("TS005").get().setStatus(TrafficSensor.Status.INACTIVE);
+		
+		List<String> highTrafficAreas = trafficService.getHighTrafficAreas(64.5);
+		
+		assertEquals(highTrafficAreas.size(), 3);
+		assertEquals(highTrafficAreas.get(0), "City Center Circle");
+		assertTrue(highTrafficAreas.containsAll(Arrays.asList("Downtown Main St", "West Expressway")));
+	}
+	
+	@Test
+	public void testMostCongestedAreas() {
+		trafficRepository.addSensor(new TrafficSensor("TS013", "Industrial Zone", 90, TrafficSensor.Status.ACTIVE));
+		
+		assertEquals(trafficService.getMostCongestedAreas(3), 
+				Arrays.asList("Industrial Zone", "East Freeway", "City Center Circle"));
+		assertEquals(trafficRepository.getMostCongestedSensors(2).get(1).getSensorId(), "TS013");
+		assertTrue(trafficService.getMostCongestedAreas(0).isEmpty());
+	}
+	
 	@Test(expectedExceptions = InvalidInputException.class)
 	public void testHighTrafficAreasWithNegativeThreshold() {
 		trafficService.getHighTrafficAreas(-1);
@@ -134,6 +389,73 @@ public class TrafficManagementServiceTest {
 		assertEquals(optimizationStrategy,"HEAVY_CONGESTION_PROTOCOL");
 	}
 	
+	@Test
+	public void testOptimizeTrafficSignalTracksDensityAndStatusChanges() {
+		trafficRepository.addSensor(new TrafficSensor("TS013", "City Center Circle", 115, TrafficSensor.Status.INACTIVE));
+		assertEquals(trafficService.optimizeTrafficSignals("City Center Circle"), "HEAVY_CONGESTION_PROTOCOL");
+		
+		trafficService.findSensorById("TS013").get().setStatus(TrafficSensor.Status.ACTIVE);
+		assertEquals(trafficService.optimizeTrafficSignals("City Center Circle"), "EMERGENCY_TRAFFIC_MANAGEMENT");
+		
+		trafficService.updateTrafficDensity("TS002", 5);
+		assertEquals(trafficService.optimizeTrafficSignals("City Center Circle"), "HEAVY_CONGESTION_PROTOCOL");
+		
+		trafficService.findSensorById("TS013").get().setStatus(TrafficSensor.Status.INACTIVE);
+		assertEquals(trafficService.optimizeTrafficSignals("City Center Circle"), "NORMAL_FLOW");
+	}
+	
+	@Test
+	public void testGetSignalStrategies() {
+		Map<String, String> strategies = trafficService.getSignalStrategies();
+		
+		assertEquals(strategies.size(), 10);
+		assertEquals(strategies.get("Park Entrance"), "NORMAL_FLOW");
+		assertEquals(strategies.get("Downtown Main St"), "MODERATE_ADJUSTMENT");
+		assertEquals(strategies.get("City Center Circle"), "HEAVY_CONGESTION_PROTOCOL");
+		assertEquals(strategies.get("Industrial Zone"), "EMERGENCY_TRAFFIC_MANAGEMENT");
+		assertFalse(strategies.containsKey("West Expressway"));
+	}
+	
+	@Test
+	public void testSignalStrategyNotificationsWithHysteresis() {
+		List<String> events = new ArrayList<>();
+		trafficService.addSignalStrategyListener((area, previous, current, averageDensity) -> 
+				events.add(area + ":" + previous + "->" + current));
+		
+		trafficService.updateTrafficDensity("TS004", 18);
+		trafficService.updateTrafficDensity("TS004", 22);
+		trafficService.updateTrafficDensity("TS004", 17);
+		assertTrue(events.isEmpty());
+		
+		trafficService.updateTrafficDensity("TS004", 25);
+		trafficService.updateTrafficDensity("TS004", 19);
+		trafficService.updateTrafficDensity("TS004", 16);
+		assertEquals(events, Arrays.asList("South Bridge:NORMAL_FLOW->MODERATE_ADJUSTMENT"));
+		
+		trafficService.updateTrafficDensity("TS004", 14);
+		trafficService.updateTrafficDensity("TS004", 97);
+		assertEquals(events, Arrays.asList("South Bridge:NORMAL_FLOW->MODERATE_ADJUSTMENT", 
+				"South Bridge:MODERATE_ADJUSTMENT->NORMAL_FLOW", 
+				"South Bridge:NORMAL_FLOW->EMERGENCY_TRAFFIC_MANAGEMENT"));
+	}
+	
+	@Test
+	public void testSignalStrategyNotificationsForActivationChanges() {
+		List<String> events = new ArrayList<>();
+		TrafficManagementService.SignalStrategyListener listener = (area, previous, current, averageDensity) -> 
+				events.add(area + ":" + previous + "->" + current);
+		trafficService.addSignalStrategyListener(listener);
+		
+		trafficService.findSensorById("TS006").get().setStatus(TrafficSensor.Status.ACTIVE);
+		trafficService.findSensorById("TS012").get().setStatus(TrafficSensor.Status.INACTIVE);
+		assertEquals(events, Arrays.asList("West Expressway:null->HEAVY_CONGESTION_PROTOCOL", 
+				"Park Entrance:NORMAL_FLOW->null"));
+		
+		assertTrue(trafficService.removeSignalStrategyListener(listener));
+		trafficService.updateTrafficDensity("TS006", 95);
+		assertEquals(events.size(), 2);
+	}
+	
 	@Test(expectedExceptions = InvalidInputException.class)
 	public void testOptimizeTrafficSignalWithNull() {
 		trafficService.optimizeTrafficSignals(null);
@@ -154,6 +476,241 @@ public class TrafficManagementServiceTest {
 		trafficService.optimizeTrafficSignals("West Expressway");
 	}
 	
+	@Test
+	public void testOptimizeTrafficSignalAfterLocationChange() {
+		Optional<TrafficSensor> sensor = trafficService.findSensorById("TS004");
+		assertTrue(sensor.isPresent());
+		sensor.get().setLocation("City Center Circle");
+		
+		assertEquals(trafficRepository.getSensorsByLocation("City Center Circle").size(), 2);
+		assertTrue(trafficRepository.getSensorsByLocation("South Bridge").isEmpty());
+		assertEquals(trafficService.optimizeTrafficSignals("City Center Circle"), "MODERATE_ADJUSTMENT");
+	}
+	
+	@Test(expectedExceptions = ServiceUnavailableException.class)
+	public void testOptimizeTrafficSignalAfterSensorReplaced() {
+		Optional<TrafficSensor> sensor = trafficService.findSensorById("TS004");
+		assertTrue(sensor.isPresent());
+		trafficRepository.updateSensor("TS004", 
+				new TrafficSensor("TS004", "Harbour Road", 15, TrafficSensor.Status.ACTIVE));
+		
+		assertEquals(trafficRepository.getSensorsByLocation("Harbour Road").size(), 1);
+		sensor.get().setLocation("Harbour Road");
+		assertEquals(trafficRepository.getSensorsByLocation("Harbour Road").size(), 1);
+		trafficService.optimizeTrafficSignals("South Bridge");
+	}
+	
+	@Test
+	public void testGetSensorsNearOrdersByDistance() {
+		addSensorAt("GEO001", "Harbour Road", 51.5000, -0.1000);
+		addSensorAt("GEO002", "Harbour Road", 51.5020, -0.1000);
+		addSensorAt("GEO003", "Harbour Road", 51.5009, -0.1000);
+		addSensorAt("GEO004", "Airport Link", 51.6000, -0.1000);
+		
+		assertEquals(sensorIds(trafficService.getSensorsNear(51.5000, -0.1000, 150)), Arrays.asList("GEO001", "GEO003"));
+		assertEquals(sensorIds(trafficService.getSensorsNear(51.5000, -0.1000, 500)), Arrays.asList("GEO001", "GEO003", "GEO002"));
+		assertTrue(trafficService.getSensorsNear(0, 0, 1000).isEmpty());
+	}
+	
+	@Test
+	public void testGetSensorsNearFollowsCoordinateChanges() {
+		addSensorAt("GEO001", "Harbour Road", 51.5000, -0.1000);
+		Optional<TrafficSensor> sensor = trafficService.findSensorById("GEO001");
+		assertTrue(sensor.isPresent());
+		sensor.get().setCoordinates(48.8566, 2.3522);
+		
+		assertTrue(trafficService.getSensorsNear(51.5000, -0.1000, 1000).isEmpty());
+		assertEquals(sensorIds(trafficService.getSensorsNear(48.8566, 2.3522, 10)), Arrays.asList("GEO001"));
+	}
+	
+	@Test
+	public void testGetSensorsInArea() {
+		addSensorAt("GEO001", "Harbour Road", 51.5000, -0.1000);
+		addSensorAt("GEO002", "Harbour Road", 51.5100, -0.0900);
+		addSensorAt("GEO003", "Airport Link", 51.5300, -0.1000);
+		
+		List<String> areaSensors = sensorIds(trafficService.getSensorsInArea(51.4950, -0.1050, 51.5150, -0.0850));
+		assertEquals(areaSensors.size(), 2);
+		assertTrue(areaSensors.containsAll(Arrays.asList("GEO001", "GEO002")));
+	}
+	
+	@Test(timeOut = 10000)
+	public void testGetSensorsInWorldSizedArea() {
+		addSensorAt("GEO001", "Harbour Road", 51.5000, -0.1000);
+		addSensorAt("GEO002", "Airport Link", -33.8688, 151.2093);
+		addSensorAt("GEO003", "Airport Link", 89.9500, 170.0000);
+		
+		List<String> worldSensors = sensorIds(trafficService.getSensorsInArea(-90, -180, 90, 180));
+		assertEquals(worldSensors.size(), 3);
+		assertTrue(worldSensors.containsAll(Arrays.asList("GEO001", "GEO002", "GEO003")));
+		assertEquals(sensorIds(trafficService.getSensorsNear(0, 0, 20_000_000)).size(), 3);
+		//A circle around the pole spans every longitude
+		assertEquals(sensorIds(trafficService.getSensorsNear(89.9000, -10.0000, 20_000)), Arrays.asList("GEO003"));
+	}
+	
+	@Test
+	public void testGetSensorsAcrossAntimeridian() {
+		addSensorAt("GEO001", "Harbour Road", 10.0000, 179.9990);
+		addSensorAt("GEO002", "Harbour Road", 10.0000, -179.9990);
+		addSensorAt("GEO003", "Airport Link", 10.0000, 0.0000);
+		
+		assertEquals(sensorIds(trafficService.getSensorsNear(10.0000, 179.9995, 1000)), Arrays.asList("GEO001", "GEO002"));
+		assertEquals(sensorIds(trafficService.getSensorsNear(10.0000, -179.9999, 1000)), Arrays.asList("GEO002", "GEO001"));
+		List<String> areaSensors = sensorIds(trafficService.getSensorsInArea(9, 179, 11, -179));
+		assertEquals(areaSensors.size(), 2);
+		assertTrue(areaSensors.containsAll(Arrays.asList("GEO001", "GEO002")));
+	}
+	
+	@Test(expectedExceptions = InvalidInputException.class)
+	public void testGetSensorsNearNegativeRadius() {
+		trafficService.getSensorsNear(51.5000, -0.1000, -1);
+	}
+	
+	@Test(expectedExceptions = InvalidInputException.class)
+	public void testGetSensorsInAreaInvertedBox() {
+		trafficService.getSensorsInArea(51.6000, -0.1000, 51.5000, -0.0900);
+	}
+	
+	@Test
+	public void testAverageActiveDensityFollowsUpdates() {
+		assertEquals(trafficRepository.getAverageActiveDensity("South Bridge"), 15.0, 0.001);
+		trafficService.updateTrafficDensity("TS004", 40);
+		assertEquals(trafficRepository.getAverageActiveDensity("South Bridge"), 40.0, 0.001);
+		assertTrue(Double.isNaN(trafficRepository.getAverageActiveDensity("West Expressway")));
+		assertTrue(Double.isNaN(trafficRepository.getAverageActiveDensity("Nowhere Lane")));
+	}
+	
+	@Test
+	public void testForecastDensitySteadyArea() {
+		trafficService.updateTrafficDensity("TS004", 40);
+		trafficService.updateTrafficDensity("TS004", 40);
+		
+		assertEquals(trafficService.getForecastDensity("South Bridge", Duration.ZERO), 40.0, 0.001);
+		assertEquals(trafficService.getForecastSignalStrategy("South Bridge", Duration.ofMinutes(5)), "MODERATE_ADJUSTMENT");
+	}
+	
+	@Test
+	public void testForecastDensityFollowsRisingTrend() {
+		CongestionForecaster forecaster = new CongestionForecaster(0.3, 0.1, 60_000, 5);
+		long minute = 60_000;
+		for(int i = 0; i <= 6; i++) {
+			forecaster.record("South Bridge", 20 + 10 * i, i * minute);
+		}
+		
+		double nearForecast = forecaster.forecast("South Bridge", 11 * minute).getAsDouble();
+		double farForecast = forecaster.forecast("South Bridge", 36 * minute).getAsDouble();
+		assertTrue(nearForecast > 50);
+		assertTrue(farForecast > nearForecast);
+		//The trend is clamped to 5 per minute
+		assertTrue(farForecast <= 80 + 5 * 30);
+	}
+	
+	@Test
+	public void testForecastDensityWithBackToBackUpdates() {
+		for(int i = 0; i < 1000; i++) {
+			trafficService.updateTrafficDensity("TS004", i % 2 == 0 ? 45 : 55);
+		}
+		
+		double forecast = trafficService.getForecastDensity("South Bridge", Duration.ofMinutes(15));
+		assertTrue(forecast >= 45 - 5 * 16 && forecast <= 55 + 5 * 16, "Forecast " + forecast);
+		
+		//Readings 1 ms apart straddling a bucket boundary cannot produce a trend beyond the clamp
+		CongestionForecaster forecaster = new CongestionForecaster(0.3, 0.1, 60_000, 5);
+		forecaster.record("South Bridge", 50, 59_999);
+		forecaster.record("South Bridge", 51, 60_000);
+		forecaster.record("South Bridge", 50, 60_001);
+		double burstForecast = forecaster.forecast("South Bridge", 60_001 + Duration.ofMinutes(15).toMillis()).getAsDouble();
+		assertTrue(burstForecast >= 40 && burstForecast <= 60, "Forecast " + burstForecast);
+	}
+	
+	@Test(expectedExceptions = ServiceUnavailableException.class)
+	public void testForecastDensityWithoutReadings() {
+		trafficService.getForecastDensity("Nowhere Lane", Duration.ofMinutes(5));
+	}
+	
+	@Test(expectedExceptions = InvalidInputException.class)
+	public void testForecastDensityNegativeHorizon() {
+		trafficService.getForecastDensity("South Bridge", Duration.ofMinutes(-5));
+	}
+	
+	@Test
+	public void testExpireStaleSensors() {
+		long silentSince = System.currentTimeMillis() - Duration.ofMinutes(10).toMillis();
+		trafficService.addSensor(new TrafficSensor("TS013", "Harbour Road", 80, TrafficSensor.Status.ACTIVE, silentSince));
+		trafficService.addSensor(new TrafficSensor("TS014", "Harbour Road", 10, TrafficSensor.Status.ACTIVE));
+		
+		assertEquals(trafficService.expireStaleSensors(), 1);
+		assertEquals(trafficService.findSensorById("TS013").get().getStatus(), TrafficSensor.Status.STALE);
+		assertEquals(trafficService.findSensorById("TS014").get().getStatus(), TrafficSensor.Status.ACTIVE);
+		assertEquals(trafficService.optimizeTrafficSignals("Harbour Road"), "NORMAL_FLOW");
+		assertEquals(trafficService.expireStaleSensors(), 0);
+	}
+	
+	@Test
+	public void testStaleSensorRevivedByDensityUpdate() {
+		long silentSince = System.currentTimeMillis() - Duration.ofMinutes(10).toMillis();
+		trafficService.addSensor(new TrafficSensor("TS013", "Harbour Road", 80, TrafficSensor.Status.ACTIVE, silentSince));
+		assertEquals(trafficService.expireStaleSensors(), 1);
+		
+		trafficService.updateTrafficDensity("TS013", 50);
+		
+		TrafficSensor sensor = trafficService.findSensorById("TS013").get();
+		assertEquals(sensor.getStatus(), TrafficSensor.Status.ACTIVE);
+		assertEquals(sensor.getCurrentTrafficDensity(), 50);
+		assertEquals(trafficService.optimizeTrafficSignals("Harbour Road"), "MODERATE_ADJUSTMENT");
+		assertEquals(trafficService.expireStaleSensors(), 0);
+	}
+	
+	@Test
+	public void testHeartbeatTimeoutIsConfigurable() {
+		long silentSince = System.currentTimeMillis() - Duration.ofMinutes(10).toMillis();
+		trafficService.setHeartbeatTimeout(Duration.ofHours(1));
+		trafficService.addSensor(new TrafficSensor("TS013", "Harbour Road", 80, TrafficSensor.Status.ACTIVE, silentSince));
+		
+		assertEquals(trafficService.expireStaleSensors(), 0);
+		assertTrue(trafficService.findSensorById("TS013").get().isActive());
+	}
+	
+	@Test
+	public void testSensorAddedToRepositoryGoesStale() {
+		long silentSince = System.currentTimeMillis() - Duration.ofMinutes(10).toMillis();
+		trafficRepository.addSensor(new TrafficSensor("TS013", "Harbour Road", 80, TrafficSensor.Status.ACTIVE, silentSince));
+		
+		assertEquals(trafficService.expireStaleSensors(), 1);
+		assertEquals(trafficService.findSensorById("TS013").get().getStatus(), TrafficSensor.Status.STALE);
+	}
+	
+	@Test
+	public void testShorterHeartbeatTimeoutReschedulesDeadlines() {
+		long silentSince = System.currentTimeMillis() - Duration.ofMinutes(10).toMillis();
+		trafficService.setHeartbeatTimeout(Duration.ofHours(1));
+		trafficService.addSensor(new TrafficSensor("TS013", "Harbour Road", 80, TrafficSensor.Status.ACTIVE, silentSince));
+		assertEquals(trafficService.expireStaleSensors(), 0);
+		
+		trafficService.setHeartbeatTimeout(Duration.ofMinutes(5));
+		assertEquals(trafficService.expireStaleSensors(), 1);
+		assertEquals(trafficService.findSensorById("TS013").get().getStatus(), TrafficSensor.Status.STALE);
+	}
+	
+	@Test(expectedExceptions = InvalidInputException.class)
+	public void testHeartbeatTimeoutZero() {
+		trafficService.setHeartbeatTimeout(Duration.ZERO);
+	}
+	
+	
+	private void addSensorAt(String sensorId, String location, double latitude, double longitude) {
+		TrafficSensor sensor = new TrafficSensor(sensorId, location, 30, TrafficSensor.Status.ACTIVE);
+		sensor.setCoordinates(latitude, longitude);
+		trafficService.addSensor(sensor);
+	}
+	
+	private List<String> sensorIds(List<TrafficSensor> sensors) {
+		List<String> sensorIds = new ArrayList<>();
+		for(TrafficSensor sensor : sensors) {
+			sensorIds.add(sensor.getSensorId());
+		}
+		return sensorIds;
+	}
 	
 	@AfterMethod
 	public void cleanUp() {
@@ -2,31 +2,57 @@ package com.city.service;
 
 import static org.testng.Assert.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import com.city.exception.InvalidInputException;
 import com.city.exception.ServiceUnavailableException;
+import com.city.model.ConsumptionStatistics;
 import com.city.model.UtilityMeter;
+import com.city.repository.QuantileSketch;
+import com.city.repository.ReadingHistoryLog;
 import com.city.repository.UtilityRepository;
 
 public class UtilityMonitoringServiceTest {
 	
 	private UtilityMonitoringService utilityService;
 	private UtilityRepository utilityRepository;
+	private Path workDirectory;
 	
 	@BeforeMethod
-	public void setup() {
+	public void setup() throws IOException {
 		utilityRepository = new UtilityRepository();
 		utilityService = new UtilityMonitoringService(utilityRepository);
+		workDirectory = Files.createTempDirectory("utility-monitoring");
 		
 		populateTestData();
 	}
 	
+	@AfterMethod
+	public void cleanUp() throws IOException {
+		try(Stream<Path> paths = Files.walk(workDirectory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+	
 	public void populateTestData() {
 		UtilityMeter[] meters = {
 				new UtilityMeter("UM001", "PROP001", UtilityMeter.UtilityType.ELECTRICITY, 1250.5),
@@ -146,6 +172,385 @@ public class UtilityMonitoringServiceTest {
         utilityService.generateBill("PROP001", UtilityMeter.UtilityType.GAS);
     }
     
+    @Test
+    public void testGenerateBillAfterPropertyChange() {
+    	utilityService.findMeterById("UM002").get().setPropertyId("PROP002");
+    	
+    	assertTrue(utilityService.generateBill("PROP002", UtilityMeter.UtilityType.WATER).contains("850.0"));
+    	assertEquals(utilityRepository.getMetersByProperty("PROP001").size(), 1);
+    	assertEquals(utilityRepository.getMetersByProperty("PROP002").size(), 3);
+    }
+    
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void testGenerateBillAfterUtilityTypeChange() {
+    	utilityService.findMeterById("UM001").get().setUtilityType(UtilityMeter.UtilityType.GAS);
+    	
+    	assertTrue(utilityService.generateBill("PROP001", UtilityMeter.UtilityType.GAS).contains("1250.5"));
+    	utilityService.generateBill("PROP001", UtilityMeter.UtilityType.ELECTRICITY);
+    }
+    
+    @Test
+    public void testGenerateBillAfterMeterReplaced() {
+    	UtilityMeter replacedMeter = utilityService.findMeterById("UM003").get();
+    	utilityRepository.updateMeter("UM003", new UtilityMeter("UM003", "PROP007", UtilityMeter.UtilityType.ELECTRICITY, 10.0));
+    	replacedMeter.setPropertyId("PROP008");
+    	
+    	assertTrue(utilityService.generateBill("PROP007", UtilityMeter.UtilityType.ELECTRICITY).contains("10.0"));
+    	assertTrue(utilityRepository.getMetersByProperty("PROP008").isEmpty());
+    	assertFalse(utilityRepository.findMeterByProperty("PROP002", UtilityMeter.UtilityType.ELECTRICITY).isPresent());
+    }
+    
+    @Test
+    public void testPropertyKeepsEveryMeterOfOneType() {
+    	UtilityMeter secondMeter = new UtilityMeter("UM099", "PROP001", UtilityMeter.UtilityType.ELECTRICITY, 10.0);
+    	utilityRepository.addMeter(secondMeter);
+    	
+    	assertEquals(utilityRepository.getMetersByProperty("PROP001").size(), 3);
+    	assertSame(utilityRepository.findMeterByProperty("PROP001", UtilityMeter.UtilityType.ELECTRICITY).get(), secondMeter);
+    	
+    	//Moving the billed meter away brings the earlier one back
+    	secondMeter.setPropertyId("PROP009");
+    	assertEquals(utilityRepository.getMetersByProperty("PROP001").size(), 2);
+    	assertEquals(utilityRepository.findMeterByProperty("PROP001", UtilityMeter.UtilityType.ELECTRICITY).get().getMeterId(), "UM001");
+    	assertEquals(utilityRepository.getMetersByProperty("PROP009").size(), 1);
+    }
+    
+    @Test
+    public void testPropertyIsBilledOnLatestMeterOfOneType() throws IOException {
+    	utilityRepository.addMeter(new UtilityMeter("UM099", "PROP001", UtilityMeter.UtilityType.ELECTRICITY, 10.0));
+    	
+    	assertTrue(utilityService.generateBill("PROP001", UtilityMeter.UtilityType.ELECTRICITY).contains("Current Reading: 10.0"));
+    	Path output = workDirectory.resolve("bills.csv");
+    	BatchBillingEngine.BillingRunSummary summary = utilityService.runBatchBilling(output, 2);
+    	List<String> lines = Files.readAllLines(output);
+    	assertEquals(summary.getBillCount(), 12);
+    	assertTrue(lines.stream().anyMatch(line -> line.startsWith("PROP001,ELECTRICITY,UM099,")));
+    	assertFalse(lines.stream().anyMatch(line -> line.contains(",UM001,")));
+    	
+    	utilityService.findMeterById("UM099").get().setPropertyId("PROP009");
+    	assertTrue(utilityService.generateBill("PROP001", UtilityMeter.UtilityType.ELECTRICITY).contains("Current Reading: 1250.5"));
+    }
+    
+    @Test
+    public void testGetMeterReadingFollowsInPlaceChanges() {
+    	utilityService.recordUtilityConsumption("UM004", 400.0);
+    	assertEquals(utilityService.getMeterReading("UM004"), 400.0);
+    	
+    	utilityService.findMeterById("UM004").get().setCurrentReading(450.0);
+    	assertEquals(utilityService.getMeterReading("UM004"), 450.0);
+    	
+    	utilityRepository.updateMeter("UM004", new UtilityMeter("UM004", "PROP002", UtilityMeter.UtilityType.GAS, 500.0));
+    	assertEquals(utilityService.getMeterReading("UM004"), 500.0);
+    	assertEquals(utilityService.getMeterReading("UNKNOWN"), 0.0);
+    }
+    
+    @Test
+    public void testGetMeterReadingWithManyMeters() {
+    	for(int i = 0; i < 5000; i++) {
+    		utilityService.addMeter(new UtilityMeter("BULK" + i, "BULKPROP" + i, UtilityMeter.UtilityType.WATER, i));
+    	}
+    	utilityService.recordUtilityConsumption("BULK4321", 9999.0);
+    	
+    	assertEquals(utilityService.getMeterReading("BULK0"), 0.0);
+    	assertEquals(utilityService.getMeterReading("BULK1234"), 1234.0);
+    	assertEquals(utilityService.getMeterReading("BULK4321"), 9999.0);
+    	assertEquals(utilityService.findMeterById("BULK4321").get().getCurrentReading(), 9999.0);
+    	assertEquals(utilityService.getMeterReading("UM001"), 1250.5);
+    }
+    
+    @Test
+    public void testReadingHistoryLogFindsBoundaryReadings() throws IOException {
+    	Path directory = Files.createDirectory(workDirectory.resolve("reading-history"));
+    	try(ReadingHistoryLog historyLog = new ReadingHistoryLog(directory, 4)) {
+    		for(int hour = 0; hour < 10; hour++) {
+    			historyLog.append("UM001", hour * 3600_000L, 100.0 * hour);
+    			historyLog.append("UM002", hour * 3600_000L + 60_000L, 10.0 * hour);
+    		}
+    		
+    		assertEquals(historyLog.getSegmentCount(), 5);
+    		assertEquals(historyLog.readingAt("UM001", 5 * 3600_000L - 1).getAsDouble(), 400.0);
+    		assertEquals(historyLog.readingAt("UM002", 5 * 3600_000L + 60_000L).getAsDouble(), 50.0);
+    		assertEquals(historyLog.readingAt("UM002", 9 * 3600_000L + 60_000L).getAsDouble(), 90.0);
+    		assertFalse(historyLog.readingAt("UM002", 0).isPresent());
+    		assertEquals(historyLog.firstReadingSince("UM002", 0).getAsDouble(), 0.0);
+    		assertEquals(historyLog.firstReadingSince("UM001", 3600_000L + 1).getAsDouble(), 200.0);
+    	}
+    	
+    	try(ReadingHistoryLog reopened = new ReadingHistoryLog(directory, 4)) {
+    		assertEquals(reopened.readingAt("UM001", Long.MAX_VALUE).getAsDouble(), 900.0);
+    		assertEquals(reopened.readingAt("UM002", 2 * 3600_000L + 60_000L).getAsDouble(), 20.0);
+    	}
+    }
+    
+    @Test
+    public void testReadingHistoryLogMergesSegments() throws IOException {
+    	Path directory = Files.createDirectory(workDirectory.resolve("reading-history"));
+    	try(ReadingHistoryLog historyLog = new ReadingHistoryLog(directory, 2)) {
+    		for(int hour = 0; hour < 20; hour++) {
+    			historyLog.append("UM001", hour * 3600_000L, 100.0 * hour);
+    			historyLog.append("UM002", hour * 3600_000L + 60_000L, 10.0 * hour);
+    		}
+    		
+    		//Reads see the same history whether or not the background merges have been swapped in yet
+    		for(int hour = 0; hour < 20; hour++) {
+    			assertEquals(historyLog.readingAt("UM001", hour * 3600_000L + 1).getAsDouble(), 100.0 * hour);
+    			assertEquals(historyLog.firstReadingSince("UM002", hour * 3600_000L).getAsDouble(), 10.0 * hour);
+    		}
+    		//20 sealed segments merge into two of eight and four single ones
+    		historyLog.awaitMerges();
+    		assertEquals(historyLog.getSegmentCount(), 6);
+    		for(int hour = 0; hour < 20; hour++) {
+    			assertEquals(historyLog.readingAt("UM001", hour * 3600_000L + 1).getAsDouble(), 100.0 * hour);
+    		}
+    	}
+    	
+    	try(ReadingHistoryLog reopened = new ReadingHistoryLog(directory, 2)) {
+    		assertEquals(reopened.getSegmentCount(), 6);
+    		//A reading stamped before the sealed history is kept after it
+    		reopened.append("UM001", 3600_000L, 5000.0);
+    		assertEquals(reopened.readingAt("UM001", 10 * 3600_000L).getAsDouble(), 1000.0);
+    		assertEquals(reopened.readingAt("UM001", Long.MAX_VALUE).getAsDouble(), 5000.0);
+    	}
+    }
+    
+    @Test
+    public void testGenerateBillForPeriod() throws IOException {
+    	LocalDateTime periodStart = LocalDateTime.now().minusHours(1);
+    	try(ReadingHistoryLog historyLog = new ReadingHistoryLog(Files.createDirectory(workDirectory.resolve("reading-history")), 2)) {
+    		utilityRepository = new UtilityRepository(historyLog);
+    		utilityService = new UtilityMonitoringService(utilityRepository);
+    		populateTestData();
+    		
+    		utilityService.recordUtilityConsumption("UM001", 1300.5);
+    		utilityService.recordUtilityConsumption("UM001", 1350.5);
+    		LocalDateTime periodEnd = LocalDateTime.now().plusHours(1);
+    		
+    		assertEquals(utilityService.getConsumption("UM001", periodStart, periodEnd), 100.0);
+    		assertEquals(utilityService.getConsumption("UM002", periodStart, periodEnd), 0.0);
+    		String bill = utilityService.generateBill("PROP001", UtilityMeter.UtilityType.ELECTRICITY, periodStart, periodEnd);
+    		assertTrue(bill.contains("Consumption: 100.0"));
+    		assertTrue(bill.contains("Total Amount: 700.0"));
+    	}
+    }
+    
+    @Test
+    public void testRunBatchBilling() throws IOException {
+    	for(int i = 0; i < 5000; i++) {
+    		utilityService.addMeter(new UtilityMeter("BM" + i, "BATCHPROP" + i, UtilityMeter.UtilityType.WATER, i));
+    	}
+    	Path output = workDirectory.resolve("bills.csv");
+    	
+    	BatchBillingEngine.BillingRunSummary summary = utilityService.runBatchBilling(output, 4);
+    	List<String> lines = Files.readAllLines(output);
+    	assertEquals(summary.getBillCount(), 5012);
+    	assertEquals(lines.size(), 5013);
+    	assertEquals(lines.get(0), "propertyId,utilityType,meterId,reading,rate,amount");
+    	assertEquals(summary.getBytesWritten(), Files.size(output));
+    	assertTrue(lines.contains("PROP002,GAS,UM004,320.25,90.0," + 90.0 * 320.25));
+    	assertTrue(summary.getBillsPerSecond() > 0);
+    	
+    	double expectedTotal = 0;
+    	for(int i = 0; i < 5000; i++) {
+    		expectedTotal += 0.1 * i;
+    	}
+    	for(UtilityMeter meter : utilityRepository.getAllMeters().values()) {
+    		if(!meter.getMeterId().startsWith("BM")) {
+    			String bill = utilityService.generateBill(meter.getPropertyId(), meter.getUtilityType());
+    			expectedTotal += Double.parseDouble(bill.substring(bill.lastIndexOf(": ") + 2));
+    		}
+    	}
+    	assertEquals(summary.getTotalAmount(), expectedTotal, 1e-6);
+    }
+    
+    @Test
+    public void testRunBatchBillingInBinaryFormat() throws IOException {
+    	Path output = workDirectory.resolve("bills.bin");
+    	
+    	BatchBillingEngine.BillingRunSummary summary = utilityService.runBatchBilling(output, 2, BillRenderer.Format.BINARY);
+    	assertEquals(summary.getBillCount(), 12);
+    	assertEquals(Files.size(output), 12L * BillRenderer.BINARY_RECORD_BYTES);
+    }
+    
+    @Test
+    public void testBillRendererFormats() {
+    	StringBuilder text = new StringBuilder();
+    	new BillRenderer(BillRenderer.Format.TEXT).render(text, "PROP001", "UM001", UtilityMeter.UtilityType.ELECTRICITY, 1250.5, 7.0, 8753.5);
+    	assertEquals(text.toString(), "Utility Bill for Property PROP001\nUtility Type: ELECTRICITY\nCurrent Reading: 1250.5\nRate: 7.0\nTotal Amount: 8753.5");
+    	
+    	StringBuilder csv = new StringBuilder();
+    	new BillRenderer(BillRenderer.Format.CSV).render(csv, "PROP001", "UM001", UtilityMeter.UtilityType.ELECTRICITY, 1250.5, 7.0, 8753.5);
+    	assertEquals(csv.toString(), "PROP001,ELECTRICITY,UM001,1250.5,7.0,8753.5");
+    	
+    	LocalDateTime from = LocalDateTime.of(2024, 1, 1, 0, 0);
+    	LocalDateTime to = LocalDateTime.of(2024, 2, 1, 0, 0);
+    	StringBuilder periodText = new StringBuilder();
+    	new BillRenderer(BillRenderer.Format.TEXT).render(periodText, "PROP001", "UM001", UtilityMeter.UtilityType.ELECTRICITY, from, to, 100.0, 7.0, 700.0);
+    	assertEquals(periodText.toString(), "Utility Bill for Property PROP001\nUtility Type: ELECTRICITY\nBilling Period: 2024-01-01T00:00 to 2024-02-01T00:00\nConsumption: 100.0\nRate: 7.0\nTotal Amount: 700.0");
+    	StringBuilder periodCsv = new StringBuilder();
+    	new BillRenderer(BillRenderer.Format.CSV).render(periodCsv, "PROP001", "UM001", UtilityMeter.UtilityType.ELECTRICITY, from, to, 100.0, 7.0, 700.0);
+    	assertEquals(periodCsv.toString(), "PROP001,ELECTRICITY,UM001,2024-01-01T00:00,2024-02-01T00:00,100.0,7.0,700.0");
+    	
+    	ByteBuffer binary = ByteBuffer.allocate(BillRenderer.BINARY_RECORD_BYTES);
+    	assertTrue(new BillRenderer(BillRenderer.Format.BINARY).render(binary, "PROP001", "UM001", UtilityMeter.UtilityType.GAS, 2.0, 90.0, 180.0));
+    	assertEquals(binary.get(0), (byte) 'P');
+    	assertEquals(binary.get(7), (byte) 0);
+    	assertEquals(binary.get(2 * BillRenderer.BINARY_ID_BYTES), (byte) UtilityMeter.UtilityType.GAS.ordinal());
+    	assertEquals(binary.getDouble(BillRenderer.BINARY_RECORD_BYTES - Double.BYTES), 180.0);
+    }
+    
+    @Test
+    public void testBillRendererLeavesFullBufferUnchanged() {
+    	ByteBuffer buffer = ByteBuffer.allocate(20);
+    	buffer.put((byte) 1);
+    	
+    	assertFalse(new BillRenderer(BillRenderer.Format.CSV).render(buffer, "PROP001", "UM001", UtilityMeter.UtilityType.WATER, 850.0, 0.1, 85.0));
+    	assertFalse(new BillRenderer(BillRenderer.Format.BINARY).render(buffer, "PROP001", "UM001", UtilityMeter.UtilityType.WATER, 850.0, 0.1, 85.0));
+    	assertEquals(buffer.position(), 1);
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testRunBatchBillingWithInvalidParallelism() throws IOException {
+    	utilityService.runBatchBilling(workDirectory.resolve("bills.csv"), 0);
+    }
+    
+    @Test
+    public void testTieredTimeOfUseTariff() {
+    	TariffEngine tariffs = new TariffEngine.Builder()
+    			.flatRate(UtilityMeter.UtilityType.WATER, 0.1)
+    			.flatRate(UtilityMeter.UtilityType.GAS, 90)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 0, 0, 24, 5)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 100, 0, 24, 8)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 100, 18, 22, 10)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.COMMERCIAL, 0, 0, 24, 9)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.INDUSTRIAL, 0, 0, 24, 6)
+    			.build();
+    	
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 3, 80), 400.0);
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 3, 150), 900.0);
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 19, 150), 1000.0);
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.COMMERCIAL, 19, 150), 1350.0);
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.GAS, UtilityMeter.PropertyClass.INDUSTRIAL, 12, 2), 180.0);
+    	assertEquals(tariffs.getRate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 19), 5.0);
+    	//Consumption billed after 80 already billed starts in the first tier and moves on to the second
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 19, 80, 70), 600.0);
+    }
+    
+    @Test
+    public void testTimeOfUseBillsEachReadingAtItsHour() throws IOException {
+    	TariffEngine tariffs = new TariffEngine.Builder()
+    			.flatRate(UtilityMeter.UtilityType.WATER, 0.1)
+    			.flatRate(UtilityMeter.UtilityType.GAS, 90)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 0, 0, 18, 5)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 0, 18, 24, 10)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.COMMERCIAL, 0, 0, 24, 9)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.INDUSTRIAL, 0, 0, 24, 6)
+    			.zone(ZoneOffset.UTC)
+    			.build();
+    	long day = LocalDateTime.of(2024, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+    	
+    	try(ReadingHistoryLog historyLog = new ReadingHistoryLog(Files.createDirectory(workDirectory.resolve("reading-history")), 2)) {
+    		//Both meters reach 150, one mostly off-peak and one entirely at peak
+    		historyLog.append("TOU1", day + 2 * 3600_000L, 100.0);
+    		historyLog.append("TOU1", day + 19 * 3600_000L, 150.0);
+    		historyLog.append("TOU2", day + 19 * 3600_000L, 100.0);
+    		historyLog.append("TOU2", day + 20 * 3600_000L, 150.0);
+    		utilityRepository = new UtilityRepository(historyLog);
+    		utilityService = new UtilityMonitoringService(utilityRepository, tariffs);
+    		utilityService.addMeter(new UtilityMeter("TOU1", "TOUPROP1", UtilityMeter.UtilityType.ELECTRICITY, 150.0));
+    		utilityService.addMeter(new UtilityMeter("TOU2", "TOUPROP2", UtilityMeter.UtilityType.ELECTRICITY, 150.0));
+    		
+    		assertTrue(utilityService.generateBill("TOUPROP1", UtilityMeter.UtilityType.ELECTRICITY).contains("Total Amount: 1000.0"));
+    		assertTrue(utilityService.generateBill("TOUPROP2", UtilityMeter.UtilityType.ELECTRICITY).contains("Total Amount: 1500.0"));
+    		
+    		LocalDateTime from = LocalDateTime.ofInstant(Instant.ofEpochMilli(day + 3600_000L), ZoneId.systemDefault());
+    		LocalDateTime to = LocalDateTime.ofInstant(Instant.ofEpochMilli(day + 23 * 3600_000L), ZoneId.systemDefault());
+    		String bill = utilityService.generateBill("TOUPROP1", UtilityMeter.UtilityType.ELECTRICITY, from, to);
+    		assertTrue(bill.contains("Consumption: 50.0"));
+    		assertTrue(bill.contains("Total Amount: 500.0"));
+    		
+    		Path output = workDirectory.resolve("bills.csv");
+    		BatchBillingEngine.BillingRunSummary summary = utilityService.runBatchBilling(output, 2);
+    		assertEquals(summary.getTotalAmount(), 2500.0);
+    	}
+    }
+    
+    @Test
+    public void testRunningChargeMatchesReadingHistory() throws IOException {
+    	try(ReadingHistoryLog historyLog = new ReadingHistoryLog(Files.createDirectory(workDirectory.resolve("reading-history")), 2)) {
+    		utilityRepository = new UtilityRepository(historyLog);
+    		utilityService = new UtilityMonitoringService(utilityRepository);
+    		utilityService.addMeter(new UtilityMeter("RUN1", "RUNPROP", UtilityMeter.UtilityType.ELECTRICITY, 100.0));
+    		
+    		String firstBill = utilityService.generateBill("RUNPROP", UtilityMeter.UtilityType.ELECTRICITY);
+    		utilityService.recordUtilityConsumption("RUN1", 180.0);
+    		utilityService.recordUtilityConsumption("RUN1", 250.0);
+    		String runningBill = utilityService.generateBill("RUNPROP", UtilityMeter.UtilityType.ELECTRICITY);
+    		
+    		//A fresh service starts its charge from the history and must agree with the running one
+    		UtilityMonitoringService replayingService = new UtilityMonitoringService(utilityRepository);
+    		assertEquals(runningBill, replayingService.generateBill("RUNPROP", UtilityMeter.UtilityType.ELECTRICITY));
+    		assertNotEquals(runningBill, firstBill);
+    		assertTrue(runningBill.contains("Current Reading: 250.0"));
+    		
+    		//A meter moved to another tariff is charged afresh
+    		utilityService.findMeterById("RUN1").get().setPropertyClass(UtilityMeter.PropertyClass.INDUSTRIAL);
+    		assertEquals(utilityService.generateBill("RUNPROP", UtilityMeter.UtilityType.ELECTRICITY),
+    				replayingService.generateBill("RUNPROP", UtilityMeter.UtilityType.ELECTRICITY));
+    	}
+    }
+    
+    @Test
+    public void testGenerateBillWithPropertyClassTariff() {
+    	TariffEngine tariffs = new TariffEngine.Builder()
+    			.flatRate(UtilityMeter.UtilityType.ELECTRICITY, 7)
+    			.flatRate(UtilityMeter.UtilityType.WATER, 0.1)
+    			.flatRate(UtilityMeter.UtilityType.GAS, 90)
+    			.rate(UtilityMeter.UtilityType.GAS, UtilityMeter.PropertyClass.COMMERCIAL, 0, 0, 24, 100)
+    			.build();
+    	utilityService = new UtilityMonitoringService(utilityRepository, tariffs);
+    	utilityService.findMeterById("UM004").get().setPropertyClass(UtilityMeter.PropertyClass.COMMERCIAL);
+    	
+    	String bill = utilityService.generateBill("PROP002", UtilityMeter.UtilityType.GAS);
+    	assertTrue(bill.contains("Rate: 100.0"));
+    	assertTrue(bill.contains("Total Amount: " + 100 * 320.25));
+    	assertTrue(utilityService.generateBill("PROP004", UtilityMeter.UtilityType.GAS).contains("Rate: 90.0"));
+    }
+    
+    @Test
+    public void testLoadTariffSchedule() throws IOException {
+    	Path schedule = workDirectory.resolve("tariffs.csv");
+    	Files.write(schedule, Arrays.asList(
+    			"# utilityType,propertyClass,tierStart,fromHour,toHour,rate",
+    			"ELECTRICITY,*,0,0,24,7",
+    			"ELECTRICITY,INDUSTRIAL,500,0,24,6",
+    			"WATER,*,0,0,24,0.1",
+    			"GAS,*,0,0,24,90"));
+    	
+    	TariffEngine tariffs = TariffEngine.load(schedule);
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.INDUSTRIAL, 0, 600), 4100.0);
+    	assertEquals(tariffs.charge(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 0, 600), 4200.0);
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testTariffWithUncoveredHours() {
+    	new TariffEngine.Builder()
+    			.flatRate(UtilityMeter.UtilityType.WATER, 0.1)
+    			.flatRate(UtilityMeter.UtilityType.GAS, 90)
+    			.flatRate(UtilityMeter.UtilityType.ELECTRICITY, 7)
+    			.rate(UtilityMeter.UtilityType.ELECTRICITY, UtilityMeter.PropertyClass.RESIDENTIAL, 0, 0, 12, 5)
+    			.build();
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testTariffWithoutSchedule() {
+    	new TariffEngine.Builder().flatRate(UtilityMeter.UtilityType.WATER, 0.1).build();
+    }
+    
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void testGetConsumptionWithoutHistory() {
+    	utilityService.getConsumption("UM001", LocalDateTime.now().minusDays(30), LocalDateTime.now());
+    }
+    
     @Test
     public void testDetectAnomalies() {
         double threshold = 50.0;
@@ -160,6 +565,117 @@ public class UtilityMonitoringServiceTest {
         assertNotNull(anomalies);
     }
 
+    @Test
+    public void testCalculateAverageConsumptionTracksReadings() {
+    	assertEquals(utilityService.calculateAverageConsumption().get(UtilityMeter.UtilityType.GAS), (320.25 + 410.75 + 290.5) / 3, 1e-9);
+    	
+    	utilityService.recordUtilityConsumption("UM004", 500.0);
+    	utilityService.addMeter(new UtilityMeter("UM013", "PROP007", UtilityMeter.UtilityType.GAS, 100.0));
+    	assertEquals(utilityService.calculateAverageConsumption().get(UtilityMeter.UtilityType.GAS), (500.0 + 410.75 + 290.5 + 100.0) / 4, 1e-9);
+    	
+    	utilityService.findMeterById("UM013").get().setUtilityType(UtilityMeter.UtilityType.WATER);
+    	assertEquals(utilityService.calculateAverageConsumption().get(UtilityMeter.UtilityType.GAS), (500.0 + 410.75 + 290.5) / 3, 1e-9);
+    	assertEquals(utilityService.calculateAverageConsumption().get(UtilityMeter.UtilityType.WATER), (850.0 + 920.5 + 760.0 + 100.0) / 4, 1e-9);
+    }
+    
+    @Test
+    public void testConsumptionStatisticsStandardDeviation() {
+    	ConsumptionStatistics water = utilityService.getConsumptionStatistics().get(UtilityMeter.UtilityType.WATER);
+    	double mean = (850.0 + 920.5 + 760.0) / 3;
+    	double variance = (Math.pow(850.0 - mean, 2) + Math.pow(920.5 - mean, 2) + Math.pow(760.0 - mean, 2)) / 3;
+    	
+    	assertEquals(water.getMeterCount(), 3);
+    	assertEquals(water.getAverageReading(), mean, 1e-9);
+    	assertEquals(water.getStandardDeviation(), Math.sqrt(variance), 1e-9);
+    }
+    
+    @Test
+    public void testDetectAnomaliesByZScore() {
+    	for(int i = 0; i < 20; i++) {
+    		utilityService.addMeter(new UtilityMeter("GAS" + i, "GASPROP" + i, UtilityMeter.UtilityType.GAS, 300.0 + i));
+    	}
+    	utilityService.recordUtilityConsumption("UM008", 5000.0);
+    	
+    	List<UtilityMeter> anomalies = utilityService.detectAnomaliesByZScore(3.0);
+    	assertEquals(anomalies.size(), 1);
+    	assertEquals(anomalies.get(0).getMeterId(), "UM008");
+    }
+    
+    @Test
+    public void testConsumptionQuantileTracksReadings() {
+    	for(int i = 1; i <= 1000; i++) {
+    		utilityService.addMeter(new UtilityMeter("EQ" + i, "QPROP" + i, UtilityMeter.UtilityType.ELECTRICITY, i));
+    	}
+    	double median = utilityService.getConsumptionQuantile(UtilityMeter.UtilityType.ELECTRICITY, 0.5).getAsDouble();
+    	assertEquals(median, 505.0, 505.0 * 0.02);
+    	
+    	utilityService.findMeterById("EQ1").get().setUtilityType(UtilityMeter.UtilityType.GAS);
+    	for(int i = 2; i <= 600; i++) {
+    		utilityService.recordUtilityConsumption("EQ" + i, 2000.0 + i);
+    	}
+    	median = utilityService.getConsumptionQuantile(UtilityMeter.UtilityType.ELECTRICITY, 0.5).getAsDouble();
+    	assertTrue(median > 2000.0, "Median should move with updated readings: " + median);
+    	assertEquals(utilityRepository.getConsumptionSketch(UtilityMeter.UtilityType.GAS).getCount(), 4);
+    	assertFalse(new UtilityRepository().findConsumptionQuantile(UtilityMeter.UtilityType.GAS, 0.5).isPresent());
+    }
+    
+    @Test
+    public void testQuantileSketchMergeAndRemove() {
+    	QuantileSketch low = new QuantileSketch();
+    	QuantileSketch high = new QuantileSketch();
+    	for(int i = 1; i <= 500; i++) {
+    		low.add(i);
+    		high.add(500 + i);
+    	}
+    	low.merge(high);
+    	assertEquals(low.getCount(), 1000);
+    	assertEquals(low.quantile(0.99), 990.0, 990.0 * 0.02);
+    	
+    	for(int i = 501; i <= 1000; i++) {
+    		low.remove(i);
+    	}
+    	assertEquals(low.quantile(1.0), 500.0, 500.0 * 0.02);
+    }
+    
+    @Test
+    public void testQuantileSketchCollapsesLowestBuckets() {
+    	QuantileSketch sketch = new QuantileSketch(0.01, 64);
+    	for(int i = 0; i < 10_000; i++) {
+    		sketch.add(Math.pow(1.01, i % 2000) * 1e-3);
+    	}
+    	assertEquals(sketch.getCount(), 10_000);
+    	double top = Math.pow(1.01, 1999) * 1e-3;
+    	assertEquals(sketch.quantile(1.0), top, top * 0.02);
+    }
+    
+    @Test
+    public void testDetectAnomaliesByPercentile() {
+    	for(int i = 0; i < 200; i++) {
+    		utilityService.addMeter(new UtilityMeter("WP" + i, "WPROP" + i, UtilityMeter.UtilityType.WATER, 500.0));
+    	}
+    	utilityService.recordUtilityConsumption("WP7", 50_000.0);
+    	
+    	//The 98th percentile of the 203 water meters is 500, so only the three original meters and WP7 lie above it
+    	List<String> anomalies = new ArrayList<>();
+    	for(UtilityMeter meter : utilityService.detectAnomaliesByPercentile(98)) {
+    		if(meter.getUtilityType() == UtilityMeter.UtilityType.WATER) {
+    			anomalies.add(meter.getMeterId());
+    		}
+    	}
+    	Collections.sort(anomalies);
+    	assertEquals(anomalies, Arrays.asList("UM002", "UM006", "UM010", "WP7"));
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testDetectAnomaliesByPercentileOutOfRange() {
+    	utilityService.detectAnomaliesByPercentile(101);
+    }
+    
+    @Test(expectedExceptions = InvalidInputException.class)
+    public void testDetectAnomaliesByZScoreWithNegativeThreshold() {
+    	utilityService.detectAnomaliesByZScore(-1.0);
+    }
+    
     @Test(expectedExceptions = InvalidInputException.class)
     public void testDetectAnomaliesWithNegativeThreshold() {
     	utilityService.detectAnomalies(-10.0);